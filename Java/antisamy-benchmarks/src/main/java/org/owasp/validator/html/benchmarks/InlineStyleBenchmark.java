@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.benchmarks;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+
+/**
+ * Scans markup as exported by a rich text editor, where nearly every span
+ * carries a <code>style</code> attribute, with the TinyMCE policy. This is
+ * the case the CSS scanner's per-style setup costs show up in. Runs with and
+ * without the policy's inline style cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InlineStyleBenchmark {
+
+    private static final String[] STYLES = {
+            "text-decoration: underline;",
+            "text-decoration: line-through;",
+            "text-decoration: underline; color: #ff0000;",
+            "font-weight: bold;"
+    };
+
+    @Param({"10", "100", "1000"})
+    public int spans;
+
+    @Param({"0", "1000"})
+    public int inlineStyleCacheSize;
+
+    private final AntiSamy antiSamy = new AntiSamy();
+    private Policy policy;
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < spans; i++) {
+            if (i % 10 == 0) {
+                sb.append(i == 0 ? "<p>" : "</p><p>");
+            }
+            sb.append("<span style=\"").append(STYLES[i % STYLES.length]).append("\">word ")
+                    .append(i).append("</span> ");
+        }
+        sb.append("</p>");
+        html = sb.toString();
+
+        URL policyUrl = InlineStyleBenchmark.class.getResource("/antisamy-tinymce.xml");
+        policy = Policy.getInstance(policyUrl)
+                .cloneWithDirective("maxInputSize", String.valueOf(html.length()))
+                .cloneWithDirective("inlineStyleCacheSize", String.valueOf(inlineStyleCacheSize));
+    }
+
+    @Benchmark
+    public CleanResults dom() throws Exception {
+        return antiSamy.scan(html, policy, AntiSamy.DOM);
+    }
+
+    @Benchmark
+    public CleanResults sax() throws Exception {
+        return antiSamy.scan(html, policy, AntiSamy.SAX);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+
+/**
+ * Scans each page of the test corpus with each of the sample policies, once
+ * with the DOM scanner and once with the SAX scanner.
+ *
+ * The policies' <code>maxInputSize</code> is raised so that every page is
+ * actually scanned instead of being rejected up front.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    private static final Map<String, String> PAGES = new HashMap<String, String>();
+
+    static {
+        PAGES.put("slashdot", "/s/slashdot.org.htm");
+        PAGES.put("cnn", "/s/cnn.com");
+        PAGES.put("fark", "/s/fark.com");
+        PAGES.put("google", "/s/google.com.html");
+        PAGES.put("microsoft", "/s/microsoft.com");
+    }
+
+    @Param({"ebay", "myspace", "slashdot", "tinymce", "anythinggoes"})
+    public String policyName;
+
+    @Param({"slashdot", "cnn", "fark", "google", "microsoft"})
+    public String page;
+
+    private final AntiSamy antiSamy = new AntiSamy();
+    private Policy policy;
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception {
+        URL policyUrl = getResource("/antisamy-" + policyName + ".xml");
+        html = read(getResource(PAGES.get(page)));
+        policy = Policy.getInstance(policyUrl)
+                .cloneWithDirective("maxInputSize", String.valueOf(html.length()));
+    }
+
+    @Benchmark
+    public CleanResults dom() throws Exception {
+        return antiSamy.scan(html, policy, AntiSamy.DOM);
+    }
+
+    @Benchmark
+    public CleanResults sax() throws Exception {
+        return antiSamy.scan(html, policy, AntiSamy.SAX);
+    }
+
+    private static URL getResource(String name) {
+        URL url = ScanBenchmark.class.getResource(name);
+        if (url == null) {
+            throw new IllegalArgumentException("Missing benchmark resource: " + name);
+        }
+        return url;
+    }
+
+    private static String read(URL url) throws IOException {
+        InputStream is = url.openStream();
+        try {
+            Reader in = new InputStreamReader(is, "UTF-8");
+            StringBuilder out = new StringBuilder();
+            char[] buffer = new char[5000];
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+                out.append(buffer, 0, read);
+            }
+            return out.toString();
+        } finally {
+            is.close();
+        }
+    }
+}
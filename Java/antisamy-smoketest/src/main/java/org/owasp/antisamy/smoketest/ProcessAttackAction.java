@@ -1,8 +1,8 @@
 package org.owasp.antisamy.smoketest;
 
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.URL;
 import java.util.ArrayList;
 
 import javax.servlet.http.HttpServletRequest;
@@ -17,6 +17,7 @@
 import org.owasp.validator.html.AntiSamy;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyRegistry;
 
 public class ProcessAttackAction extends Action {
 
@@ -43,9 +44,15 @@ public ActionForward execute(ActionMapping mapping, ActionForm actionForm,
 		
 		policyFile = "/WEB-INF/policies/" + policyFile;
 		
-		InputStream is = request.getSession().getServletContext().getResourceAsStream(policyFile); 
+		URL policyUrl = request.getSession().getServletContext().getResource(policyFile);
 		
-		Policy p = Policy.getInstance(is);
+		if ( policyUrl == null ) {
+			errors.add(ActionErrors.GLOBAL_MESSAGE, new ActionMessage("error.invalid.policy"));
+			saveErrors(request, errors);
+			return page;
+		}
+		
+		Policy p = PolicyRegistry.getDefault().getPolicy(policyUrl);
 		
 		String attack = form.getInput() != null ? form.getInput() : "";
 		
@@ -35,8 +35,8 @@
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.util.ErrorMessageList;
 import org.owasp.validator.html.util.ErrorMessageUtil;
-import org.owasp.validator.html.util.HTMLEntityEncoder;
 import org.w3c.css.sac.CSSException;
 import org.w3c.css.sac.DocumentHandler;
 import org.w3c.css.sac.InputSource;
@@ -65,7 +65,7 @@ public class CssHandler implements DocumentHandler {
 	/**
 	 * The style sheet as it is being built by the handler
 	 */
-	private StringBuffer styleSheet = new StringBuffer();
+	private final StringBuilder styleSheet = new StringBuilder();
 
 	/**
 	 * The validator to use when CSS constituents are encountered
@@ -81,7 +81,7 @@ public class CssHandler implements DocumentHandler {
 	 * The encaspulated results including the error messages
 	 */
 //	private final CleanResults results;
-	private final Collection<String> errorMessages;
+	private Collection<String> errorMessages;
 	
 	/**
 	 * The error message bundled to pull from.
@@ -91,19 +91,19 @@ public class CssHandler implements DocumentHandler {
 	/**
 	 * A queue of imported stylesheets; used to track imported stylesheets
 	 */
-	private final LinkedList importedStyleSheets;
+	private final LinkedList<URI> importedStyleSheets;
 
 	/**
 	 * The tag currently being examined (if any); used for inline stylesheet
 	 * error messages
 	 */
-	private final String tagName;
+	private String tagName;
 
 	/**
 	 * Indicates whether we are scanning a stylesheet or an inline declaration.
 	 * true if this is an inline declaration; false otherwise
 	 */
-	private final boolean isInline;
+	private boolean isInline;
 
 	/**
 	 * Indicates whether the handler is currently parsing the contents between
@@ -120,7 +120,7 @@ public class CssHandler implements DocumentHandler {
 	 * @param embeddedStyleSheets
 	 *            the queue of stylesheets imported
 	 */
-	public CssHandler(Policy policy, LinkedList embeddedStyleSheets,
+	public CssHandler(Policy policy, LinkedList<URI> embeddedStyleSheets,
 		List<String> errorMessages, ResourceBundle messages) {
 		this(policy, embeddedStyleSheets, errorMessages, null, messages);
 	}
@@ -136,7 +136,7 @@ public CssHandler(Policy policy, LinkedList embeddedStyleSheets,
 	 * @param tagName
 	 *            the associated tag name with this inline style
 	 */
-	public CssHandler(Policy policy, LinkedList embeddedStyleSheets,
+	public CssHandler(Policy policy, LinkedList<URI> embeddedStyleSheets,
 			List<String> errorMessages, String tagName, ResourceBundle messages) {
 		this.policy = (InternalPolicy) policy;
 		this.errorMessages = errorMessages;
@@ -147,6 +147,25 @@ public CssHandler(Policy policy, LinkedList embeddedStyleSheets,
 		this.isInline = (tagName != null);
 	}
 
+	/**
+	 * Prepares the handler for parsing the next stylesheet or inline
+	 * declaration, so a scanner can keep using the same handler. The queue of
+	 * imported stylesheets is kept and should be cleared by the caller.
+	 * 
+	 * @param errorMessages
+	 *            the list the errors of the next parse go to
+	 * @param tagName
+	 *            the associated tag name of the next inline style, or null
+	 *            for a stylesheet
+	 */
+	void reset(List<String> errorMessages, String tagName) {
+		this.errorMessages = errorMessages;
+		this.tagName = tagName;
+		this.isInline = (tagName != null);
+		this.styleSheet.setLength(0);
+		this.selectorOpen = false;
+	}
+
 	/**
 	 * Returns the cleaned stylesheet.
 	 * 
@@ -157,6 +176,38 @@ public String getCleanStylesheet() {
 		return styleSheet.toString();
 	}
 
+	/**
+	 * @return the length of the clean stylesheet so far, to be passed to
+	 *         <code>getCleanStylesheet(int)</code> or <code>truncate(int)</code>
+	 */
+	int getCleanLength() {
+		return styleSheet.length();
+	}
+
+	/**
+	 * @return the part of the clean stylesheet from <code>start</code> on
+	 */
+	String getCleanStylesheet(int start) {
+		return styleSheet.substring(start);
+	}
+
+	/**
+	 * Appends already cleaned CSS, as it was produced by an earlier parse of
+	 * the same stylesheet with the same policy.
+	 */
+	void appendClean(String cleanCss) {
+		styleSheet.append(cleanCss);
+	}
+
+	/**
+	 * Drops the clean CSS after <code>length</code>, to discard what an
+	 * imported stylesheet produced before it failed.
+	 */
+	void truncate(int length) {
+		styleSheet.setLength(length);
+		selectorOpen = false;
+	}
+
 	/**
 	 * Returns the error messages generated during parsing.
 	 * @return the error messages generated during parsing
@@ -164,6 +215,18 @@ public String getCleanStylesheet() {
 	public Collection getErrorMessages() {
 	    return new ArrayList(errorMessages);
 	}
+
+	/**
+	 * Records an error; the message is only rendered eagerly when the
+	 * collection it goes to is not an <code>ErrorMessageList</code>.
+	 */
+	private void addError(String errorKey, Object[] arguments) {
+	    if (errorMessages instanceof ErrorMessageList) {
+		((ErrorMessageList) errorMessages).add(errorKey, arguments);
+	    } else {
+		errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, arguments));
+	    }
+	}
 	
 	/*
 	 * (non-Javadoc)
@@ -171,10 +234,8 @@ public Collection getErrorMessages() {
 	 * @see org.w3c.css.sac.DocumentHandler#comment(java.lang.String)
 	 */
 	public void comment(String text) throws CSSException {
-		errorMessages.add(ErrorMessageUtil.getMessage(
-				messages,
-				ErrorMessageUtil.ERROR_COMMENT_REMOVED,
-				new Object[] { HTMLEntityEncoder.htmlEntityEncode(text) }));
+		addError(ErrorMessageUtil.ERROR_COMMENT_REMOVED,
+				new Object[] { ErrorMessageUtil.encoded(text) });
 	}
 
 	/*
@@ -187,20 +248,16 @@ public void ignorableAtRule(String atRule) throws CSSException {
 		// @-rule. Like the page/media/font declarations, this is
 		// CSS2+ stuff
 		if (tagName != null) {
-			errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-				ErrorMessageUtil.ERROR_CSS_TAG_RULE_NOTFOUND,
+			addError(ErrorMessageUtil.ERROR_CSS_TAG_RULE_NOTFOUND,
 				new Object[] { 
-					HTMLEntityEncoder.htmlEntityEncode(tagName), 
-					HTMLEntityEncoder.htmlEntityEncode(atRule)
-				}));
+					ErrorMessageUtil.encoded(tagName), 
+					ErrorMessageUtil.encoded(atRule)
+				});
 		} else {
-			errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-				ErrorMessageUtil.ERROR_STYLESHEET_RULE_NOTFOUND,
+			addError(ErrorMessageUtil.ERROR_STYLESHEET_RULE_NOTFOUND,
 				new Object[] {  
-					HTMLEntityEncoder.htmlEntityEncode(atRule)
-				}));		    
+					ErrorMessageUtil.encoded(atRule)
+				});		    
 		}
 		
 	}
@@ -215,20 +272,16 @@ public void importStyle(String uri, SACMediaList media,
 			String defaultNamespaceURI) throws CSSException {
 
 		if (!policy.isEmbedStyleSheets()) {
-			errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-					ErrorMessageUtil.ERROR_CSS_IMPORT_DISABLED,
-					new Object[] {}));
+			addError(ErrorMessageUtil.ERROR_CSS_IMPORT_DISABLED,
+					new Object[] {});
 			return;
 		}
 				
 		try {
 			// check for non-nullness (validate after canonicalization)
 			if (uri == null) {
-			    errorMessages.add(ErrorMessageUtil.getMessage(
-						messages,
-					ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
-					new Object[] { HTMLEntityEncoder.htmlEntityEncode(uri) }));
+			    addError(ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
+					new Object[] { ErrorMessageUtil.encoded(uri) });
 			    return;			
 			} 
 			
@@ -241,10 +294,8 @@ public void importStyle(String uri, SACMediaList media,
 
             if (!policy.getCommonRegularExpressions("offsiteURL").matches(importedStyleSheet.toString())
 				&& !policy.getCommonRegularExpressions("onsiteURL").matches(importedStyleSheet.toString())) {
-			    errorMessages.add(ErrorMessageUtil.getMessage(
-						messages,
-					ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
-					new Object[] { HTMLEntityEncoder.htmlEntityEncode(uri) }));
+			    addError(ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
+					new Object[] { ErrorMessageUtil.encoded(uri) });
 			    return;			
 			} 
 
@@ -254,17 +305,13 @@ public void importStyle(String uri, SACMediaList media,
 				// text as an end user can't know where the corresponding
 				// free form will end up
 			    	if (tagName != null) {
-			    	    errorMessages.add(ErrorMessageUtil.getMessage(
-			    				messages,
-					ErrorMessageUtil.ERROR_CSS_TAG_RELATIVE,
+			    	    addError(ErrorMessageUtil.ERROR_CSS_TAG_RELATIVE,
 					new Object[] { 
-						HTMLEntityEncoder.htmlEntityEncode(tagName),
-						HTMLEntityEncoder.htmlEntityEncode(uri) }));
+						ErrorMessageUtil.encoded(tagName),
+						ErrorMessageUtil.encoded(uri) });
 			    	} else {
-			    	    errorMessages.add(ErrorMessageUtil.getMessage(
-			    				messages,
-					ErrorMessageUtil.ERROR_STYLESHEET_RELATIVE,
-					new Object[] { HTMLEntityEncoder.htmlEntityEncode(uri) }));
+			    	    addError(ErrorMessageUtil.ERROR_STYLESHEET_RELATIVE,
+					new Object[] { ErrorMessageUtil.encoded(uri) });
 			    	}
 				return;
 			}
@@ -272,10 +319,8 @@ public void importStyle(String uri, SACMediaList media,
 
 			importedStyleSheets.add(importedStyleSheet);
 		} catch (URISyntaxException use) {
-			errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-				ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
-				new Object[] { HTMLEntityEncoder.htmlEntityEncode(uri) }));
+			addError(ErrorMessageUtil.ERROR_CSS_IMPORT_URL_INVALID,
+				new Object[] { ErrorMessageUtil.encoded(uri) });
 			return;
 		}	
 	}
@@ -385,24 +430,20 @@ public void startSelector(SelectorList selectors) throws CSSException {
 				boolean isValidSelector = false;
 
 				try {
-					isValidSelector = validator.isValidSelector(selectorName,
+					isValidSelector = validator.validateSelector(selectorName,
 							selector);
 				} catch (ScanException se) {
 				    if (tagName != null) {					
-					errorMessages.add(ErrorMessageUtil.getMessage(
-							messages,
-						ErrorMessageUtil.ERROR_CSS_TAG_SELECTOR_NOTFOUND,
+					addError(ErrorMessageUtil.ERROR_CSS_TAG_SELECTOR_NOTFOUND,
 						new Object[] {
-							HTMLEntityEncoder.htmlEntityEncode(selector.toString())
-						}));
+							ErrorMessageUtil.encoded(selectorName)
+						});
 				    } else {
-					errorMessages.add(ErrorMessageUtil.getMessage(
-							messages,
-						ErrorMessageUtil.ERROR_STYLESHEET_SELECTOR_NOTFOUND,
+					addError(ErrorMessageUtil.ERROR_STYLESHEET_SELECTOR_NOTFOUND,
 						new Object[] {
-							HTMLEntityEncoder.htmlEntityEncode(tagName),
-							HTMLEntityEncoder.htmlEntityEncode(selector.toString())
-						}));
+							ErrorMessageUtil.encoded(tagName),
+							ErrorMessageUtil.encoded(selectorName)
+						});
 				    }
 				}
 
@@ -418,21 +459,17 @@ public void startSelector(SelectorList selectors) throws CSSException {
 
 				} else {
 					if (tagName != null) {
-						errorMessages.add(ErrorMessageUtil.getMessage(
-								messages,
-								ErrorMessageUtil.ERROR_CSS_TAG_SELECTOR_DISALLOWED,
+						addError(ErrorMessageUtil.ERROR_CSS_TAG_SELECTOR_DISALLOWED,
 								new Object[] {
-									HTMLEntityEncoder.htmlEntityEncode(tagName),
-									HTMLEntityEncoder.htmlEntityEncode(selector.toString())
-								}));
+									ErrorMessageUtil.encoded(tagName),
+									ErrorMessageUtil.encoded(selectorName)
+								});
 
 					} else {
-						errorMessages.add(ErrorMessageUtil.getMessage(
-								messages,
-								ErrorMessageUtil.ERROR_STYLESHEET_SELECTOR_DISALLOWED,
+						addError(ErrorMessageUtil.ERROR_STYLESHEET_SELECTOR_DISALLOWED,
 								new Object[] {
-									HTMLEntityEncoder.htmlEntityEncode(selector.toString())
-								}));								
+									ErrorMessageUtil.encoded(selectorName)
+								});								
 					}
 
 				}
@@ -481,40 +518,31 @@ public void property(String name, LexicalUnit value, boolean important)
 		}
 
 		// validate the property
-		if (validator.isValidProperty(name, value)) {
+		String cleanValue = validator.validatePropertyValue(name, value);
+		if (cleanValue != null) {
 
 			if (!isInline) { styleSheet.append('\t'); }
 			styleSheet.append(name);
 			styleSheet.append(':');
-
-			// append all values
-			while (value != null) {
-				styleSheet.append(' ');
-				styleSheet.append(validator.lexicalValueToString(value));
-				value = value.getNextLexicalUnit();
-			}
+			styleSheet.append(cleanValue);
 			styleSheet.append(';');
 			if (!isInline) { styleSheet.append('\n'); }
 
 		} else {
 
 			if (tagName != null) {
-				errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-					ErrorMessageUtil.ERROR_CSS_TAG_PROPERTY_INVALID,
+				addError(ErrorMessageUtil.ERROR_CSS_TAG_PROPERTY_INVALID,
 					new Object[] {
-						HTMLEntityEncoder.htmlEntityEncode(tagName),
-						HTMLEntityEncoder.htmlEntityEncode(name),
-						HTMLEntityEncoder.htmlEntityEncode(validator
-							.lexicalValueToString(value)) }));			
+						ErrorMessageUtil.encoded(tagName),
+						ErrorMessageUtil.encoded(name),
+						ErrorMessageUtil.encoded(validator
+							.lexicalValueToString(value)) });			
 			} else {
-			    	errorMessages.add(ErrorMessageUtil.getMessage(
-			    		messages,
-			    		ErrorMessageUtil.ERROR_STYLESHEET_PROPERTY_INVALID,
+			    	addError(ErrorMessageUtil.ERROR_STYLESHEET_PROPERTY_INVALID,
 					new Object[] {
-						HTMLEntityEncoder.htmlEntityEncode(name),
-						HTMLEntityEncoder.htmlEntityEncode(validator
-							.lexicalValueToString(value)) }));
+						ErrorMessageUtil.encoded(name),
+						ErrorMessageUtil.encoded(validator
+							.lexicalValueToString(value)) });
 			}
 
 		}
@@ -30,6 +30,7 @@
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.net.URI;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,6 +41,7 @@
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.util.ErrorMessageList;
 import org.w3c.css.sac.InputSource;
 
 /**
@@ -48,6 +50,11 @@
  * desired policy and call either <code>scanInlineSheet()</code> or
  * <code>scanStyleSheet</code> as appropriate.
  * 
+ * <p>
+ * A scanner reuses its parser and handler from one scan to the next, so it
+ * should be kept for all the styles of a document, but must not be used by
+ * more than one thread at a time.
+ * 
  * @see #scanInlineStyle(String, String, int)
  * @see #scanStyleSheet(String, int)
  * 
@@ -75,6 +82,13 @@ public class CssScanner {
     protected final ResourceBundle messages;
     private static final Pattern p = Pattern.compile(CDATA, Pattern.DOTALL);
 
+    /**
+     * The queue of imported stylesheets and the handler, kept from one scan
+     * to the next as a scanner is often used for every style of a document.
+     */
+    private final LinkedList<URI> stylesheets = new LinkedList<URI>();
+    private CssHandler handler;
+
     /**
      * Constructs a scanner based on the given policy.
      * 
@@ -106,7 +120,7 @@ public CleanResults scanStyleSheet(String taintedCss, int sizeLimit)
 	    throws ScanException {
 
         long startOfScan = System.currentTimeMillis();
-        List<String> errorMessages = new ArrayList<String>();
+        List<String> errorMessages = new ErrorMessageList(messages, !policy.isOmitErrorMessages());
 
 	/* Check to see if the text starts with (\s)*<![CDATA[
 	 * and end with ]]>(\s)*.
@@ -120,11 +134,7 @@ public CleanResults scanStyleSheet(String taintedCss, int sizeLimit)
 		taintedCss = m.group(1);
 	}
 	
-	// Create a queue of all style sheets that need to be validated to
-	// account for any sheets that may be imported by the current CSS
-	LinkedList stylesheets = new LinkedList();
-
-	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages, messages);
+	CssHandler handler = getHandler(errorMessages, null);
 
 	// parse the stylesheet
 	parser.setDocumentHandler(handler);
@@ -181,16 +191,19 @@ public CleanResults scanStyleSheet(String taintedCss, int sizeLimit)
     public CleanResults scanInlineStyle(String taintedCss, String tagName,
 	    int sizeLimit) throws ScanException {
 
-	long startOfScan = System.currentTimeMillis();
+	InlineStyleCache cache = policy.getInlineStyleCache();
+	if (cache != null) {
+	    CleanResults cached = cache.get(tagName, taintedCss);
+	    if (cached != null) {
+		return cached;
+	    }
+	}
 
-	List<String> errorMessages = new ArrayList<String>();
+	long startOfScan = System.currentTimeMillis();
 
-	// Create a queue of all style sheets that need to be validated to
-	// account for any sheets that may be imported by the current CSS
-	LinkedList stylesheets = new LinkedList();
+	List<String> errorMessages = new ErrorMessageList(messages, !policy.isOmitErrorMessages());
 
-	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages,
-		tagName, messages);
+	CssHandler handler = getHandler(errorMessages, tagName);
 
 	parser.setDocumentHandler(handler);
 
@@ -206,9 +219,27 @@ public CleanResults scanInlineStyle(String taintedCss, String tagName,
 
 	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit);
 
-	return new CleanResults(startOfScan, handler.getCleanStylesheet(), null, errorMessages);
+	CleanResults results = new CleanResults(startOfScan, handler.getCleanStylesheet(), null, errorMessages);
+	if (cache != null) {
+	    cache.put(tagName, taintedCss, results);
+	}
+	return results;
     }
     
+    /**
+     * @return The handler for the next scan, with an empty queue of imported
+     *         stylesheets that need to be validated as well.
+     */
+    private CssHandler getHandler(List<String> errorMessages, String tagName) {
+	stylesheets.clear();
+	if (handler == null) {
+	    handler = new CssHandler(policy, stylesheets, errorMessages, tagName, messages);
+	} else {
+	    handler.reset(errorMessages, tagName);
+	}
+	return handler;
+    }
+
     /**
 	 * Parses through a <code>LinkedList</code> of imported stylesheet
 	 * URIs, this method parses through those stylesheets and validates them
@@ -226,7 +257,7 @@ public CleanResults scanInlineStyle(String taintedCss, String tagName,
 	 * @throws ScanException
 	 *                 if an error occurs during scanning
 	 */
-	protected void parseImportedStylesheets(LinkedList stylesheets, CssHandler handler,
+	protected void parseImportedStylesheets(LinkedList<URI> stylesheets, CssHandler handler,
 			List<String> errorMessages, int sizeLimit) throws ScanException {
 		// Implemented in ExternalCssScanner.java
 	}
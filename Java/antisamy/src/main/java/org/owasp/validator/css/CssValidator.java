@@ -29,12 +29,14 @@
 package org.owasp.validator.css;
 
 import java.util.Iterator;
-import java.util.regex.Pattern;
 
+import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
 import org.owasp.validator.html.model.AntiSamyPattern;
 import org.owasp.validator.html.model.Property;
+import org.owasp.validator.html.model.ValueMatcher;
+import org.owasp.validator.html.util.BoundedCache;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
 
 import org.w3c.css.sac.AttributeCondition;
@@ -60,6 +62,27 @@ public class CssValidator {
 
 	private final Policy policy;
 
+	/*
+	 * The selector patterns of the policy, looked up once rather than for
+	 * every simple selector and condition.
+	 */
+	private final AntiSamyPattern elementSelector;
+	private final AntiSamyPattern elementExclusion;
+	private final AntiSamyPattern classSelector;
+	private final AntiSamyPattern classExclusion;
+	private final AntiSamyPattern idSelector;
+	private final AntiSamyPattern idExclusion;
+	private final AntiSamyPattern pseudoElementSelector;
+	private final AntiSamyPattern pseudoElementExclusion;
+	private final AntiSamyPattern attributeSelector;
+	private final AntiSamyPattern attributeExclusion;
+
+	/**
+	 * The policy's cache of selector verdicts, or null.
+	 */
+	private final BoundedCache<String, Boolean> selectorVerdicts;
+	private final int maxCachedSelectorLength;
+
 	/**
 	 * Constructs a validator for CSS selectors, conditions and properties based
 	 * on the given policy.
@@ -69,6 +92,24 @@ public class CssValidator {
 	 */
 	public CssValidator(Policy policy) {
 		this.policy = policy;
+		this.elementSelector = policy.getCommonRegularExpressions("cssElementSelector");
+		this.elementExclusion = policy.getCommonRegularExpressions("cssElementExclusion");
+		this.classSelector = policy.getCommonRegularExpressions("cssClassSelector");
+		this.classExclusion = policy.getCommonRegularExpressions("cssClassExclusion");
+		this.idSelector = policy.getCommonRegularExpressions("cssIDSelector");
+		this.idExclusion = policy.getCommonRegularExpressions("cssIDExclusion");
+		this.pseudoElementSelector = policy.getCommonRegularExpressions("cssPseudoElementSelector");
+		this.pseudoElementExclusion = policy.getCommonRegularExpressions("cssPsuedoElementExclusion");
+		this.attributeSelector = policy.getCommonRegularExpressions("cssAttributeSelector");
+		this.attributeExclusion = policy.getCommonRegularExpressions("cssAttributeExclusion");
+		if (policy instanceof InternalPolicy) {
+			InternalPolicy internalPolicy = (InternalPolicy) policy;
+			this.selectorVerdicts = internalPolicy.getSelectorVerdictCache();
+			this.maxCachedSelectorLength = internalPolicy.getSelectorVerdictCacheMaxLength();
+		} else {
+			this.selectorVerdicts = null;
+			this.maxCachedSelectorLength = 0;
+		}
 	}
 
 	/**
@@ -82,31 +123,84 @@ public CssValidator(Policy policy) {
 	 * @return true if this property name/value is valid; false otherwise
 	 */
 	public boolean isValidProperty(String name, LexicalUnit lu) {
-		boolean isValid = false;
-		Property property = null;
+		return validatePropertyValue(name, lu) != null;
+	}
 
-		if (name != null) {
-			property = policy.getPropertyByName(name.toLowerCase());
+	/**
+	 * Validates the given property (both name and value) according to this
+	 * validator's policy, turning each lexical unit of the value into a
+	 * <code>String</code> only once.
+	 * 
+	 * @param name
+	 *            the name of the property
+	 * @param lu
+	 *            the value of the property
+	 * @return the value as it should be written out, each unit preceded by a
+	 *         space, or null if the property name/value is not valid
+	 */
+	public String validatePropertyValue(String name, LexicalUnit lu) {
+		if (name == null) {
+			return null;
 		}
 
-		// if we were able to find the property by name, validate the value
-		if (property != null) {
-
-			// validate all values attached to this property
-			isValid = true;
-			while (lu != null) {
-				String value = lexicalValueToString(lu);
+		ValueMatcher matcher = null;
+		Property property = null;
+		if (policy instanceof InternalPolicy) {
+			matcher = ((InternalPolicy) policy).getPropertyValueMatcher(name);
+			if (matcher == null) {
+				return null;
+			}
+		} else {
+			property = policy.getPropertyByName(name.toLowerCase());
+			if (property == null) {
+				return null;
+			}
+		}
 
-				if (value == null || !validateValue(property, value)) {
-					isValid = false;
-					break;
-				}
+		// validate all values attached to this property
+		StringBuilder cleanValue = new StringBuilder();
+		while (lu != null) {
+			String value = lexicalValueToString(lu);
 
-				lu = lu.getNextLexicalUnit();
+			if (value == null) {
+				return null;
+			}
+			String lowerCase = value.toLowerCase();
+			if (matcher != null ? !matcher.matches(lowerCase) : !validateValue(property, lowerCase)) {
+				return null;
 			}
+			cleanValue.append(' ').append(value);
+
+			lu = lu.getNextLexicalUnit();
 		}
 
-		return isValid;
+		return cleanValue.toString();
+	}
+
+	/**
+	 * Determines whether the given selector is valid according to this
+	 * validator's policy, like {@link #isValidSelector(String, Selector)},
+	 * but answering repeated selectors from the policy's selector verdict
+	 * cache when it has one. Selectors of unknown types are not cached.
+	 * 
+	 * @param selectorName
+	 *            the name of the selector, as given by
+	 *            <code>selector.toString()</code>
+	 * @param selector
+	 *            the object representation of the selector
+	 * @return true if this selector name is valid; false otherwise
+	 */
+	public boolean validateSelector(String selectorName, Selector selector)
+			throws ScanException {
+		if (selectorVerdicts == null || selectorName.length() > maxCachedSelectorLength) {
+			return isValidSelector(selectorName, selector);
+		}
+		Boolean verdict = selectorVerdicts.get(selectorName);
+		if (verdict == null) {
+			verdict = Boolean.valueOf(isValidSelector(selectorName, selector));
+			selectorVerdicts.put(selectorName, verdict);
+		}
+		return verdict.booleanValue();
 	}
 
 	/**
@@ -184,8 +278,8 @@ private boolean validateSimpleSelector(SimpleSelector selector) {
 		// generate all relevant error messages
 
         String selectorLowerCase = selector.toString().toLowerCase();
-        return policy.getCommonRegularExpressions("cssElementSelector").matches(selectorLowerCase)
-				& !policy.getCommonRegularExpressions("cssElementExclusion").matches(selectorLowerCase);
+        return elementSelector.matches(selectorLowerCase)
+				& !elementExclusion.matches(selectorLowerCase);
 	}
 
 	/**
@@ -216,24 +310,24 @@ & isValidCondition(selectorName, comboCondition
 			// this is a basic class condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
 
-            return validateCondition((AttributeCondition) condition, policy.getCommonRegularExpressions("cssClassSelector"), policy.getCommonRegularExpressions("cssClassExclusion"));
+            return validateCondition((AttributeCondition) condition, classSelector, classExclusion);
 		case Condition.SAC_ID_CONDITION:
 			// this is a basic ID condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
 
-            return validateCondition((AttributeCondition) condition, policy.getCommonRegularExpressions("cssIDSelector"), policy.getCommonRegularExpressions("cssIDExclusion"));
+            return validateCondition((AttributeCondition) condition, idSelector, idExclusion);
 		case Condition.SAC_PSEUDO_CLASS_CONDITION:
 			// this is a basic psuedo element condition; compare condition
 			// against valid pattern and is not blacklisted by exclusion pattern
 
-            return validateCondition((AttributeCondition) condition, policy.getCommonRegularExpressions("cssPseudoElementSelector"), policy.getCommonRegularExpressions("cssPsuedoElementExclusion"));
+            return validateCondition((AttributeCondition) condition, pseudoElementSelector, pseudoElementExclusion);
 		case Condition.SAC_BEGIN_HYPHEN_ATTRIBUTE_CONDITION:
 		case Condition.SAC_ONE_OF_ATTRIBUTE_CONDITION:
 		case Condition.SAC_ATTRIBUTE_CONDITION:
 			// this is a basic class condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
 
-            return validateCondition((AttributeCondition) condition, policy.getCommonRegularExpressions("cssAttributeSelector"), policy.getCommonRegularExpressions("cssAttributeExclusion"));
+            return validateCondition((AttributeCondition) condition, attributeSelector, attributeExclusion);
 		case Condition.SAC_NEGATIVE_CONDITION:
 			// this is a compound condition; decompose to simple condition
 			return isValidCondition(selectorName,
@@ -277,7 +371,8 @@ private boolean validateCondition(AttributeCondition condition,
 
 	/**
 	 * Determines whether the given property value is valid according to this
-	 * validator's policy.
+	 * validator's policy, for policies that don't have their properties
+	 * compiled into matchers.
 	 * 
 	 * @param property
 	 *            the object representation of the property and its associated
@@ -287,30 +382,9 @@ private boolean validateCondition(AttributeCondition condition,
 	 * @return true if the property is valid; false otherwise
 	 */
 	private boolean validateValue(Property property, String value) {
-		boolean isValid = false;
-
-		// normalize the value to lowercase
-		value = value.toLowerCase();
-
-		// check if the value matches any of the allowed literal values
-		Iterator allowedValues = property.getAllowedValues().iterator();
-		while (allowedValues.hasNext() && !isValid) {
-			String allowedValue = (String) allowedValues.next();
-
-			if (allowedValue != null && allowedValue.equals(value)) {
-				isValid = true;
-			}
-		}
-
-		// check if the value matches any of the allowed regular expressions
-		Iterator allowedRegexps = property.getAllowedRegExp().iterator();
-		while (allowedRegexps.hasNext() && !isValid) {
-			Pattern pattern = (Pattern) allowedRegexps.next();
-
-			if (pattern != null && pattern.matcher(value).matches()) {
-				isValid = true;
-			}
-		}
+		// check if the value matches any of the allowed literal values or
+		// regular expressions
+		boolean isValid = property.isAllowedValue(value);
 
 		// check if the value matches any of the allowed shorthands
 		Iterator shorthandRefs = property.getShorthandRefs().iterator();
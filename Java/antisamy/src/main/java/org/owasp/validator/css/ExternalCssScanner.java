@@ -28,29 +28,101 @@
  */
 package org.owasp.validator.css;
 
-import java.io.ByteArrayInputStream;
+import java.io.FilterReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpContentTooLargeException;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.batik.css.parser.ParseException;
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.util.ErrorMessageList;
 import org.owasp.validator.html.util.ErrorMessageUtil;
-import org.owasp.validator.html.util.HTMLEntityEncoder;
 import org.w3c.css.sac.InputSource;
 
+/**
+ * A <code>CssScanner</code> that also fetches, validates and embeds the
+ * stylesheets named by <code>@import</code> rules, used when the policy sets
+ * <code>embedStyleSheets</code>.
+ * <p>
+ * The imports queued by one stylesheet are fetched in parallel, within the
+ * <code>maxStyleSheetImports</code> budget, read into memory and parsed in
+ * document order; a single import is streamed into the parser. Stylesheets
+ * are retrieved with the {@link StylesheetFetcher} installed with
+ * {@link #setStylesheetFetcher(StylesheetFetcher)}, and the validated result
+ * is kept in the {@link StylesheetCache} installed with
+ * {@link #setStylesheetCache(StylesheetCache)}.
+ */
 public class ExternalCssScanner extends CssScanner {
 
+	private static volatile StylesheetFetcher defaultFetcher;
+	private static volatile StylesheetCache defaultCache = new StylesheetCache();
+
+	private final StylesheetFetcher fetcher;
+	private final StylesheetCache cache;
+
 	public ExternalCssScanner(InternalPolicy policy, ResourceBundle messages) {
+		this(policy, messages, getStylesheetFetcher(), defaultCache);
+	}
+
+	/**
+	 * @param fetcher
+	 *                retrieves the imported stylesheets
+	 * @param cache
+	 *                the cache of validated stylesheets, or null to fetch
+	 *                them on every scan
+	 */
+	public ExternalCssScanner(InternalPolicy policy, ResourceBundle messages,
+			StylesheetFetcher fetcher, StylesheetCache cache) {
 		super(policy, messages);
+		this.fetcher = fetcher;
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the fetcher new scanners use, a shared
+	 *         <code>HttpStylesheetFetcher</code> unless another one was set
+	 */
+	public static StylesheetFetcher getStylesheetFetcher() {
+		StylesheetFetcher fetcher = defaultFetcher;
+		return fetcher != null ? fetcher : SharedFetcher.INSTANCE;
+	}
+
+	/**
+	 * Sets the fetcher new scanners use; null restores the shared
+	 * <code>HttpStylesheetFetcher</code>.
+	 */
+	public static void setStylesheetFetcher(StylesheetFetcher fetcher) {
+		defaultFetcher = fetcher;
+	}
+
+	/**
+	 * @return the cache of validated stylesheets new scanners use, or null
+	 */
+	public static StylesheetCache getStylesheetCache() {
+		return defaultCache;
+	}
+
+	/**
+	 * Sets the cache of validated stylesheets new scanners use; null turns
+	 * caching off.
+	 */
+	public static void setStylesheetCache(StylesheetCache cache) {
+		defaultCache = cache;
 	}
 
 	/**
@@ -70,106 +142,333 @@ public ExternalCssScanner(InternalPolicy policy, ResourceBundle messages) {
 	 * @throws ScanException
 	 *                 if an error occurs during scanning
 	 */
-	protected void parseImportedStylesheets(LinkedList stylesheets, CssHandler handler,
-			ArrayList errorMessages, int sizeLimit) throws ScanException {
-			
-			int importedStylesheets = 0;
-			
-			// if stylesheets were imported by the inline style declaration,
-			// continue parsing the nested styles. Note this only happens
-			// if CSS importing was enabled in the policy file
-			if (!stylesheets.isEmpty()) {
-			    HttpClient httpClient = new HttpClient();
-			
-			    // Ensure that we have appropriate timeout values so we don't
-			    // get DoSed waiting for returns
-			    HttpConnectionManagerParams params = httpClient
-				    .getHttpConnectionManager().getParams();
-			
-			    int timeout = DEFAULT_TIMEOUT;
-			
-			    try {
-				timeout = Integer.parseInt(policy
-					.getDirective(Policy.CONNECTION_TIMEOUT));
-			    } catch (NumberFormatException nfe) {
-			    }
-			
-			    params.setConnectionTimeout(timeout);
-			    params.setSoTimeout(timeout);
-			    httpClient.getHttpConnectionManager().setParams(params);
-			
-			    int allowedImports = Policy.DEFAULT_MAX_STYLESHEET_IMPORTS;
-			    try {
-				allowedImports = Integer.parseInt(policy
-					.getDirective("maxStyleSheetImports"));
-			    } catch (NumberFormatException nfe) {
-			    }
-			
-			    while (!stylesheets.isEmpty()) {
-			
-				URI stylesheetUri = (URI) stylesheets.removeFirst();
-			
+	protected void parseImportedStylesheets(LinkedList<URI> stylesheets, CssHandler handler,
+			List<String> errorMessages, int sizeLimit) throws ScanException {
+
+		// if stylesheets were imported by the inline style declaration,
+		// continue parsing the nested styles. Note this only happens
+		// if CSS importing was enabled in the policy file
+		if (stylesheets.isEmpty()) {
+			return;
+		}
+
+		int timeout = getIntDirective(Policy.CONNECTION_TIMEOUT, DEFAULT_TIMEOUT);
+		int allowedImports = getIntDirective("maxStyleSheetImports",
+				Policy.DEFAULT_MAX_STYLESHEET_IMPORTS);
+		int importedStylesheets = 0;
+
+		while (!stylesheets.isEmpty()) {
+
+			// take all the imports queued so far; the ones nested in these
+			// are queued again while parsing and make up the next round
+			List<Import> round = new ArrayList<Import>();
+			while (!stylesheets.isEmpty()) {
+				URI stylesheetUri = stylesheets.removeFirst();
+
 				if (++importedStylesheets > allowedImports) {
-				    errorMessages.add(ErrorMessageUtil.getMessage(
-				    	messages,
-					    ErrorMessageUtil.ERROR_CSS_IMPORT_EXCEEDED,
-					    new Object[] {
-						    HTMLEntityEncoder
-							    .htmlEntityEncode(stylesheetUri
-								    .toString()),
-						    String.valueOf(allowedImports) }));
-				    continue;
+					addError(errorMessages, ErrorMessageUtil.ERROR_CSS_IMPORT_EXCEEDED,
+							new Object[] {
+								ErrorMessageUtil.encoded(stylesheetUri.toString()),
+								String.valueOf(allowedImports) });
+					continue;
 				}
-			
-				GetMethod stylesheetRequest = new GetMethod(stylesheetUri
-					.toString());
-			
-				byte[] stylesheet = null;
-				try {
-				    // pull down stylesheet, observing size limit
-				    httpClient.executeMethod(stylesheetRequest);
-				    stylesheet = stylesheetRequest.getResponseBody(sizeLimit);
-				} catch (HttpContentTooLargeException hctle) {
-				    errorMessages
-					    .add(ErrorMessageUtil
-						    .getMessage(
-						    	messages,
-							    ErrorMessageUtil.ERROR_CSS_IMPORT_INPUT_SIZE,
-							    new Object[] {
-								    HTMLEntityEncoder
-									    .htmlEntityEncode(stylesheetUri
-										    .toString()),
-								    String.valueOf(policy
-									    .getMaxInputSize()) }));
-				} catch (IOException ioe) {
-				    errorMessages.add(ErrorMessageUtil
-					    .getMessage(
-					    	messages,
-						    ErrorMessageUtil.ERROR_CSS_IMPORT_FAILURE,
-						    new Object[] { HTMLEntityEncoder
-							    .htmlEntityEncode(stylesheetUri
-								    .toString()) }));
-				} finally {
-				    stylesheetRequest.releaseConnection();
+				round.add(new Import(stylesheetUri));
+			}
+
+			try {
+				startFetches(round, sizeLimit, timeout);
+				for (Import imported : round) {
+					sizeLimit -= parseImport(imported, stylesheets, handler,
+							errorMessages, sizeLimit, timeout);
+				}
+			} finally {
+				for (Import imported : round) {
+					imported.discard();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks the imports up in the cache and starts fetching the others in
+	 * the background, unless there is only one to fetch.
+	 */
+	private void startFetches(List<Import> round, final int sizeLimit, final int timeout) {
+		List<Import> misses = new ArrayList<Import>(round.size());
+		for (Import imported : round) {
+			if (cache != null) {
+				imported.cached = cache.get(cacheKey(imported.uri));
+			}
+			if (imported.cached == null) {
+				misses.add(imported);
+			}
+		}
+		if (misses.size() < 2) {
+			return;
+		}
+		for (final Import imported : misses) {
+			imported.fetch = FetchExecutor.INSTANCE.submit(new Callable<Reader>() {
+				public Reader call() throws IOException {
+					return read(imported.uri, Math.max(sizeLimit, 0), timeout);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads a stylesheet fetched in the background into memory, so that the
+	 * fetcher's connection is released before the stylesheet waits for its
+	 * turn to be parsed, rather than holding up the fetches of the others.
+	 */
+	private Reader read(URI uri, int sizeLimit, int timeout) throws IOException {
+		Reader reader = fetcher.fetch(uri, sizeLimit, timeout);
+		try {
+			StringBuilder css = new StringBuilder();
+			char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				css.append(buffer, 0, n);
+				if (css.length() > sizeLimit) {
+					throw new StylesheetTooLargeException(uri + " is larger than " + sizeLimit);
+				}
+			}
+			return new StringReader(css.toString());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Validates one imported stylesheet into the handler.
+	 * 
+	 * @return the number of characters of the stylesheet, to be taken off
+	 *         the size limit
+	 */
+	private int parseImport(Import imported, LinkedList<URI> stylesheets, CssHandler handler,
+			List<String> errorMessages, int sizeLimit, int timeout) throws ScanException {
+
+		StylesheetCache.Entry cached = imported.cached;
+		if (cached != null) {
+			if (cached.size > sizeLimit) {
+				addSizeError(errorMessages, imported.uri);
+				return 0;
+			}
+			handler.appendClean(cached.cleanCss);
+			errorMessages.addAll(cached.errorMessages);
+			stylesheets.addAll(cached.imports);
+			return cached.size;
+		}
+
+		ImportReader reader;
+		try {
+			reader = new ImportReader(imported.open(fetcher, sizeLimit, timeout), sizeLimit);
+		} catch (StylesheetTooLargeException stle) {
+			addSizeError(errorMessages, imported.uri);
+			return 0;
+		} catch (IOException ioe) {
+			addFailureError(errorMessages, imported.uri);
+			return 0;
+		}
+
+		int cleanStart = handler.getCleanLength();
+		int errorStart = errorMessages.size();
+		int importStart = stylesheets.size();
+		boolean parsed = false;
+		try {
+			parser.parseStyleSheet(new InputSource(reader));
+			parsed = reader.failure == null;
+		} catch (IOException ioe) {
+			// reported below
+		} catch (ParseException pe) {
+			// reported below
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException ioe) {
+				// the stylesheet was read, releasing the connection failed
+			}
+		}
+
+		if (!parsed) {
+			// take back whatever the stylesheet produced before it failed
+			handler.truncate(cleanStart);
+			errorMessages.subList(errorStart, errorMessages.size()).clear();
+			stylesheets.subList(importStart, stylesheets.size()).clear();
+			if (reader.failure instanceof StylesheetTooLargeException) {
+				addSizeError(errorMessages, imported.uri);
+			} else {
+				addFailureError(errorMessages, imported.uri);
+			}
+			return 0;
+		}
+
+		if (cache != null) {
+			List<String> errors;
+			if (errorMessages instanceof ErrorMessageList) {
+				errors = new ErrorMessageList((ErrorMessageList) errorMessages, errorStart);
+			} else {
+				errors = new ArrayList<String>(errorMessages.subList(errorStart, errorMessages.size()));
+			}
+			List<URI> nested = new ArrayList<URI>(stylesheets.subList(importStart, stylesheets.size()));
+			cache.put(cacheKey(imported.uri), handler.getCleanStylesheet(cleanStart), errors, nested,
+					reader.count);
+		}
+		return reader.count;
+	}
+
+	private String cacheKey(URI uri) {
+		return policy.getFingerprint() + '/' + messages.getLocale() + '/' + uri;
+	}
+
+	private int getIntDirective(String name, int defaultValue) {
+		try {
+			return Integer.parseInt(policy.getDirective(name));
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	private void addSizeError(List<String> errorMessages, URI uri) {
+		addError(errorMessages, ErrorMessageUtil.ERROR_CSS_IMPORT_INPUT_SIZE,
+				new Object[] {
+					ErrorMessageUtil.encoded(uri.toString()),
+					String.valueOf(policy.getMaxInputSize()) });
+	}
+
+	private void addFailureError(List<String> errorMessages, URI uri) {
+		addError(errorMessages, ErrorMessageUtil.ERROR_CSS_IMPORT_FAILURE,
+				new Object[] { ErrorMessageUtil.encoded(uri.toString()) });
+	}
+
+	private void addError(List<String> errorMessages, String errorKey, Object[] arguments) {
+		if (errorMessages instanceof ErrorMessageList) {
+			((ErrorMessageList) errorMessages).add(errorKey, arguments);
+		} else {
+			errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, arguments));
+		}
+	}
+
+	/**
+	 * An imported stylesheet of the current round: either found in the
+	 * cache, being fetched in the background, or fetched when parsed.
+	 */
+	private static final class Import {
+		final URI uri;
+		StylesheetCache.Entry cached;
+		Future<Reader> fetch;
+		boolean opened;
+
+		Import(URI uri) {
+			this.uri = uri;
+		}
+
+		Reader open(StylesheetFetcher fetcher, int sizeLimit, int timeout) throws IOException {
+			opened = true;
+			if (fetch == null) {
+				return fetcher.fetch(uri, Math.max(sizeLimit, 0), timeout);
+			}
+			try {
+				return fetch.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while fetching " + uri);
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof IOException) {
+					throw (IOException) ee.getCause();
 				}
-			
-				if (stylesheet != null) {
-				    // decrease the size limit based on the
-				    sizeLimit -= stylesheet.length;
-			
-				    try {
-					InputSource nextStyleSheet = new InputSource(
-						new InputStreamReader(new ByteArrayInputStream(
-							stylesheet)));
-					parser.parseStyleSheet(nextStyleSheet);
-			
-				    } catch (IOException ioe) {
-					throw new ScanException(ioe);
-				    }
-			
+				throw new IOException("Failed to fetch " + uri + ": " + ee.getCause());
+			}
+		}
+
+		/**
+		 * Releases a background fetch that was never parsed, when the scan
+		 * failed part way through the round.
+		 */
+		void discard() {
+			if (fetch == null || opened) {
+				return;
+			}
+			// a fetch already running still hands back a reader to close
+			if (!fetch.cancel(false)) {
+				try {
+					fetch.get().close();
+				} catch (Exception e) {
+					// nothing left to release
 				}
-			    }
 			}
+		}
+	}
+
+	/**
+	 * Counts the characters the parser reads against the size limit, and
+	 * remembers read failures the parser may not pass on.
+	 */
+	private static final class ImportReader extends FilterReader {
+		private final int limit;
+		int count;
+		IOException failure;
+
+		ImportReader(Reader in, int limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		public int read() throws IOException {
+			char[] c = new char[1];
+			return read(c, 0, 1) == -1 ? -1 : c[0];
+		}
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n;
+			try {
+				n = super.read(cbuf, off, len);
+			} catch (IOException ioe) {
+				failure = ioe;
+				throw ioe;
 			}
+			if (n > 0) {
+				count += n;
+				if (count > limit) {
+					failure = new StylesheetTooLargeException("Imported stylesheets are larger than " + limit);
+					throw failure;
+				}
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			char[] skipped = new char[(int) Math.min(n, 512)];
+			int read = read(skipped, 0, skipped.length);
+			return read == -1 ? 0 : read;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * The default fetcher, created on first use.
+	 */
+	private static class SharedFetcher {
+		static final StylesheetFetcher INSTANCE = new HttpStylesheetFetcher();
+	}
+
+	/**
+	 * Runs the background fetches of all scanners, created on first use.
+	 * When all its threads are busy, the scanning thread fetches the import
+	 * itself.
+	 */
+	private static class FetchExecutor {
+		static final int MAX_THREADS = 32;
 
+		static final ExecutorService INSTANCE = new ThreadPoolExecutor(0, MAX_THREADS,
+				60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AntiSamy-importFetch");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, 
+ * 	 this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of OWASP nor the names of its contributors may be used to
+ *   endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * Fetches imported stylesheets over HTTP through one pool of connections,
+ * shared by every scan that uses this fetcher. The response is not buffered:
+ * the returned reader decodes the body as the CSS parser consumes it, and the
+ * connection goes back to the pool when the reader is closed.
+ * <p>
+ * Only <code>200 OK</code> responses are accepted. Responses that declare or
+ * turn out to have a body larger than the allowed size are aborted.
+ */
+public class HttpStylesheetFetcher implements StylesheetFetcher {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private final MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+
+    public HttpStylesheetFetcher() {
+	this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnectionsPerHost
+     *                the most connections kept open to any one host
+     * @param maxConnections
+     *                the most connections kept open in total
+     */
+    public HttpStylesheetFetcher(int maxConnectionsPerHost, int maxConnections) {
+	HttpConnectionManagerParams params = connections.getParams();
+	params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+	params.setMaxTotalConnections(maxConnections);
+    }
+
+    public Reader fetch(URI uri, int maxBytes, int timeout) throws IOException {
+	// Ensure that we have appropriate timeout values so we don't get DoSed
+	// waiting for returns, including for a free connection of the pool.
+	// They are set for this request only, as the pool is shared by the
+	// scans of policies that may have different timeouts.
+	HttpClient httpClient = new HttpClient(connections);
+	httpClient.getParams().setConnectionManagerTimeout(timeout);
+
+	HostConfiguration host = new HostConfiguration();
+	host.setHost(uri.getHost(), uri.getPort(), protocol(uri, timeout));
+
+	String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+	if (uri.getRawQuery() != null) {
+	    path += "?" + uri.getRawQuery();
+	}
+	final GetMethod request = new GetMethod(path);
+	request.getParams().setSoTimeout(timeout);
+
+	boolean streaming = false;
+	try {
+	    int status = httpClient.executeMethod(host, request);
+	    if (status != HttpStatus.SC_OK) {
+		throw new IOException("Unexpected response status " + status + " for " + uri);
+	    }
+	    if (request.getResponseContentLength() > maxBytes) {
+		throw new StylesheetTooLargeException(uri + " is larger than " + maxBytes + " bytes");
+	    }
+
+	    InputStream body = request.getResponseBodyAsStream();
+	    if (body == null) {
+		body = new ByteArrayInputStream(new byte[0]);
+	    }
+	    final LimitedInputStream limited = new LimitedInputStream(body, uri, maxBytes);
+	    Reader reader = new InputStreamReader(limited, charset(request)) {
+		public void close() throws IOException {
+		    try {
+			if (!limited.isExhausted()) {
+			    // don't drain the rest of a body nobody wants
+			    request.abort();
+			}
+		    } finally {
+			request.releaseConnection();
+		    }
+		}
+	    };
+	    streaming = true;
+	    return reader;
+	} finally {
+	    if (!streaming) {
+		request.abort();
+		request.releaseConnection();
+	    }
+	}
+    }
+
+    /**
+     * Closes the pooled connections; the fetcher can't be used afterwards.
+     */
+    public void shutdown() {
+	connections.shutdown();
+    }
+
+    /**
+     * @return The protocol of the URI, with the timeout for opening new
+     *         connections. Connections are pooled per protocol, so requests
+     *         with the same timeout share them.
+     */
+    private static Protocol protocol(URI uri, int timeout) throws IOException {
+	Protocol protocol;
+	try {
+	    protocol = Protocol.getProtocol(uri.getScheme());
+	} catch (IllegalStateException ise) {
+	    throw new IOException("Unsupported protocol " + uri.getScheme() + " for " + uri);
+	}
+	ProtocolSocketFactory sockets = protocol.getSocketFactory();
+	if (sockets instanceof SecureProtocolSocketFactory) {
+	    sockets = new SecureTimeoutSocketFactory((SecureProtocolSocketFactory) sockets, timeout);
+	} else {
+	    sockets = new TimeoutSocketFactory(sockets, timeout);
+	}
+	return new Protocol(protocol.getScheme(), sockets, protocol.getDefaultPort());
+    }
+
+    /**
+     * @return The charset declared by the <code>Content-Type</code> of the
+     *         response if it is supported, otherwise UTF-8.
+     */
+    private static String charset(GetMethod request) {
+	Header contentType = request.getResponseHeader("Content-Type");
+	if (contentType != null) {
+	    HeaderElement[] elements = contentType.getElements();
+	    if (elements.length > 0) {
+		NameValuePair charset = elements[0].getParameterByName("charset");
+		if (charset != null && charset.getValue() != null) {
+		    try {
+			if (Charset.isSupported(charset.getValue())) {
+			    return charset.getValue();
+			}
+		    } catch (IllegalArgumentException iae) {
+			// illegal charset name, use the default
+		    }
+		}
+	    }
+	}
+	return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Opens sockets with a given connect timeout, instead of the one of the
+     * connection manager.
+     */
+    private static class TimeoutSocketFactory implements ProtocolSocketFactory {
+	final ProtocolSocketFactory sockets;
+	final int timeout;
+
+	TimeoutSocketFactory(ProtocolSocketFactory sockets, int timeout) {
+	    this.sockets = sockets;
+	    this.timeout = timeout;
+	}
+
+	public Socket createSocket(String host, int port) throws IOException {
+	    return sockets.createSocket(host, port);
+	}
+
+	public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+		throws IOException {
+	    return sockets.createSocket(host, port, localAddress, localPort);
+	}
+
+	public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+		HttpConnectionParams params) throws IOException {
+	    HttpConnectionParams timed = new HttpConnectionParams();
+	    timed.setDefaults(params);
+	    timed.setConnectionTimeout(timeout);
+	    return sockets.createSocket(host, port, localAddress, localPort, timed);
+	}
+
+	public boolean equals(Object obj) {
+	    if (obj == null || obj.getClass() != getClass()) {
+		return false;
+	    }
+	    TimeoutSocketFactory other = (TimeoutSocketFactory) obj;
+	    return timeout == other.timeout && sockets.equals(other.sockets);
+	}
+
+	public int hashCode() {
+	    return 31 * sockets.hashCode() + timeout;
+	}
+    }
+
+    private static final class SecureTimeoutSocketFactory extends TimeoutSocketFactory implements
+	    SecureProtocolSocketFactory {
+
+	SecureTimeoutSocketFactory(SecureProtocolSocketFactory sockets, int timeout) {
+	    super(sockets, timeout);
+	}
+
+	public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+	    return ((SecureProtocolSocketFactory) sockets).createSocket(socket, host, port, autoClose);
+	}
+    }
+
+    /**
+     * Fails reads once more than the allowed number of bytes came through,
+     * for bodies without or with a wrong <code>Content-Length</code>.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+	private final URI uri;
+	private final long maxBytes;
+	private long count;
+	private boolean exhausted;
+
+	LimitedInputStream(InputStream in, URI uri, long maxBytes) {
+	    super(in);
+	    this.uri = uri;
+	    this.maxBytes = maxBytes;
+	}
+
+	boolean isExhausted() {
+	    return exhausted;
+	}
+
+	public int read() throws IOException {
+	    int b = super.read();
+	    counted(b == -1 ? -1 : 1);
+	    return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    int n = super.read(b, off, len);
+	    counted(n);
+	    return n;
+	}
+
+	public long skip(long n) throws IOException {
+	    long skipped = super.skip(n);
+	    count += skipped;
+	    counted(0);
+	    return skipped;
+	}
+
+	public boolean markSupported() {
+	    return false;
+	}
+
+	private void counted(long n) throws IOException {
+	    if (n == -1) {
+		exhausted = true;
+		return;
+	    }
+	    count += n;
+	    if (count > maxBytes) {
+		throw new StylesheetTooLargeException(uri + " is larger than " + maxBytes + " bytes");
+	    }
+	}
+    }
+}
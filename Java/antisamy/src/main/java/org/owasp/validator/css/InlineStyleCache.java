@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, 
+ * 	 this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of OWASP nor the names of its contributors may be used to
+ *   endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.CleanResults.ScanPath;
+import org.owasp.validator.html.util.BoundedCache;
+import org.owasp.validator.html.util.ErrorMessageList;
+
+/**
+ * Remembers the results of recent inline style scans of one policy, keyed by
+ * tag name and style declaration, so that the identical <code>style</code>
+ * attributes rich text editors put on element after element are only parsed
+ * once. Error messages are kept unrendered. Only declarations up to a maximum
+ * length are cached, so attacker supplied styles can't fill the cache with
+ * large strings.
+ * <p>
+ * Instances are thread safe. A policy has one when its
+ * <code>inlineStyleCacheSize</code> directive is positive.
+ *
+ * @see org.owasp.validator.html.InternalPolicy#getInlineStyleCache()
+ */
+public final class InlineStyleCache {
+
+    private final BoundedCache<Key, Entry> cache;
+    private final int maxLength;
+
+    /**
+     * @param maxSize   The maximum number of cached declarations.
+     * @param maxLength The longest declaration the cache will hold.
+     */
+    public InlineStyleCache(int maxSize, int maxLength) {
+        this.cache = new BoundedCache<Key, Entry>(maxSize);
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return A copy of the cached results of scanning <code>css</code> as the
+     *         style of a <code>tagName</code> element, or null.
+     */
+    CleanResults get(String tagName, String css) {
+        if (css.length() > maxLength) {
+            return null;
+        }
+        long startOfScan = System.currentTimeMillis();
+        Entry entry = cache.get(new Key(tagName, css));
+        if (entry == null) {
+            return null;
+        }
+        return new CleanResults(startOfScan, entry.cleanStyle, null, copy(entry.errorMessages), ScanPath.CACHED);
+    }
+
+    void put(String tagName, String css, CleanResults results) {
+        if (css.length() <= maxLength) {
+            cache.put(new Key(tagName, css), new Entry(results.getCleanHTML(), copy(results.getErrorMessages())));
+        }
+    }
+
+    private static List<String> copy(List<String> errorMessages) {
+        if (errorMessages instanceof ErrorMessageList) {
+            return new ErrorMessageList((ErrorMessageList) errorMessages);
+        }
+        return new ArrayList<String>(errorMessages);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return The number of cacheable declarations that had to be scanned.
+     */
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * @return The share of cacheable declarations answered from the cache,
+     *         or 0 if there were none yet.
+     */
+    public double getHitRatio() {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static final class Key {
+        private final String tagName;
+        private final String css;
+        private final int hash;
+
+        Key(String tagName, String css) {
+            this.tagName = tagName;
+            this.css = css;
+            this.hash = 31 * (tagName == null ? 0 : tagName.hashCode()) + css.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && css.equals(other.css)
+                    && (tagName == null ? other.tagName == null : tagName.equals(other.tagName));
+        }
+    }
+
+    private static final class Entry {
+        final String cleanStyle;
+        final List<String> errorMessages;
+
+        Entry(String cleanStyle, List<String> errorMessages) {
+            this.cleanStyle = cleanStyle;
+            this.errorMessages = errorMessages;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, 
+ * 	 this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of OWASP nor the names of its contributors may be used to
+ *   endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers imported stylesheets after they were fetched and validated, so
+ * documents importing the same stylesheet don't fetch and parse it again.
+ * An entry holds the clean CSS, the errors and the nested imports the
+ * stylesheet produced, and is keyed by the policy fingerprint, the message
+ * locale and the stylesheet URI.
+ * <p>
+ * Entries expire a fixed time after they were fetched, and are evicted least
+ * recently used first when either the number of entries or their total weight
+ * (roughly the characters held) goes over its limit. Instances are thread safe
+ * and are shared by all scans.
+ * 
+ * @see ExternalCssScanner#setStylesheetCache(StylesheetCache)
+ */
+public class StylesheetCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final long DEFAULT_MAX_WEIGHT = 1024 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    /**
+     * The weight charged for each error message and nested import.
+     */
+    private static final int ITEM_WEIGHT = 64;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long timeToLive;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StylesheetCache() {
+	this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maxEntries The maximum number of cached stylesheets.
+     * @param maxWeight  The maximum total weight of the cached stylesheets,
+     *                   about the number of characters of clean CSS held.
+     * @param timeToLive The number of milliseconds a stylesheet is reused
+     *                   before it is fetched again.
+     */
+    public StylesheetCache(int maxEntries, long maxWeight, long timeToLive) {
+	if (maxEntries < 1 || maxWeight < 1 || timeToLive < 1) {
+	    throw new IllegalArgumentException("Cache limits must be positive");
+	}
+	this.maxEntries = maxEntries;
+	this.maxWeight = maxWeight;
+	this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return The unexpired entry for <code>key</code>, or null.
+     */
+    synchronized Entry get(String key) {
+	Entry entry = entries.get(key);
+	if (entry != null && entry.expires - System.currentTimeMillis() <= 0) {
+	    entries.remove(key);
+	    weight -= entry.weight;
+	    evictions++;
+	    entry = null;
+	}
+	if (entry == null) {
+	    misses++;
+	} else {
+	    hits++;
+	}
+	return entry;
+    }
+
+    void put(String key, String cleanCss, List<String> errorMessages, List<URI> imports, int size) {
+	long entryWeight = cleanCss.length() + (long) (errorMessages.size() + imports.size()) * ITEM_WEIGHT;
+	if (entryWeight > maxWeight) {
+	    return;
+	}
+	Entry entry = new Entry(cleanCss, errorMessages, imports, size,
+		System.currentTimeMillis() + timeToLive, entryWeight);
+
+	synchronized (this) {
+	    Entry previous = entries.put(key, entry);
+	    if (previous != null) {
+		weight -= previous.weight;
+	    }
+	    weight += entryWeight;
+
+	    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+	    while (entries.size() > maxEntries || weight > maxWeight) {
+		weight -= eldest.next().getValue().weight;
+		eldest.remove();
+		evictions++;
+	    }
+	}
+    }
+
+    public synchronized void clear() {
+	entries.clear();
+	weight = 0;
+    }
+
+    public synchronized int size() {
+	return entries.size();
+    }
+
+    public synchronized long getWeight() {
+	return weight;
+    }
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    /**
+     * @return The share of lookups answered from the cache, or 0 if there
+     *         were none yet.
+     */
+    public synchronized double getHitRatio() {
+	long lookups = hits + misses;
+	return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    static final class Entry {
+	final String cleanCss;
+	final List<String> errorMessages;
+	final List<URI> imports;
+	final int size;
+	final long expires;
+	final long weight;
+
+	Entry(String cleanCss, List<String> errorMessages, List<URI> imports, int size, long expires, long weight) {
+	    this.cleanCss = cleanCss;
+	    this.errorMessages = errorMessages;
+	    this.imports = imports;
+	    this.size = size;
+	    this.expires = expires;
+	    this.weight = weight;
+	}
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, 
+ * 	 this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of OWASP nor the names of its contributors may be used to
+ *   endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+
+/**
+ * Retrieves the stylesheets named by <code>@import</code> rules when the
+ * policy embeds imported stylesheets. The default implementation is
+ * {@link HttpStylesheetFetcher}; another one can be installed with
+ * {@link ExternalCssScanner#setStylesheetFetcher(StylesheetFetcher)}, for
+ * example to serve stylesheets from a local copy.
+ * <p>
+ * Implementations must be thread safe, the imports of a stylesheet are
+ * fetched in parallel.
+ */
+public interface StylesheetFetcher {
+
+    /**
+     * Opens the stylesheet at <code>uri</code> for reading. The returned
+     * reader is closed by the caller, and should decode the stylesheet with
+     * the charset it was served with, or UTF-8.
+     * 
+     * @param uri
+     *                the absolute URI of the stylesheet
+     * @param maxBytes
+     *                the most bytes that may be read for the stylesheet;
+     *                reading more must fail with a
+     *                <code>StylesheetTooLargeException</code>
+     * @param timeout
+     *                the connection and read timeout in milliseconds
+     * @return a reader over the stylesheet
+     * @throws StylesheetTooLargeException
+     *                 if the stylesheet is larger than <code>maxBytes</code>
+     * @throws IOException
+     *                 if the stylesheet cannot be retrieved
+     */
+    Reader fetch(URI uri, int maxBytes, int timeout) throws IOException;
+}
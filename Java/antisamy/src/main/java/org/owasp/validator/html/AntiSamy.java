@@ -24,10 +24,18 @@
 
 package org.owasp.validator.html;
 
+import org.owasp.validator.html.scan.AbstractAntiSamyScanner;
+import org.owasp.validator.html.scan.AntiSamyBatchScanner;
 import org.owasp.validator.html.scan.AntiSamyDOMScanner;
 import org.owasp.validator.html.scan.AntiSamySAXScanner;
 
 import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 
@@ -46,6 +54,9 @@ public class AntiSamy {
 	public static int SAX = 1;
 
 	private Policy policy = null;
+	private ExecutorService executorService = null;
+	private ScanResultCache resultCache = null;
+	private ScanListener scanListener = null;
 
 	public AntiSamy() {
 	}
@@ -90,35 +101,170 @@ public CleanResults scan(String taintedHTML, int scanType) throws ScanException,
 	 * This method wraps <code>scan()</code> using the Policy object passed in.
 	 */
 	public CleanResults scan(String taintedHTML, Policy policy) throws ScanException, PolicyException {
-		return new AntiSamyDOMScanner(policy).scan(taintedHTML);
+		return this.scan(taintedHTML, policy, DOM);
 	}
 
 	public CleanResults scan(String taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
 
+		ScanListener listener = scanListener;
+		long start = listener != null ? System.nanoTime() : 0;
+		ScanMetrics metrics = listener != null ? new ScanMetrics(scanType) : null;
+
+		AbstractAntiSamyScanner scanner;
 		if (scanType == DOM) {
-			return new AntiSamyDOMScanner(policy).scan(taintedHTML);
+			scanner = new AntiSamyDOMScanner(policy);
 		} else {
-			return new AntiSamySAXScanner(policy).scan(taintedHTML);
+			scanner = new AntiSamySAXScanner(policy);
+		}
+		scanner.setMetrics(metrics);
+		ScanResultCache cache = resultCache;
+		if (cache != null) {
+			scanner.setResultStore(cache.store(policy, scanType));
 		}
+		CleanResults results = scanner.scan(taintedHTML);
+
+		if (listener != null) {
+			completed(listener, metrics, start, results);
+		}
+		return results;
+	}
+
+	private static void completed(ScanListener listener, ScanMetrics metrics, long start, CleanResults results) {
+		metrics.setTotalTime(System.nanoTime() - start);
+		metrics.setScanPath(results.getScanPath());
+		listener.scanCompleted(metrics);
 	}
 
 	/**
-	 * This method wraps <code>scan()</code> using the Policy object passed in.
+	 * Streaming variant of <code>scan()</code>. The untrusted HTML is read
+	 * from <code>reader</code> and the clean HTML is written straight to
+	 * <code>writer</code> by the SAX engine, so neither has to be held in
+	 * memory as a <code>String</code>. The policy's <code>maxInputSize</code>
+	 * is enforced on the characters actually read.
+	 *
+	 * @param reader
+	 *            Untrusted HTML which may contain malicious code.
+	 * @param writer
+	 *            The sink for the clean HTML. It is not closed by this method.
+	 * @return A <code>CleanResults</code> object holding the error messages
+	 *         of the scan; its <code>getCleanHTML()</code> returns null.
+	 * @throws ScanException When the input is too large or there is a problem
+	 *         encountered while scanning the HTML. Part of the output may
+	 *         already have been written to <code>writer</code>.
+	 * @throws PolicyException When there is a problem with the policy.
+	 */
+	public CleanResults scan(Reader reader, Writer writer, Policy policy) throws ScanException, PolicyException {
+		ScanListener listener = scanListener;
+		if (listener == null) {
+			return new AntiSamySAXScanner(policy).scan(reader, writer);
+		}
+		long start = System.nanoTime();
+		ScanMetrics metrics = new ScanMetrics(SAX);
+		AntiSamySAXScanner scanner = new AntiSamySAXScanner(policy);
+		scanner.setMetrics(metrics);
+		CleanResults results = scanner.scan(reader, writer);
+		completed(listener, metrics, start, results);
+		return results;
+	}
+
+	/**
+	 * Scans a batch of untrusted HTML with the SAX engine, spreading the work
+	 * over the executor set with <code>setExecutorService()</code>, or over a
+	 * shared pool with one daemon thread per processor if none was set.
+	 * Identical inputs within the batch are scanned only once.
+	 *
+	 * @param taintedHTML
+	 *            The untrusted HTML to scan.
+	 * @return One <code>CleanResults</code> per input, in input order.
+	 *         Identical inputs share the same <code>CleanResults</code>.
+	 * @throws ScanException When any of the inputs fails to scan.
+	 * @throws PolicyException When there is a problem with the policy.
+	 */
+	public List<CleanResults> scanAll(List<String> taintedHTML, Policy policy) throws ScanException, PolicyException {
+		ExecutorService executor = executorService != null ? executorService : SharedExecutor.INSTANCE;
+		return new AntiSamyBatchScanner(policy, executor, scanListener).scanAll(taintedHTML);
+	}
+
+	/**
+	 * Sets the executor <code>scanAll()</code> runs on. The executor is not
+	 * shut down by AntiSamy.
+	 *
+	 * @param executorService
+	 *            The executor to use, or null for the shared default pool.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Sets a cache for the results of <code>scan()</code> on
+	 * <code>String</code> input, so input seen before with the same policy
+	 * isn't scanned again. Results served from the cache report
+	 * {@link CleanResults.ScanPath#CACHED}.
+	 *
+	 * @param resultCache
+	 *            The cache to use, which may be shared with other
+	 *            <code>AntiSamy</code> instances, or null for none.
+	 */
+	public void setResultCache(ScanResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public ScanResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Sets a listener that receives the per-phase timings and counters of
+	 * every scan, for example a {@link HistogramScanListener}. Without a
+	 * listener the scanners don't record anything.
+	 *
+	 * @param scanListener
+	 *            The listener to use, which may be shared with other
+	 *            <code>AntiSamy</code> instances, or null for none.
+	 */
+	public void setScanListener(ScanListener scanListener) {
+		this.scanListener = scanListener;
+	}
+
+	public ScanListener getScanListener() {
+		return scanListener;
+	}
+
+	/**
+	 * The default executor for <code>scanAll()</code>, created on first use.
+	 */
+	private static class SharedExecutor {
+		static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AntiSamy-scanAll");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * This method wraps <code>scan()</code> using the policy file passed in.
+	 * The policy is parsed once and kept by the default
+	 * <code>PolicyRegistry</code>, which reloads it when the file changes.
 	 */
 	public CleanResults scan(String taintedHTML, String filename) throws ScanException, PolicyException {
 
-        Policy policy = Policy.getInstance(filename);
+        Policy policy = PolicyRegistry.getDefault().getPolicy(new File(filename));
 
         return this.scan(taintedHTML, policy);
 	}
 
 	/**
 	 * This method wraps <code>scan()</code> using the policy File object passed
-	 * in.
+	 * in. The policy is parsed once and kept by the default
+	 * <code>PolicyRegistry</code>, which reloads it when the file changes.
 	 */
 	public CleanResults scan(String taintedHTML, File policyFile) throws ScanException, PolicyException {
 
-        Policy policy = Policy.getInstance(policyFile);
+        Policy policy = PolicyRegistry.getDefault().getPolicy(policyFile);
 
         return this.scan(taintedHTML, policy);
 	}
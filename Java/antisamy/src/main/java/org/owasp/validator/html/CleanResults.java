@@ -44,11 +44,27 @@
 
 public class CleanResults {
 
+	/**
+	 * How the clean HTML of a scan was produced.
+	 */
+	public static enum ScanPath {
+		/** The input was parsed, filtered and serialized. */
+		FULL,
+		/** The input had no markup or special characters and was returned as it is. */
+		PLAIN_TEXT,
+		/** The input only had markup the policy accepts unchanged and was returned as it is. */
+		VERBATIM,
+		/** The results of an earlier scan of the same input with the same policy were reused. */
+		CACHED
+	}
+
 	private List<String> errorMessages = new ArrayList<String>();
 	private Callable<String> cleanHTML;
 	private long elapsedScan;
+	private ScanPath scanPath = ScanPath.FULL;
 
 	private DocumentFragment cleanXMLDocumentFragment;
+	private Callable<DocumentFragment> lazyXMLDocumentFragment;
 
 	/*
 	 * For extension.
@@ -77,10 +93,36 @@ public CleanResults(long startOfScan, Callable<String> cleanHTML,
         this.errorMessages = errorMessages;
     }
 
+	/**
+	 * For scans that skipped parsing; the document fragment, if any, is only
+	 * built when it is asked for.
+	 */
+	public CleanResults(long startOfScan, final String cleanHTML,
+			Callable<DocumentFragment> XMLDocumentFragment, List<String> errorMessages, ScanPath scanPath) {
+		this(startOfScan, cleanHTML, (DocumentFragment) null, errorMessages);
+		this.lazyXMLDocumentFragment = XMLDocumentFragment;
+		this.scanPath = scanPath;
+	}
+
 	public DocumentFragment getCleanXMLDocumentFragment() {
+		if (cleanXMLDocumentFragment == null && lazyXMLDocumentFragment != null) {
+			try {
+				cleanXMLDocumentFragment = lazyXMLDocumentFragment.call();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
 		return cleanXMLDocumentFragment;
 	}
 
+	/**
+	 * Return how the clean HTML was produced, to measure how often scans can
+	 * skip parsing.
+	 */
+	public ScanPath getScanPath() {
+		return scanPath;
+	}
+
     /**
 	 * Return the filtered HTML as a String.
 	 * 
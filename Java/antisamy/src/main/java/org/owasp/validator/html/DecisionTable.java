@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.util.BoundedCache;
+
+/**
+ * The tag and attribute rules of a policy, compiled into integer indexed
+ * tables. Every tag name known to the policy gets a tag id and every attribute
+ * name gets an attribute id, so the scanners can resolve a tag's action and
+ * its effective attributes (tag specific rules merged over the global ones)
+ * with a single map lookup per name and plain array accesses afterwards.
+ *
+ * Names are looked up as given first and only lowercased on a miss, which
+ * saves the <code>toLowerCase()</code> call for the common lowercase markup.
+ *
+ * For internal use only, built by <code>InternalPolicy</code>.
+ */
+public final class DecisionTable {
+
+    /**
+     * The id returned for tag and attribute names the policy doesn't know.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * The action a policy defines for a tag.
+     */
+    public static enum Action {
+        VALIDATE, FILTER, TRUNCATE, ENCODE, REMOVE;
+
+        static Action of(String action) {
+            if (Policy.ACTION_VALIDATE.equals(action)) {
+                return VALIDATE;
+            } else if (Policy.ACTION_FILTER.equals(action)) {
+                return FILTER;
+            } else if (Policy.ACTION_TRUNCATE.equals(action)) {
+                return TRUNCATE;
+            } else if ("encode".equals(action)) {
+                return ENCODE;
+            }
+            // any other action removes the tag
+            return REMOVE;
+        }
+    }
+
+    private final Map<String, Integer> tagIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> attributeIds = new HashMap<String, Integer>();
+    private final String[] tagNames;
+    private final Tag[] tags;
+    private final Action[] actions;
+    private final Attribute[][] attributes;
+    private final Attribute[] globalAttributes;
+    private final BitSet allowedEmptyTags = new BitSet();
+    private final BitSet requiresClosingTags = new BitSet();
+    private final List<BoundedCache<String, Boolean>> verdictCaches = new ArrayList<BoundedCache<String, Boolean>>();
+
+    /**
+     * @param verdictCacheSize     If positive, every attribute rule gets a
+     *                             verdict cache of this size.
+     * @param maxCachedValueLength The longest attribute value the verdict
+     *                             caches will hold.
+     */
+    DecisionTable(Map<String, Tag> tagRules, Map<String, Attribute> globalAttributeRules,
+                  TagMatcher allowedEmpty, TagMatcher requiresClosing,
+                  int verdictCacheSize, int maxCachedValueLength) {
+
+        // attribute rules shared between tags share their verdict cache, too
+        Map<Attribute, Attribute> cached = new IdentityHashMap<Attribute, Attribute>();
+
+        List<String> tagNames = new ArrayList<String>();
+        addNames(tagNames, tagIds, tagRules.keySet());
+        addNames(tagNames, tagIds, allowedEmpty.values());
+        addNames(tagNames, tagIds, requiresClosing.values());
+
+        List<String> attributeNames = new ArrayList<String>();
+        addNames(attributeNames, attributeIds, globalAttributeRules.keySet());
+        for (Tag tag : tagRules.values()) {
+            addNames(attributeNames, attributeIds, tag.getAllowedAttributes().keySet());
+        }
+
+        globalAttributes = new Attribute[attributeNames.size()];
+        for (Map.Entry<String, Attribute> entry : globalAttributeRules.entrySet()) {
+            globalAttributes[attributeIds.get(entry.getKey().toLowerCase())] =
+                    withVerdictCache(entry.getValue(), cached, verdictCacheSize, maxCachedValueLength);
+        }
+
+        this.tagNames = tagNames.toArray(new String[tagNames.size()]);
+        tags = new Tag[tagNames.size()];
+        actions = new Action[tagNames.size()];
+        attributes = new Attribute[tagNames.size()][];
+        for (int tagId = 0; tagId < tags.length; tagId++) {
+            Tag tag = tagRules.get(tagNames.get(tagId));
+            tags[tagId] = tag;
+            if (tag == null || tag.getAllowedAttributes().isEmpty()) {
+                attributes[tagId] = globalAttributes;
+            } else {
+                Attribute[] effective = globalAttributes.clone();
+                for (Map.Entry<String, Attribute> entry : tag.getAllowedAttributes().entrySet()) {
+                    effective[attributeIds.get(entry.getKey().toLowerCase())] =
+                            withVerdictCache(entry.getValue(), cached, verdictCacheSize, maxCachedValueLength);
+                }
+                attributes[tagId] = effective;
+            }
+            actions[tagId] = tag != null ? Action.of(tag.getAction()) : null;
+            allowedEmptyTags.set(tagId, allowedEmpty.matches(tagNames.get(tagId)));
+            requiresClosingTags.set(tagId, requiresClosing.matches(tagNames.get(tagId)));
+        }
+    }
+
+    private Attribute withVerdictCache(Attribute attribute, Map<Attribute, Attribute> cached,
+                                       int verdictCacheSize, int maxCachedValueLength) {
+        if (verdictCacheSize <= 0) {
+            return attribute;
+        }
+        Attribute withCache = cached.get(attribute);
+        if (withCache == null) {
+            withCache = attribute.withVerdictCache(verdictCacheSize, maxCachedValueLength);
+            cached.put(attribute, withCache);
+            verdictCaches.add(withCache.getVerdictCache());
+        }
+        return withCache;
+    }
+
+    private static void addNames(List<String> names, Map<String, Integer> ids, Iterable<String> toAdd) {
+        for (String name : toAdd) {
+            String lowercase = name.toLowerCase();
+            if (!ids.containsKey(lowercase)) {
+                ids.put(lowercase, names.size());
+                names.add(lowercase);
+            }
+        }
+    }
+
+    private static int lookup(Map<String, Integer> ids, String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            String lowercase = name.toLowerCase();
+            if (lowercase != name) {
+                id = ids.get(lowercase);
+            }
+        }
+        return id != null ? id : UNKNOWN;
+    }
+
+    /**
+     * @param tagName The tag name, in any case.
+     * @return The id of the tag or <code>UNKNOWN</code>.
+     */
+    public int getTagId(String tagName) {
+        return lookup(tagIds, tagName);
+    }
+
+    /**
+     * @return The number of tag ids, which run from 0 to this number less one.
+     */
+    public int getTagCount() {
+        return tagNames.length;
+    }
+
+    /**
+     * @param tagId A tag id.
+     * @return The lowercase name of the tag.
+     */
+    public String getTagName(int tagId) {
+        return tagNames[tagId];
+    }
+
+    /**
+     * @param tagId A tag id or <code>UNKNOWN</code>.
+     * @return The tag rule, or null if the policy has no rule for the tag.
+     */
+    public Tag getTag(int tagId) {
+        return tagId == UNKNOWN ? null : tags[tagId];
+    }
+
+    /**
+     * @param tagId A tag id or <code>UNKNOWN</code>.
+     * @return The action for the tag, or null if the policy has no rule for the tag.
+     */
+    public Action getAction(int tagId) {
+        return tagId == UNKNOWN ? null : actions[tagId];
+    }
+
+    /**
+     * Looks up the rule for an attribute of a tag. The rules of the tag take
+     * precedence over the global attributes.
+     *
+     * @param tagId         A tag id or <code>UNKNOWN</code>, in which case only
+     *                      global attributes are considered.
+     * @param attributeName The attribute name, in any case.
+     * @return The attribute rule, or null if the attribute isn't allowed.
+     */
+    public Attribute getAttribute(int tagId, String attributeName) {
+        int attributeId = lookup(attributeIds, attributeName);
+        if (attributeId == UNKNOWN) {
+            return null;
+        }
+        return tagId == UNKNOWN ? globalAttributes[attributeId] : attributes[tagId][attributeId];
+    }
+
+    /**
+     * @param tagId A tag id or <code>UNKNOWN</code>.
+     * @return True if the tag is in the policy's allowed empty tags.
+     */
+    public boolean isAllowedEmptyTag(int tagId) {
+        return tagId != UNKNOWN && allowedEmptyTags.get(tagId);
+    }
+
+    /**
+     * @param tagId A tag id or <code>UNKNOWN</code>.
+     * @return True if the tag is in the policy's tags requiring a closing tag.
+     */
+    public boolean isRequiresClosingTag(int tagId) {
+        return tagId != UNKNOWN && requiresClosingTags.get(tagId);
+    }
+
+    /**
+     * @param tagName The tag name, in any case.
+     * @return True if the tag is in the policy's allowed empty tags.
+     */
+    public boolean isAllowedEmptyTag(String tagName) {
+        int tagId = getTagId(tagName);
+        return tagId != UNKNOWN && allowedEmptyTags.get(tagId);
+    }
+
+    /**
+     * @param tagName The tag name, in any case.
+     * @return True if the tag is in the policy's tags requiring a closing tag.
+     */
+    public boolean isRequiresClosingTag(String tagName) {
+        int tagId = getTagId(tagName);
+        return tagId != UNKNOWN && requiresClosingTags.get(tagId);
+    }
+
+    /**
+     * @return The number of attribute values answered by the verdict caches,
+     *         summed over all attributes of the policy.
+     */
+    public long getVerdictCacheHits() {
+        long hits = 0;
+        for (BoundedCache<String, Boolean> cache : verdictCaches) {
+            hits += cache.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return The number of cacheable attribute values that had to be
+     *         matched, summed over all attributes of the policy.
+     */
+    public long getVerdictCacheMisses() {
+        long misses = 0;
+        for (BoundedCache<String, Boolean> cache : verdictCaches) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html;
+
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.owasp.validator.html.ScanMetrics.Phase;
+
+/**
+ * A {@link ScanListener} that keeps a latency histogram of every scan phase
+ * and of whole scans, and sums up the counters, in process. Comparing the
+ * percentiles of the phases shows which phase the slow scans spend their
+ * time in. <code>toString()</code> gives a table of it all.
+ * <p>
+ * Instances are thread safe and can be shared by any number of
+ * <code>AntiSamy</code> instances.
+ */
+public final class HistogramScanListener implements ScanListener {
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final Histogram total = new Histogram();
+    private final AtomicLong inputLength = new AtomicLong();
+    private final AtomicLong outputLength = new AtomicLong();
+    private final AtomicLong elementsKept = new AtomicLong();
+    private final AtomicLong elementsFiltered = new AtomicLong();
+    private final AtomicLong elementsRemoved = new AtomicLong();
+    private final AtomicLong attributesRejected = new AtomicLong();
+
+    public HistogramScanListener() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time of every phase, including the phases a scan skipped
+     * as zero, so the percentiles of all phases are over the same scans.
+     */
+    public void scanCompleted(ScanMetrics metrics) {
+        for (Phase phase : Phase.values()) {
+            phases[phase.ordinal()].record(metrics.getTime(phase));
+        }
+        total.record(metrics.getTotalTime());
+        if (metrics.getInputLength() > 0) {
+            inputLength.addAndGet(metrics.getInputLength());
+        }
+        if (metrics.getOutputLength() > 0) {
+            outputLength.addAndGet(metrics.getOutputLength());
+        }
+        elementsKept.addAndGet(metrics.getElementsKept());
+        elementsFiltered.addAndGet(metrics.getElementsFiltered());
+        elementsRemoved.addAndGet(metrics.getElementsRemoved());
+        attributesRejected.addAndGet(metrics.getAttributesRejected());
+    }
+
+    public Histogram getHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * @return The histogram of the total time of scans.
+     */
+    public Histogram getTotalHistogram() {
+        return total;
+    }
+
+    public long getScans() {
+        return total.getCount();
+    }
+
+    /**
+     * @return The summed length of all input, in characters.
+     */
+    public long getInputLength() {
+        return inputLength.get();
+    }
+
+    /**
+     * @return The summed length of all output that wasn't streamed, in
+     *         characters.
+     */
+    public long getOutputLength() {
+        return outputLength.get();
+    }
+
+    public long getElementsKept() {
+        return elementsKept.get();
+    }
+
+    public long getElementsFiltered() {
+        return elementsFiltered.get();
+    }
+
+    public long getElementsRemoved() {
+        return elementsRemoved.get();
+    }
+
+    public long getAttributesRejected() {
+        return attributesRejected.get();
+    }
+
+    public void clear() {
+        for (Histogram phase : phases) {
+            phase.clear();
+        }
+        total.clear();
+        inputLength.set(0);
+        outputLength.set(0);
+        elementsKept.set(0);
+        elementsFiltered.set(0);
+        elementsRemoved.set(0);
+        attributesRejected.set(0);
+    }
+
+    /**
+     * @return A table of the count, mean, percentiles and maximum of every
+     *         phase and of whole scans in microseconds, followed by the
+     *         counters.
+     */
+    public String toString() {
+        Formatter out = new Formatter();
+        out.format("%-10s %10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean", "p50", "p90", "p99", "max");
+        for (Phase phase : Phase.values()) {
+            format(out, phase.name().toLowerCase(), phases[phase.ordinal()]);
+        }
+        format(out, "total", total);
+        out.format("chars in %d, out %d; elements kept %d, filtered %d, removed %d; attributes rejected %d%n",
+                getInputLength(), getOutputLength(), getElementsKept(), getElementsFiltered(),
+                getElementsRemoved(), getAttributesRejected());
+        return out.toString();
+    }
+
+    private static void format(Formatter out, String name, Histogram histogram) {
+        out.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.getCount(),
+                histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    /**
+     * A histogram of non-negative values with buckets that grow
+     * exponentially, each power of two split in 16, so a percentile is
+     * reported within about 6% of the true value at any magnitude. Recording
+     * takes no locks and no allocation.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) sum.get() / count;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile The percentile, from 0 to 100.
+         * @return The upper bound of the bucket holding the value at the
+         *         percentile, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void clear() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            sum.set(0);
+            max.set(0);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            long subBucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package org.owasp.validator.html;
 
+import org.owasp.validator.css.InlineStyleCache;
+import org.owasp.validator.html.model.Property;
 import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.model.ValueMatcher;
+import org.owasp.validator.html.util.BoundedCache;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Contains a bunch of optimized lookups over the regular Policy Class. For internal use only.
@@ -28,6 +40,13 @@ public class InternalPolicy extends Policy {
     private final boolean preserveComments;
     private final boolean embedStyleSheets;
     private final boolean isEncodeUnknownTag;
+    private final boolean omitErrorMessages;
+    private final boolean useStreamingWriter;
+    private final DecisionTable decisionTable;
+    private final InlineStyleCache inlineStyleCache;
+    private final Map<String, ValueMatcher> propertyMatchers;
+    private final BoundedCache<String, Boolean> selectorVerdictCache;
+    private final int selectorVerdictCacheMaxLength;
 
 
     protected InternalPolicy(URL baseUrl, ParseContext parseContext) throws PolicyException {
@@ -47,6 +66,16 @@ protected InternalPolicy(URL baseUrl, ParseContext parseContext) throws PolicyEx
         this.preserveComments = isTrue(Policy.PRESERVE_COMMENTS);
         this.styleTag = getTagByLowercaseName("style");
         this.embedStyleSheets = isTrue(Policy.EMBED_STYLESHEETS);
+        this.omitErrorMessages = isTrue(Policy.OMIT_ERROR_MESSAGES);
+        this.useStreamingWriter = isTrue(Policy.USE_STREAMING_WRITER);
+        this.decisionTable = new DecisionTable(this.tagRules, globalAttributes, getAllowedEmptyTags(), getRequiresClosingTags(),
+                getIntDirective(Policy.ATTRIBUTE_VERDICT_CACHE_SIZE, 0),
+                getIntDirective(Policy.ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH, Policy.DEFAULT_ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH));
+        this.inlineStyleCache = createInlineStyleCache();
+        int selectorVerdictCacheSize = getIntDirective(Policy.SELECTOR_VERDICT_CACHE_SIZE, 0);
+        this.selectorVerdictCache = selectorVerdictCacheSize > 0 ? new BoundedCache<String, Boolean>(selectorVerdictCacheSize) : null;
+        this.selectorVerdictCacheMaxLength = getIntDirective(Policy.SELECTOR_VERDICT_CACHE_MAX_LENGTH, Policy.DEFAULT_SELECTOR_VERDICT_CACHE_MAX_LENGTH);
+        this.propertyMatchers = compilePropertyMatchers(cssRules);
     }
 
     protected InternalPolicy(Policy old, Map<String, String> directives, Map<String, Tag> tagRules) {
@@ -60,12 +89,150 @@ protected InternalPolicy(Policy old, Map<String, String> directives, Map<String,
         this.omitDoctypeDeclaration = isTrue(Policy.OMIT_DOCTYPE_DECLARATION);
         this.entityEncodeIntlCharacters = isTrue(Policy.ENTITY_ENCODE_INTL_CHARS);
         useXhtml = isTrue(Policy.USE_XHTML);
-        embedTag = getTagByLowercaseName("embed");
         this.onUnknownTag = getDirective("onUnknownTag");
         this.isEncodeUnknownTag = "encode".equals(onUnknownTag);
         this.preserveComments = isTrue(Policy.PRESERVE_COMMENTS);
-        this.styleTag = getTagByLowercaseName("style");
         this.embedStyleSheets = isTrue(Policy.EMBED_STYLESHEETS);
+        this.omitErrorMessages = isTrue(Policy.OMIT_ERROR_MESSAGES);
+        this.useStreamingWriter = isTrue(Policy.USE_STREAMING_WRITER);
+        this.selectorVerdictCacheMaxLength = getIntDirective(Policy.SELECTOR_VERDICT_CACHE_MAX_LENGTH, Policy.DEFAULT_SELECTOR_VERDICT_CACHE_MAX_LENGTH);
+
+        // a variant that only overrides scalar directives shares everything
+        // derived from the rules with the policy it was cloned from
+        InternalPolicy base = old instanceof InternalPolicy && tagRules == old.tagRules ? (InternalPolicy) old : null;
+        if (base != null) {
+            this.embedTag = base.embedTag;
+            this.styleTag = base.styleTag;
+        } else {
+            this.embedTag = getTagByLowercaseName("embed");
+            this.styleTag = getTagByLowercaseName("style");
+        }
+        if (base != null && sameDirectives(base, Policy.ATTRIBUTE_VERDICT_CACHE_SIZE, Policy.ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH)) {
+            this.decisionTable = base.decisionTable;
+        } else {
+            this.decisionTable = new DecisionTable(this.tagRules, globalAttributes, getAllowedEmptyTags(), getRequiresClosingTags(),
+                    getIntDirective(Policy.ATTRIBUTE_VERDICT_CACHE_SIZE, 0),
+                    getIntDirective(Policy.ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH, Policy.DEFAULT_ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH));
+        }
+        if (base != null && sameInlineStyleResults(base)) {
+            this.inlineStyleCache = base.inlineStyleCache;
+        } else {
+            this.inlineStyleCache = createInlineStyleCache();
+        }
+        if (base != null && sameDirectives(base, Policy.SELECTOR_VERDICT_CACHE_SIZE)) {
+            this.selectorVerdictCache = base.selectorVerdictCache;
+        } else {
+            int selectorVerdictCacheSize = getIntDirective(Policy.SELECTOR_VERDICT_CACHE_SIZE, 0);
+            this.selectorVerdictCache = selectorVerdictCacheSize > 0 ? new BoundedCache<String, Boolean>(selectorVerdictCacheSize) : null;
+        }
+        // the CSS rules are shared with the old policy, and so can be their matchers
+        this.propertyMatchers = old instanceof InternalPolicy
+                ? ((InternalPolicy) old).propertyMatchers : compilePropertyMatchers(cssRules);
+    }
+
+    /**
+     * Inline style scan results only depend on the directives that shape the
+     * errors and imported stylesheets, and the size limit for imports only
+     * matters when they are embedded at all.
+     */
+    private boolean sameInlineStyleResults(InternalPolicy other) {
+        if (!sameDirectives(other, Policy.INLINE_STYLE_CACHE_SIZE, Policy.INLINE_STYLE_CACHE_MAX_LENGTH,
+                Policy.EMBED_STYLESHEETS, Policy.OMIT_ERROR_MESSAGES, Policy.USE_XHTML)) {
+            return false;
+        }
+        return !embedStyleSheets
+                || sameDirectives(other, "maxInputSize", "maxStyleSheetImports", Policy.CONNECTION_TIMEOUT);
+    }
+
+    private boolean sameDirectives(Policy other, String... names) {
+        for (String name : names) {
+            String value = getDirective(name);
+            String otherValue = other.getDirective(name);
+            if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flattens each CSS property into a single matcher for its own allowed
+     * values and those of all the properties it references as shorthands,
+     * directly or through other shorthands.
+     */
+    private static Map<String, ValueMatcher> compilePropertyMatchers(Map<String, Property> cssRules) {
+        Map<String, ValueMatcher> matchers = new HashMap<String, ValueMatcher>();
+        for (Map.Entry<String, Property> entry : cssRules.entrySet()) {
+            Set<String> literals = new HashSet<String>();
+            List<Pattern> patterns = new ArrayList<Pattern>();
+
+            Set<Property> visited = new HashSet<Property>();
+            LinkedList<Property> pending = new LinkedList<Property>();
+            pending.add(entry.getValue());
+            while (!pending.isEmpty()) {
+                Property property = pending.removeFirst();
+                if (!visited.add(property)) {
+                    continue;
+                }
+                literals.addAll(property.getAllowedValues());
+                patterns.addAll(property.getAllowedRegExp());
+                for (String shorthandRef : property.getShorthandRefs()) {
+                    Property shorthand = cssRules.get(shorthandRef.toLowerCase());
+                    if (shorthand != null) {
+                        pending.add(shorthand);
+                    }
+                }
+            }
+            matchers.put(entry.getKey(), new ValueMatcher(literals, patterns));
+        }
+        return Collections.unmodifiableMap(matchers);
+    }
+
+    /**
+     * @param propertyName The name of a CSS property.
+     * @return The matcher for the lowercased values the property allows,
+     *         shorthands included, or null if the policy has no such property.
+     */
+    public ValueMatcher getPropertyValueMatcher(String propertyName) {
+        return propertyMatchers.get(propertyName.toLowerCase());
+    }
+
+    /**
+     * @return The cache of whether CSS selectors are allowed, keyed by their
+     *         string form, shared by all scans with this policy, or null if
+     *         the policy doesn't cache them.
+     */
+    public BoundedCache<String, Boolean> getSelectorVerdictCache() {
+        return selectorVerdictCache;
+    }
+
+    /**
+     * @return The length of the longest selector the selector verdict cache
+     *         will hold.
+     */
+    public int getSelectorVerdictCacheMaxLength() {
+        return selectorVerdictCacheMaxLength;
+    }
+
+    private InlineStyleCache createInlineStyleCache() {
+        int size = getIntDirective(Policy.INLINE_STYLE_CACHE_SIZE, 0);
+        if (size <= 0) {
+            return null;
+        }
+        return new InlineStyleCache(size,
+                getIntDirective(Policy.INLINE_STYLE_CACHE_MAX_LENGTH, Policy.DEFAULT_INLINE_STYLE_CACHE_MAX_LENGTH));
+    }
+
+    public DecisionTable getDecisionTable() {
+        return decisionTable;
+    }
+
+    /**
+     * @return The cache of inline style scan results shared by all scans with
+     *         this policy, or null if the policy doesn't cache them.
+     */
+    public InlineStyleCache getInlineStyleCache() {
+        return inlineStyleCache;
     }
 
     public Tag getEmbedTag() {
@@ -120,6 +287,22 @@ public boolean isOmitDoctypeDeclaration() {
         return omitDoctypeDeclaration;
     }
 
+    public boolean isOmitErrorMessages() {
+        return omitErrorMessages;
+    }
+
+    public boolean isUseStreamingWriter() {
+        return useStreamingWriter;
+    }
+
+    private int getIntDirective(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getDirective(name));
+        } catch (NumberFormatException ignore) {
+            return defaultValue;
+        }
+    }
+
     private boolean isTrue(String anchorsNofollow) {
         return "true".equals(getDirective(anchorsNofollow));
     }
@@ -42,6 +42,10 @@
 import org.owasp.validator.html.model.Property;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.scan.Constants;
+import org.owasp.validator.html.util.BoundedCache;
+import org.owasp.validator.html.util.Fingerprint;
+import org.owasp.validator.html.util.Interner;
+import org.owasp.validator.html.util.PatternRegistry;
 import org.owasp.validator.html.util.URIUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -68,6 +72,15 @@ public class Policy {
 
     public static final int DEFAULT_MAX_INPUT_SIZE = 100000;
     public static final int DEFAULT_MAX_STYLESHEET_IMPORTS = 1;
+    public static final int DEFAULT_ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH = 100;
+    public static final int DEFAULT_INLINE_STYLE_CACHE_MAX_LENGTH = 256;
+    public static final int DEFAULT_SELECTOR_VERDICT_CACHE_MAX_LENGTH = 100;
+
+    /**
+     * The number of variants made by {@link #cloneWithDirective(String, String)}
+     * that a policy remembers.
+     */
+    public static final int MAX_VARIANTS = 64;
 
     public static final String OMIT_XML_DECLARATION = "omitXmlDeclaration";
     public static final String OMIT_DOCTYPE_DECLARATION = "omitDoctypeDeclaration";
@@ -80,6 +93,14 @@ public class Policy {
     public static final String PRESERVE_SPACE = "preserveSpace";
     public static final String PRESERVE_COMMENTS = "preserveComments";
     public static final String ENTITY_ENCODE_INTL_CHARS = "entityEncodeIntlChars";
+    public static final String ATTRIBUTE_VERDICT_CACHE_SIZE = "attributeVerdictCacheSize";
+    public static final String ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH = "attributeVerdictCacheMaxValueLength";
+    public static final String INLINE_STYLE_CACHE_SIZE = "inlineStyleCacheSize";
+    public static final String INLINE_STYLE_CACHE_MAX_LENGTH = "inlineStyleCacheMaxLength";
+    public static final String SELECTOR_VERDICT_CACHE_SIZE = "selectorVerdictCacheSize";
+    public static final String SELECTOR_VERDICT_CACHE_MAX_LENGTH = "selectorVerdictCacheMaxLength";
+    public static final String OMIT_ERROR_MESSAGES = "omitErrorMessages";
+    public static final String USE_STREAMING_WRITER = "useStreamingWriter";
 
     public static final String ACTION_VALIDATE = "validate";
     public static final String ACTION_FILTER = "filter";
@@ -88,15 +109,31 @@ public class Policy {
     private static char REGEXP_BEGIN = '^';
     private static char REGEXP_END = '$';
 
-    private final Map<String, AntiSamyPattern> commonRegularExpressions;
+    /**
+     * Equal attributes and CSS properties are shared by all loaded policies.
+     */
+    static final Interner<Attribute> ATTRIBUTES = new Interner<Attribute>();
+    static final Interner<Property> PROPERTIES = new Interner<Property>();
+
+    protected final Map<String, AntiSamyPattern> commonRegularExpressions;
     protected final Map<String, Tag> tagRules;
-    private final Map<String, Property> cssRules;
+    protected final Map<String, Property> cssRules;
     protected final Map<String, String> directives;
-    private final Map<String, Attribute> globalAttributes;
+    protected final Map<String, Attribute> globalAttributes;
 
     private final TagMatcher allowedEmptyTagsMatcher;
     private final TagMatcher requiresClosingTagsMatcher;
 
+    private final byte[] rulesDigest;
+    private final String fingerprint;
+
+    /*
+     * The loaded policy all variants are cloned from, and the variants made
+     * so far, keyed by their directives.
+     */
+    private final Policy base;
+    private final BoundedCache<Map<String, String>, Policy> variants;
+
     /**
      * The path to the base policy file, used to resolve relative paths when reading included files
      */
@@ -115,6 +152,11 @@ protected static class ParseContext {
         List<String> allowedEmptyTags = new ArrayList<String>();
         List<String> requireClosingTags = new ArrayList<String>();
 
+        /**
+         * The policy file and the files it included, in the order they were read.
+         */
+        List<URL> sources = new ArrayList<URL>();
+
         public void resetParamsWhereLastConfigWins() {
             allowedEmptyTags.clear();
             requireClosingTags.clear();
@@ -207,6 +249,10 @@ protected Policy(ParseContext parseContext) throws PolicyException {
         this.cssRules = Collections.unmodifiableMap(parseContext.cssRules);
         this.directives = Collections.unmodifiableMap(parseContext.directives);
         this.globalAttributes = Collections.unmodifiableMap(parseContext.globalAttributes);
+        this.rulesDigest = digestRules();
+        this.fingerprint = fingerprint(rulesDigest, this.directives);
+        this.base = this;
+        this.variants = new BoundedCache<Map<String, String>, Policy>(MAX_VARIANTS);
     }
 
     protected Policy(Policy old, Map<String, String> directives, Map<String, Tag> tagRules) {
@@ -217,6 +263,105 @@ protected Policy(Policy old, Map<String, String> directives, Map<String, Tag> ta
         this.cssRules = old.cssRules;
         this.directives = directives;
         this.globalAttributes = old.globalAttributes;
+        this.rulesDigest = tagRules == old.tagRules ? old.rulesDigest : digestRules();
+        this.fingerprint = fingerprint(rulesDigest, directives);
+        if (tagRules == old.tagRules) {
+            this.base = old.base;
+            this.variants = old.variants;
+        } else {
+            this.base = this;
+            this.variants = new BoundedCache<Map<String, String>, Policy>(MAX_VARIANTS);
+        }
+    }
+
+    /**
+     * Returns a stable identifier of everything in this policy that affects
+     * scanning: its directives and all of its rules. Policies loaded from
+     * equivalent files, or cloned with the same directives, have the same
+     * fingerprint.
+     *
+     * @return The hex encoded SHA-256 fingerprint of this policy.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Digests everything but the directives, so clones that only change
+     * directives don't have to go through all the rules again.
+     */
+    private byte[] digestRules() {
+        Fingerprint digest = new Fingerprint();
+
+        digest.addSorted(commonRegularExpressions.keySet());
+        for (String name : sorted(commonRegularExpressions.keySet())) {
+            addPattern(digest, commonRegularExpressions.get(name).getPattern());
+        }
+
+        digest.addSorted(globalAttributes.keySet());
+        for (String name : sorted(globalAttributes.keySet())) {
+            addAttribute(digest, globalAttributes.get(name));
+        }
+
+        digest.addSorted(tagRules.keySet());
+        for (String name : sorted(tagRules.keySet())) {
+            Tag tag = tagRules.get(name);
+            digest.add(tag.getName()).add(tag.getAction());
+            Map<String, Attribute> attributes = tag.getAllowedAttributes();
+            digest.addSorted(attributes.keySet());
+            for (String attribute : sorted(attributes.keySet())) {
+                addAttribute(digest, attributes.get(attribute));
+            }
+        }
+
+        digest.addSorted(cssRules.keySet());
+        for (String name : sorted(cssRules.keySet())) {
+            Property property = cssRules.get(name);
+            digest.add(property.getName());
+            digest.addSorted(property.getAllowedValues());
+            digest.addSorted(property.getShorthandRefs());
+            for (Pattern pattern : property.getAllowedRegExp()) {
+                addPattern(digest, pattern);
+            }
+        }
+
+        digest.addSorted(toList(allowedEmptyTagsMatcher.values()));
+        digest.addSorted(toList(requiresClosingTagsMatcher.values()));
+        return digest.toBytes();
+    }
+
+    private static String fingerprint(byte[] rulesDigest, Map<String, String> directives) {
+        Fingerprint digest = new Fingerprint().add(rulesDigest);
+        for (String name : sorted(directives.keySet())) {
+            digest.add(name).add(directives.get(name));
+        }
+        return digest.toHex();
+    }
+
+    private static void addAttribute(Fingerprint digest, Attribute attribute) {
+        digest.add(attribute.getName()).add(attribute.getOnInvalid());
+        digest.addSorted(attribute.getAllowedValues());
+        for (Pattern pattern : attribute.getAllowedRegExps()) {
+            addPattern(digest, pattern);
+        }
+    }
+
+    private static void addPattern(Fingerprint digest, Pattern pattern) {
+        digest.add(pattern.pattern()).add(String.valueOf(pattern.flags()));
+    }
+
+    private static List<String> sorted(Collection<String> values) {
+        List<String> sorted = new ArrayList<String>(values);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static List<String> toList(Iterable<String> values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
     }
 
     protected static ParseContext getSimpleParseContext(Element topLevelElement) throws PolicyException {
@@ -231,6 +376,7 @@ protected static ParseContext getSimpleParseContext(Element topLevelElement) thr
 
     protected static ParseContext getParseContext(Element topLevelElement, URL baseUrl) throws PolicyException {
         ParseContext parseContext = new ParseContext();
+        parseContext.sources.add(baseUrl);
 
         /**
          * Are there any included policies? These are parsed here first so that
@@ -242,7 +388,7 @@ protected static ParseContext getParseContext(Element topLevelElement, URL baseU
         for (Element include : getByTagName(topLevelElement, "include")) {
             String href = getAttributeValue(include, "href");
 
-            Element includedPolicy = getPolicy(href, baseUrl);
+            Element includedPolicy = getPolicy(href, baseUrl, parseContext.sources);
             parsePolicy(includedPolicy, parseContext);
         }
 
@@ -312,7 +458,7 @@ private static void parsePolicy(Element topLevelElement, ParseContext parseConte
     /**
      * Returns the top level element of a loaded policy Document
      */
-    private static Element getPolicy(String href, URL baseUrl)
+    private static Element getPolicy(String href, URL baseUrl, List<URL> sources)
             throws PolicyException {
 
         try {
@@ -327,6 +473,7 @@ private static Element getPolicy(String href, URL baseUrl)
                     url = new URL(baseUrl, href);
                     source = new InputSource(url.openStream());
                     source.setSystemId(href);
+                    sources.add(url);
 
                 } catch (MalformedURLException except) {
                     try {
@@ -334,6 +481,7 @@ private static Element getPolicy(String href, URL baseUrl)
                         url = new URL(absURL);
                         source = new InputSource(url.openStream());
                         source.setSystemId(href);
+                        sources.add(url);
 
                     } catch (MalformedURLException ex2) {
                         // nothing to do
@@ -345,6 +493,7 @@ private static Element getPolicy(String href, URL baseUrl)
                         url = new URL(absURL);
                         source = new InputSource(url.openStream());
                         source.setSystemId(href);
+                        sources.add(url);
 
                     } catch (MalformedURLException ex2) {
                         // nothing to do
@@ -381,15 +530,40 @@ private static Element getPolicy(String href, URL baseUrl)
     }
 
     /**
-     * Creates a copy of this policy with an added/changed directive.
+     * Creates a copy of this policy with an added/changed directive. The copy
+     * shares all rules and compiled structure with this policy, and clones
+     * that end up with the same directives are the same instance, so they
+     * also share the caches and scanner state keyed by policy.
+     *
      * @param name The directive to add/modify
      * @param value The value
      * @return A clone of the policy with the updated directive
      */
     public Policy cloneWithDirective(String name, String value) {
+        if (equal(value, directives.get(name)) && (value != null || directives.containsKey(name))) {
+            return this;
+        }
         Map<String, String> directives = new HashMap<String, String>(this.directives);
         directives.put(name, value);
-        return new InternalPolicy(this, Collections.unmodifiableMap(directives), tagRules);
+        if (directives.equals(base.directives)) {
+            return base;
+        }
+        Policy variant = variants.get(directives);
+        if (variant == null) {
+            synchronized (variants) {
+                variant = variants.get(directives);
+                if (variant == null) {
+                    directives = Collections.unmodifiableMap(directives);
+                    variant = new InternalPolicy(this, directives, tagRules);
+                    variants.put(directives, variant);
+                }
+            }
+        }
+        return variant;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
 
@@ -483,7 +657,7 @@ private static void parseCommonRegExps(Element root, Map<String, AntiSamyPattern
         for (Element ele : getByTagName(root, "regexp")) {
 
             String name = getAttributeValue(ele, "name");
-            Pattern pattern = Pattern.compile(getAttributeValue(ele, "value"));
+            Pattern pattern = PatternRegistry.compile(getAttributeValue(ele, "value"));
 
             commonRegularExpressions1.put(name, new AntiSamyPattern(pattern));
         }
@@ -506,7 +680,7 @@ private static void parseCommonAttributes(Element root, Map<String, Attribute> c
                 onInvalidStr = DEFAULT_ONINVALID;
             }
             String description = getAttributeValue(ele, "description");
-            Attribute attribute = new Attribute(getAttributeValue(ele, "name"), allowedRegexps, allowedValues, onInvalidStr, description);
+            Attribute attribute = ATTRIBUTES.intern(new Attribute(getAttributeValue(ele, "name"), allowedRegexps, allowedValues, onInvalidStr, description));
 
 
             commonAttributes1.put(name.toLowerCase(), attribute);
@@ -537,7 +711,7 @@ private static List<Pattern> getAllowedRegexps(Map<String, AntiSamyPattern> comm
             if (regExpName != null && regExpName.length() > 0) {
                 allowedRegExp.add(commonRegularExpressions1.get(regExpName).getPattern());
             } else {
-                allowedRegExp.add(Pattern.compile(REGEXP_BEGIN + value + REGEXP_END));
+                allowedRegExp.add(PatternRegistry.compile(REGEXP_BEGIN + value + REGEXP_END));
             }
         }
         return allowedRegExp;
@@ -566,7 +740,7 @@ private static List<Pattern> getAllowedRegexps2(Map<String, AntiSamyPattern> com
                 }
 
             } else if (value != null && value.length() > 0) {
-                allowedRegexps.add(Pattern.compile(REGEXP_BEGIN + value + REGEXP_END));
+                allowedRegexps.add(PatternRegistry.compile(REGEXP_BEGIN + value + REGEXP_END));
             }
         }
         return allowedRegexps;
@@ -583,7 +757,7 @@ private static List<Pattern> getAllowedRegexp3(Map<String, AntiSamyPattern> comm
             if (pattern != null) {
                 allowedRegExp.add(pattern.getPattern());
             } else if (value != null) {
-                allowedRegExp.add(Pattern.compile(REGEXP_BEGIN + value + REGEXP_END));
+                allowedRegExp.add(PatternRegistry.compile(REGEXP_BEGIN + value + REGEXP_END));
             } else {
                 throw new PolicyException("Regular expression '" + regExpName + "' was referenced as a common regexp in definition of '" + name + "', but does not exist in <common-regexp>");
             }
@@ -635,7 +809,7 @@ private static Map<String, Attribute> getTagAttributes(Map<String, Attribute> co
                     String onInvalid = getAttributeValue(attributeNode, "onInvalid");
                     String description = getAttributeValue(attributeNode, "description");
 
-                    Attribute changed = attribute.mutate(onInvalid, description);
+                    Attribute changed = ATTRIBUTES.intern(attribute.mutate(onInvalid, description));
 
                     commonAttributes1.put(attrName, changed);
 
@@ -652,7 +826,7 @@ private static Map<String, Attribute> getTagAttributes(Map<String, Attribute> co
                 List<String> allowedValues2 = getAllowedLiterals(attributeNode);
                 String onInvalid = getAttributeValue(attributeNode, "onInvalid");
                 String description = getAttributeValue(attributeNode, "description");
-                Attribute attribute = new Attribute(getAttributeValue(attributeNode, "name"), allowedRegexps2, allowedValues2, onInvalid, description);
+                Attribute attribute = ATTRIBUTES.intern(new Attribute(getAttributeValue(attributeNode, "name"), allowedRegexps2, allowedValues2, onInvalid, description));
 
                 /*
                       * Add fully built attribute.
@@ -692,7 +866,7 @@ private static void parseCSSRules(Element root, Map<String, Property> cssRules1,
             } else {
                 onInvalidStr = DEFAULT_ONINVALID;
             }
-            Property property = new Property(name,allowedRegexp3, allowedValue, shortHandRefs, description, onInvalidStr );
+            Property property = PROPERTIES.intern(new Property(name,allowedRegexp3, allowedValue, shortHandRefs, description, onInvalidStr ));
 
 
 
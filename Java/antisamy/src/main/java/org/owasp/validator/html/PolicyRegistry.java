@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.owasp.validator.html.Policy.ParseContext;
+
+/**
+ * Keeps loaded policies by URL so they are parsed once, not on every scan,
+ * and reloads a policy in the background when its file, or a file it
+ * includes, gets a new modification time.
+ * <p>
+ * A reloaded policy replaces the old one atomically: scans already running
+ * keep the policy they started with, and the next <code>getPolicy()</code>
+ * returns the new one. The scanner pools are not tied to a policy and stay
+ * warm across a reload. If a changed file fails to parse, the old policy is
+ * kept until the file changes again.
+ * <p>
+ * Modification times are polled, by one daemon thread per registry, at the
+ * interval given to the constructor; with an interval of 0 they are instead
+ * checked on every <code>getPolicy()</code>. Instances are thread safe.
+ */
+public class PolicyRegistry {
+
+    public static final long DEFAULT_POLL_INTERVAL = 2000;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final long pollInterval;
+    private Timer timer;
+    private boolean shutdown;
+    private long reloads;
+
+    public PolicyRegistry() {
+        this(DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * @param pollInterval The number of milliseconds between checks for
+     *                     changed policy files, or 0 to check on every lookup.
+     */
+    public PolicyRegistry(long pollInterval) {
+        if (pollInterval < 0) {
+            throw new IllegalArgumentException("Poll interval must not be negative");
+        }
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @return The registry <code>AntiSamy.scan(String, String)</code> and
+     *         <code>AntiSamy.scan(String, File)</code> load their policies
+     *         from, polling every {@link #DEFAULT_POLL_INTERVAL} milliseconds.
+     */
+    public static PolicyRegistry getDefault() {
+        return DefaultRegistry.INSTANCE;
+    }
+
+    public Policy getPolicy(File file) throws PolicyException {
+        try {
+            return getPolicy(file.toURI().toURL());
+        } catch (IOException e) {
+            throw new PolicyException(e);
+        }
+    }
+
+    /**
+     * @return The current policy at <code>url</code>, loaded now if it was
+     *         not loaded before.
+     * @throws PolicyException If the policy has to be loaded and fails to.
+     */
+    public Policy getPolicy(URL url) throws PolicyException {
+        String key = url.toExternalForm();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(url);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                startPolling();
+            }
+        }
+
+        Policy policy = entry.get();
+        if (pollInterval == 0) {
+            reloadIfChanged(entry);
+            policy = entry.policy;
+        }
+        return policy;
+    }
+
+    /**
+     * Forgets the policy at <code>url</code>; it is loaded again on the next
+     * lookup.
+     */
+    public void remove(URL url) {
+        entries.remove(url.toExternalForm());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of times a changed policy was reloaded.
+     */
+    public synchronized long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Stops polling for changed files. Policies loaded later are not polled
+     * either.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private synchronized void startPolling() {
+        if (pollInterval == 0 || timer != null || shutdown) {
+            return;
+        }
+        timer = new Timer("AntiSamy-policyReload", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                for (Entry entry : entries.values()) {
+                    try {
+                        reloadIfChanged(entry);
+                    } catch (RuntimeException e) {
+                        // keep polling the others, and this one next time
+                    }
+                }
+            }
+        }, pollInterval, pollInterval);
+    }
+
+    private void reloadIfChanged(Entry entry) {
+        if (entry.isLoaded() && entry.isChanged()) {
+            if (entry.reload()) {
+                synchronized (this) {
+                    reloads++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The modification time of <code>url</code>, or 0 if unknown.
+     */
+    private static long lastModified(URL url) {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).lastModified();
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            long lastModified = connection.getLastModified();
+            connection.getInputStream().close();
+            return lastModified;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static final class Entry {
+        private final URL url;
+        private volatile Policy policy;
+        private URL[] sources;
+        private long[] modified;
+
+        Entry(URL url) {
+            this.url = url;
+        }
+
+        boolean isLoaded() {
+            return policy != null;
+        }
+
+        /**
+         * @return The policy, loading it first if no thread did yet.
+         */
+        Policy get() throws PolicyException {
+            Policy current = policy;
+            if (current == null) {
+                synchronized (this) {
+                    if (policy == null) {
+                        load();
+                    }
+                    current = policy;
+                }
+            }
+            return current;
+        }
+
+        synchronized boolean isChanged() {
+            for (int i = 0; i < sources.length; i++) {
+                if (lastModified(sources[i]) != modified[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return True if the policy was replaced.
+         */
+        synchronized boolean reload() {
+            try {
+                load();
+                return true;
+            } catch (PolicyException e) {
+                // keep the old policy until the next change
+                return false;
+            } catch (RuntimeException e) {
+                // such as an invalid regular expression
+                return false;
+            }
+        }
+
+        /**
+         * Parses the policy. The times of the policy file and of the files it
+         * included last time are taken before parsing, so a change made
+         * meanwhile is picked up by the next check, even if the parse fails.
+         * If the policy now includes other files, it is parsed again with
+         * their times taken first.
+         */
+        private void load() throws PolicyException {
+            URL[] known = sources != null ? sources : new URL[] { url };
+            while (true) {
+                long[] modifiedBefore = new long[known.length];
+                for (int i = 0; i < known.length; i++) {
+                    modifiedBefore[i] = lastModified(known[i]);
+                }
+                sources = known;
+                modified = modifiedBefore;
+
+                ParseContext parseContext = Policy.getParseContext(Policy.getTopLevelElement(url), url);
+                Policy loaded = new InternalPolicy(url, parseContext);
+
+                List<URL> loadedSources = parseContext.sources;
+                if (isSame(known, loadedSources)) {
+                    policy = loaded;
+                    return;
+                }
+                known = loadedSources.toArray(new URL[loadedSources.size()]);
+            }
+        }
+
+        private static boolean isSame(URL[] known, List<URL> loaded) {
+            if (known.length != loaded.size()) {
+                return false;
+            }
+            for (int i = 0; i < known.length; i++) {
+                // URL.equals() resolves host names
+                if (!known[i].toExternalForm().equals(loaded.get(i).toExternalForm())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class DefaultRegistry {
+        static final PolicyRegistry INSTANCE = new PolicyRegistry();
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.owasp.validator.html.Policy.ParseContext;
+import org.owasp.validator.html.model.AntiSamyPattern;
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Property;
+import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.util.Fingerprint;
+import org.owasp.validator.html.util.PatternRegistry;
+
+/**
+ * Compiles a policy to a compact binary snapshot and loads it back without
+ * going through the XML parser, the DOM and the include resolution. A
+ * snapshot holds the directives, the tags and attributes, their literals, the
+ * sources of all regular expressions and the CSS rules, with every string and
+ * pattern stored once. Patterns, attributes and properties are shared with
+ * the other loaded policies like when parsing the XML.
+ * <p>
+ * A snapshot records a SHA-256 hash over the policy file and the files it
+ * included. Loading it hashes those files again and rejects the snapshot when
+ * any of them changed, so a stale snapshot is never used. Reading the files
+ * is cheap compared to parsing them.
+ *
+ * <pre>
+ * Policy policy = PolicySnapshot.getInstance(policyUrl, new File(cacheDir, "tenant.policy"));
+ * </pre>
+ */
+public final class PolicySnapshot {
+
+    private static final int MAGIC = 0x41535053;
+    private static final int VERSION = 1;
+
+    private PolicySnapshot() {
+    }
+
+    /**
+     * Loads the policy at <code>policyUrl</code> from <code>snapshot</code> if
+     * that is a current snapshot of it, otherwise parses the policy and
+     * (re)writes the snapshot. Failing to write the snapshot is not an error;
+     * the policy will just be parsed again next time.
+     *
+     * @param policyUrl The policy file.
+     * @param snapshot  The snapshot file, which need not exist.
+     * @return The policy.
+     * @throws PolicyException If the policy file can't be parsed.
+     */
+    public static Policy getInstance(URL policyUrl, File snapshot) throws PolicyException {
+        if (snapshot.isFile()) {
+            try {
+                InputStream in = new FileInputStream(snapshot);
+                try {
+                    Policy policy = read(in, policyUrl);
+                    if (policy != null) {
+                        return policy;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // unreadable, compile it again
+            } catch (PolicyException e) {
+                // corrupt or from another version, compile it again
+            }
+        }
+
+        ParseContext parseContext = Policy.getParseContext(Policy.getTopLevelElement(policyUrl), policyUrl);
+        Policy policy = new InternalPolicy(policyUrl, parseContext);
+        try {
+            File directory = snapshot.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile(snapshot.getName(), ".tmp", directory);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    write(policy, parseContext.sources, out);
+                } finally {
+                    out.close();
+                }
+                // rename over the old snapshot; not atomic everywhere, but a
+                // reader never sees a partly written file
+                if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot))) {
+                    throw new IOException("Cannot replace " + snapshot);
+                }
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the snapshot is only a shortcut
+        }
+        return policy;
+    }
+
+    /**
+     * Parses the policy at <code>policyUrl</code> and writes its snapshot.
+     *
+     * @return The parsed policy.
+     * @throws PolicyException If the policy file can't be parsed.
+     * @throws IOException     If the snapshot can't be written.
+     */
+    public static Policy compile(URL policyUrl, OutputStream out) throws PolicyException, IOException {
+        ParseContext parseContext = Policy.getParseContext(Policy.getTopLevelElement(policyUrl), policyUrl);
+        Policy policy = new InternalPolicy(policyUrl, parseContext);
+        write(policy, parseContext.sources, out);
+        return policy;
+    }
+
+    /**
+     * Loads a policy from a snapshot written by <code>compile()</code>.
+     *
+     * @throws PolicyException If the snapshot is corrupt, or any of the policy
+     *                         files it was compiled from changed since.
+     */
+    public static Policy load(InputStream in) throws PolicyException {
+        Policy policy = read(in, null);
+        if (policy == null) {
+            throw new PolicyException("The policy snapshot is stale, its policy files changed since it was compiled");
+        }
+        return policy;
+    }
+
+    /**
+     * @param expectedSource The policy file the snapshot must have been
+     *                       compiled from, or null for any.
+     * @return The policy, or null if the snapshot is stale.
+     */
+    private static Policy read(InputStream in, URL expectedSource) throws PolicyException {
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new PolicyException("Not a policy snapshot of version " + VERSION);
+            }
+
+            List<URL> sources = new ArrayList<URL>();
+            for (int i = readCount(data); i > 0; i--) {
+                sources.add(new URL(data.readUTF()));
+            }
+            if (expectedSource != null
+                    && (sources.isEmpty() || !sources.get(0).toExternalForm().equals(expectedSource.toExternalForm()))) {
+                return null;
+            }
+            byte[] sourceHash = new byte[readCount(data)];
+            data.readFully(sourceHash);
+            if (!Fingerprint.hex(sourceHash).equals(hashSources(sources))) {
+                return null;
+            }
+
+            return new Reader(data).readPolicy(sources.isEmpty() ? null : sources.get(0));
+        } catch (IOException e) {
+            throw new PolicyException(e);
+        } catch (RuntimeException e) {
+            throw new PolicyException(e);
+        }
+    }
+
+    private static void write(Policy policy, List<URL> sources, OutputStream out) throws IOException {
+        String sourceHash = hashSources(sources);
+        if (sourceHash == null) {
+            throw new IOException("Cannot read the policy files to hash them");
+        }
+
+        // the body goes first into a buffer, as it fills the tables written before it
+        Writer writer = new Writer();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writer.writePolicy(policy, new DataOutputStream(body));
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeCount(data, sources.size());
+        for (URL source : sources) {
+            data.writeUTF(source.toExternalForm());
+        }
+        byte[] hash = unhex(sourceHash);
+        writeCount(data, hash.length);
+        data.write(hash);
+        writer.writeTables(data);
+        body.writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * @return The hex encoded hash of the contents of all the sources, or
+     *         null if one can't be read.
+     */
+    private static String hashSources(List<URL> sources) {
+        Fingerprint digest = new Fingerprint();
+        byte[] buffer = new byte[8192];
+        for (URL source : sources) {
+            try {
+                InputStream in = source.openStream();
+                try {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        content.write(buffer, 0, n);
+                    }
+                    digest.add(source.toExternalForm()).add(content.toByteArray());
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return digest.toHex();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void writeCount(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed count in policy snapshot");
+    }
+
+    /**
+     * Numbers every string, pattern and attribute of a policy on first use,
+     * so the body refers to them by index. Attributes shared by several tags
+     * stay shared when loaded.
+     */
+    private static final class Writer {
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private final List<String> stringTable = new ArrayList<String>();
+        private final Map<String, Integer> patterns = new HashMap<String, Integer>();
+        private final List<Pattern> patternTable = new ArrayList<Pattern>();
+        private final Map<Attribute, Integer> attributes = new IdentityHashMap<Attribute, Integer>();
+        private final List<Attribute> attributeTable = new ArrayList<Attribute>();
+
+        void writePolicy(Policy policy, DataOutputStream out) throws IOException {
+            writeCount(out, policy.directives.size());
+            for (Map.Entry<String, String> directive : policy.directives.entrySet()) {
+                writeString(out, directive.getKey());
+                writeString(out, directive.getValue());
+            }
+
+            writeCount(out, policy.commonRegularExpressions.size());
+            for (Map.Entry<String, AntiSamyPattern> regexp : policy.commonRegularExpressions.entrySet()) {
+                writeString(out, regexp.getKey());
+                writePattern(out, regexp.getValue().getPattern());
+            }
+
+            writeCount(out, policy.globalAttributes.size());
+            for (Map.Entry<String, Attribute> attribute : policy.globalAttributes.entrySet()) {
+                writeString(out, attribute.getKey());
+                writeAttribute(out, attribute.getValue());
+            }
+
+            writeCount(out, policy.tagRules.size());
+            for (Map.Entry<String, Tag> entry : policy.tagRules.entrySet()) {
+                Tag tag = entry.getValue();
+                writeString(out, entry.getKey());
+                writeString(out, tag.getName());
+                writeString(out, tag.getAction());
+                Map<String, Attribute> tagAttributes = tag.getAllowedAttributes();
+                writeCount(out, tagAttributes.size());
+                for (Map.Entry<String, Attribute> attribute : tagAttributes.entrySet()) {
+                    writeString(out, attribute.getKey());
+                    writeAttribute(out, attribute.getValue());
+                }
+            }
+
+            writeCount(out, policy.cssRules.size());
+            for (Map.Entry<String, Property> entry : policy.cssRules.entrySet()) {
+                Property property = entry.getValue();
+                writeString(out, entry.getKey());
+                writeString(out, property.getName());
+                writeStrings(out, property.getAllowedValues());
+                writePatterns(out, property.getAllowedRegExp());
+                writeStrings(out, property.getShorthandRefs());
+            }
+
+            writeStrings(out, toList(policy.getAllowedEmptyTags().values()));
+            writeStrings(out, toList(policy.getRequiresClosingTags().values()));
+            writeString(out, policy.getFingerprint());
+        }
+
+        void writeTables(DataOutputStream out) throws IOException {
+            writeCount(out, stringTable.size());
+            for (String string : stringTable) {
+                byte[] bytes = string.getBytes("UTF-8");
+                writeCount(out, bytes.length);
+                out.write(bytes);
+            }
+
+            writeCount(out, patternTable.size());
+            for (Pattern pattern : patternTable) {
+                writeCount(out, strings.get(pattern.pattern()));
+                writeCount(out, pattern.flags());
+            }
+
+            // attributes refer to strings and patterns only, all already numbered
+            writeCount(out, attributeTable.size());
+            for (Attribute attribute : attributeTable) {
+                writeCount(out, ref(attribute.getName()));
+                writeCount(out, ref(attribute.getOnInvalid()));
+                writeCount(out, ref(attribute.getDescription()));
+                writeCount(out, attribute.getAllowedValues().size());
+                for (String value : attribute.getAllowedValues()) {
+                    writeCount(out, ref(value));
+                }
+                writeCount(out, attribute.getAllowedRegExps().size());
+                for (Pattern pattern : attribute.getAllowedRegExps()) {
+                    writeCount(out, patterns.get(key(pattern)));
+                }
+            }
+        }
+
+        private void writeAttribute(DataOutputStream out, Attribute attribute) throws IOException {
+            Integer index = attributes.get(attribute);
+            if (index == null) {
+                index = attributeTable.size();
+                attributes.put(attribute, index);
+                attributeTable.add(attribute);
+                number(attribute.getName());
+                number(attribute.getOnInvalid());
+                number(attribute.getDescription());
+                for (String value : attribute.getAllowedValues()) {
+                    number(value);
+                }
+                for (Pattern pattern : attribute.getAllowedRegExps()) {
+                    numberPattern(pattern);
+                }
+            }
+            writeCount(out, index);
+        }
+
+        private void writePatterns(DataOutputStream out, List<Pattern> list) throws IOException {
+            writeCount(out, list.size());
+            for (Pattern pattern : list) {
+                writePattern(out, pattern);
+            }
+        }
+
+        private void writePattern(DataOutputStream out, Pattern pattern) throws IOException {
+            writeCount(out, numberPattern(pattern));
+        }
+
+        private void writeStrings(DataOutputStream out, List<String> list) throws IOException {
+            writeCount(out, list.size());
+            for (String string : list) {
+                writeString(out, string);
+            }
+        }
+
+        /**
+         * Writes a string reference, 0 standing for null.
+         */
+        private void writeString(DataOutputStream out, String string) throws IOException {
+            number(string);
+            writeCount(out, ref(string));
+        }
+
+        private int ref(String string) {
+            return string == null ? 0 : strings.get(string) + 1;
+        }
+
+        private void number(String string) {
+            if (string != null && !strings.containsKey(string)) {
+                strings.put(string, stringTable.size());
+                stringTable.add(string);
+            }
+        }
+
+        private int numberPattern(Pattern pattern) {
+            String key = key(pattern);
+            Integer index = patterns.get(key);
+            if (index == null) {
+                number(pattern.pattern());
+                index = patternTable.size();
+                patterns.put(key, index);
+                patternTable.add(pattern);
+            }
+            return index;
+        }
+
+        private static String key(Pattern pattern) {
+            return pattern.flags() + "/" + pattern.pattern();
+        }
+
+        private static List<String> toList(Iterable<String> values) {
+            List<String> list = new ArrayList<String>();
+            for (String value : values) {
+                list.add(value);
+            }
+            return list;
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private String[] strings;
+        private Pattern[] patterns;
+        private Attribute[] attributes;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        Policy readPolicy(URL baseUrl) throws IOException, PolicyException {
+            readTables();
+
+            ParseContext parseContext = new ParseContext();
+            for (int i = readCount(in); i > 0; i--) {
+                parseContext.directives.put(readString(), readString());
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                parseContext.commonRegularExpressions.put(readString(), new AntiSamyPattern(readPattern()));
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                parseContext.globalAttributes.put(readString(), readAttribute());
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                String key = readString();
+                String name = readString();
+                String action = readString();
+                Map<String, Attribute> tagAttributes = new HashMap<String, Attribute>();
+                for (int j = readCount(in); j > 0; j--) {
+                    tagAttributes.put(readString(), readAttribute());
+                }
+                parseContext.tagRules.put(key, new Tag(name, tagAttributes, action));
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                String key = readString();
+                String name = readString();
+                List<String> allowedValues = readStrings();
+                List<Pattern> allowedRegExps = readPatterns();
+                List<String> shorthandRefs = readStrings();
+                parseContext.cssRules.put(key, Policy.PROPERTIES.intern(
+                        new Property(name, allowedRegExps, allowedValues, shorthandRefs, null, null)));
+            }
+            parseContext.allowedEmptyTags.addAll(readStrings());
+            parseContext.requireClosingTags.addAll(readStrings());
+            String fingerprint = readString();
+
+            Policy policy = new InternalPolicy(baseUrl, parseContext);
+            if (!policy.getFingerprint().equals(fingerprint)) {
+                throw new PolicyException("The policy snapshot is corrupt, its rules don't match its fingerprint");
+            }
+            return policy;
+        }
+
+        private void readTables() throws IOException {
+            strings = new String[readCount(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(in)];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, "UTF-8");
+            }
+
+            patterns = new Pattern[readCount(in)];
+            for (int i = 0; i < patterns.length; i++) {
+                String source = strings[readCount(in)];
+                patterns[i] = PatternRegistry.compile(source, readCount(in));
+            }
+
+            attributes = new Attribute[readCount(in)];
+            for (int i = 0; i < attributes.length; i++) {
+                String name = readString();
+                String onInvalid = readString();
+                String description = readString();
+                List<String> allowedValues = readStrings();
+                List<Pattern> allowedRegExps = readPatterns();
+                attributes[i] = Policy.ATTRIBUTES.intern(new Attribute(name, allowedRegExps, allowedValues, onInvalid, description));
+            }
+        }
+
+        private String readString() throws IOException {
+            int ref = readCount(in);
+            return ref == 0 ? null : strings[ref - 1];
+        }
+
+        private List<String> readStrings() throws IOException {
+            int count = readCount(in);
+            List<String> list = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(readString());
+            }
+            return list;
+        }
+
+        private Pattern readPattern() throws IOException {
+            return patterns[readCount(in)];
+        }
+
+        private List<Pattern> readPatterns() throws IOException {
+            int count = readCount(in);
+            List<Pattern> list = new ArrayList<Pattern>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(readPattern());
+            }
+            return list;
+        }
+
+        private Attribute readAttribute() throws IOException {
+            return attributes[readCount(in)];
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html;
+
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+import org.owasp.validator.html.scan.AntiSamySAXScanner;
+
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Scans untrusted HTML against one policy. Unlike <code>AntiSamy</code>,
+ * which takes a policy with each call, a <code>Sanitizer</code> is bound to
+ * its policy when it is built: the policy is checked and resolved once, and
+ * a call to <code>sanitize()</code> only allocates the state of its own scan.
+ * <p>
+ * Instances are immutable and safe to share between threads, so the usual
+ * pattern is one <code>Sanitizer</code> per policy, kept for as long as the
+ * policy is in use.
+ */
+public final class Sanitizer {
+
+	private final InternalPolicy policy;
+
+	/**
+	 * @param policy
+	 *            The policy to scan against.
+	 * @throws PolicyException When <code>policy</code> is null.
+	 */
+	public Sanitizer(Policy policy) throws PolicyException {
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		this.policy = (InternalPolicy) policy;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Scans with the SAX engine.
+	 *
+	 * @param taintedHTML
+	 *            Untrusted HTML which may contain malicious code.
+	 * @return A <code>CleanResults</code> object which contains information
+	 *         about the scan (including the results).
+	 * @throws ScanException When there is a problem encountered
+	 *         while scanning the HTML.
+	 */
+	public CleanResults sanitize(String taintedHTML) throws ScanException {
+		return sanitize(taintedHTML, AntiSamy.SAX);
+	}
+
+	/**
+	 * @param scanType
+	 *            <code>AntiSamy.DOM</code> or <code>AntiSamy.SAX</code>.
+	 */
+	public CleanResults sanitize(String taintedHTML, int scanType) throws ScanException {
+		if (scanType == AntiSamy.DOM) {
+			return new AntiSamyDOMScanner(policy).scan(taintedHTML);
+		}
+		return new AntiSamySAXScanner(policy).scan(taintedHTML);
+	}
+
+	/**
+	 * Streaming variant of <code>sanitize()</code>, with the same contract as
+	 * {@link AntiSamy#scan(Reader, Writer, Policy)}.
+	 */
+	public CleanResults sanitize(Reader reader, Writer writer) throws ScanException {
+		return new AntiSamySAXScanner(policy).scan(reader, writer);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html;
+
+import org.owasp.validator.html.CleanResults.ScanPath;
+
+/**
+ * The timings and counters of one scan, handed to a {@link ScanListener}.
+ * Times are in nanoseconds and lengths in characters.
+ * <p>
+ * The scanners fill in an instance while they run, so it is only valid once
+ * it has been passed to a listener, and isn't thread safe.
+ */
+public final class ScanMetrics {
+
+    /**
+     * The phases of a scan. The time of each phase excludes the time of the
+     * phases nested in it, so the phase times add up to at most the total.
+     * The SAX engine parses, filters and serializes in a single pass, which
+     * it reports as {@link #PARSE}; only the CSS is timed apart.
+     */
+    public static enum Phase {
+        /** Size check and removal of characters not valid in XML. */
+        NORMALIZE,
+        /** Parsing the HTML. */
+        PARSE,
+        /** Checking elements and attributes against the policy. */
+        FILTER,
+        /** Scanning style elements and attributes. */
+        CSS,
+        /** Writing the clean HTML. */
+        SERIALIZE
+    }
+
+    private final int scanType;
+    private final long[] times = new long[Phase.values().length];
+    private long totalTime;
+    private ScanPath scanPath = ScanPath.FULL;
+    private int inputLength = -1;
+    private int outputLength = -1;
+    private int elements;
+    private int elementsFiltered;
+    private int elementsRemoved;
+    private int attributesRejected;
+
+    /**
+     * @param scanType <code>AntiSamy.DOM</code> or <code>AntiSamy.SAX</code>.
+     */
+    public ScanMetrics(int scanType) {
+        this.scanType = scanType;
+    }
+
+    public int getScanType() {
+        return scanType;
+    }
+
+    public void addTime(Phase phase, long nanos) {
+        times[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * @return The nanoseconds spent in <code>phase</code>.
+     */
+    public long getTime(Phase phase) {
+        return times[phase.ordinal()];
+    }
+
+    /**
+     * @return The nanoseconds the whole scan took, as seen by the caller.
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public void setTotalTime(long totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    public ScanPath getScanPath() {
+        return scanPath;
+    }
+
+    public void setScanPath(ScanPath scanPath) {
+        this.scanPath = scanPath;
+    }
+
+    /**
+     * @return The length of the untrusted input, or -1 if unknown.
+     */
+    public int getInputLength() {
+        return inputLength;
+    }
+
+    public void setInputLength(int inputLength) {
+        this.inputLength = inputLength;
+    }
+
+    /**
+     * @return The length of the clean output, or -1 if it was streamed.
+     */
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    public void setOutputLength(int outputLength) {
+        this.outputLength = outputLength;
+    }
+
+    /**
+     * Counts an element the scanner decided on. Elements inside a removed
+     * element are not counted.
+     */
+    public void elementScanned() {
+        elements++;
+    }
+
+    /**
+     * Counts a scanned element that was dropped while its content was kept,
+     * or encoded as text.
+     */
+    public void elementFiltered() {
+        elementsFiltered++;
+    }
+
+    /**
+     * Counts a scanned element that was dropped with its content.
+     */
+    public void elementRemoved() {
+        elementsRemoved++;
+    }
+
+    public void attributeRejected() {
+        attributesRejected++;
+    }
+
+    public int getElementsKept() {
+        return elements - elementsFiltered - elementsRemoved;
+    }
+
+    public int getElementsFiltered() {
+        return elementsFiltered;
+    }
+
+    public int getElementsRemoved() {
+        return elementsRemoved;
+    }
+
+    /**
+     * @return The number of attributes dropped because they are not in the
+     *         policy or their value is not allowed.
+     */
+    public int getAttributesRejected() {
+        return attributesRejected;
+    }
+}
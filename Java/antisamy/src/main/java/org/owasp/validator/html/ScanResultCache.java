@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.owasp.validator.html.CleanResults.ScanPath;
+import org.owasp.validator.html.scan.AbstractAntiSamyScanner;
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+import org.owasp.validator.html.util.ErrorMessageList;
+import org.owasp.validator.html.util.Fingerprint;
+import org.w3c.dom.DocumentFragment;
+
+/**
+ * Remembers the clean HTML and error messages of recent scans, so identical
+ * input scanned again with the same policy isn't parsed again. Entries are
+ * keyed by the policy fingerprint, the scan type and a SHA-256 hash of the
+ * normalized input, and evicted least recently used first when either the number of
+ * entries or their total weight (roughly the characters held) goes over its
+ * limit.
+ * <p>
+ * Input that is too large, or that the scanners handle without parsing, is
+ * neither hashed nor cached, it is cheaper to scan again than to look up. Instances are thread safe and can be shared
+ * between <code>AntiSamy</code> instances.
+ *
+ * @see AntiSamy#setResultCache(ScanResultCache)
+ */
+public class ScanResultCache {
+
+    /**
+     * The weight charged for each error message, which are kept unrendered.
+     */
+    private static final int ERROR_WEIGHT = 64;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries The maximum number of cached results.
+     * @param maxWeight  The maximum total weight of the cached results, about
+     *                   the number of characters of clean HTML held.
+     */
+    public ScanResultCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    static String key(String html, Policy policy, int scanType) {
+        return policy.getFingerprint() + '/' + scanType + '/' + Fingerprint.of(html);
+    }
+
+    /**
+     * @return The store a scanner with <code>policy</code> uses for one scan.
+     */
+    AbstractAntiSamyScanner.ResultStore store(final Policy policy, final int scanType) {
+        return new AbstractAntiSamyScanner.ResultStore() {
+            private String key;
+
+            public CleanResults get(String html) {
+                key = key(html, policy, scanType);
+                return ScanResultCache.this.get(key, html, policy, scanType);
+            }
+
+            public void put(String html, CleanResults results) {
+                ScanResultCache.this.put(key != null ? key : key(html, policy, scanType), results);
+            }
+        };
+    }
+
+    /**
+     * @return A copy of the cached results, or null.
+     */
+    CleanResults get(String key, final String html, final Policy policy, int scanType) {
+        long startOfScan = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        Callable<DocumentFragment> fragment = null;
+        if (scanType == AntiSamy.DOM) {
+            fragment = new Callable<DocumentFragment>() {
+                public DocumentFragment call() throws Exception {
+                    return new AntiSamyDOMScanner(policy).scan(html).getCleanXMLDocumentFragment();
+                }
+            };
+        }
+        return new CleanResults(startOfScan, entry.cleanHTML, fragment, copy(entry.errorMessages), ScanPath.CACHED);
+    }
+
+    void put(String key, CleanResults results) {
+        if (results.getScanPath() != ScanPath.FULL) {
+            return;
+        }
+        String cleanHTML = results.getCleanHTML();
+        List<String> errorMessages = copy(results.getErrorMessages());
+        long entryWeight = cleanHTML.length() + (long) errorMessages.size() * ERROR_WEIGHT;
+        if (entryWeight > maxWeight) {
+            return;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(cleanHTML, errorMessages, entryWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entryWeight;
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || weight > maxWeight) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private static List<String> copy(List<String> errorMessages) {
+        if (errorMessages instanceof ErrorMessageList) {
+            return new ErrorMessageList((ErrorMessageList) errorMessages);
+        }
+        return new ArrayList<String>(errorMessages);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The share of lookups answered from the cache, or 0 if there
+     *         were none yet.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static final class Entry {
+        final String cleanHTML;
+        final List<String> errorMessages;
+        final long weight;
+
+        Entry(String cleanHTML, List<String> errorMessages, long weight) {
+            this.cleanHTML = cleanHTML;
+            this.errorMessages = errorMessages;
+            this.weight = weight;
+        }
+    }
+}
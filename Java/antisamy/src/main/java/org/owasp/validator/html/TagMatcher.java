@@ -53,6 +53,10 @@ public boolean matches(String tagName) {
         return allowedLowercase.contains(tagName.toLowerCase());
     }
 
+    Iterable<String> values() {
+        return allowedLowercase;
+    }
+
     public int size() {
         return allowedLowercase.size();
     }
@@ -27,6 +27,8 @@
 import java.util.*;
 import java.util.regex.Pattern;
 
+import org.owasp.validator.html.util.BoundedCache;
+
 import static org.owasp.validator.html.model.Tag.ANY_NORMAL_WHITESPACES;
 import static org.owasp.validator.html.model.Tag.ATTRIBUTE_DIVIDER;
 import static org.owasp.validator.html.model.Tag.CLOSE_ATTRIBUTE;
@@ -47,7 +49,9 @@ public class Attribute  {
 	private final String onInvalid;
     private final List<String> allowedValues;
     private final Pattern[] allowedRegExps;
-    private final Set<String> allowedValuesLower;
+    private final ValueMatcher valueMatcher;
+    private final BoundedCache<String, Boolean> verdictCache;
+    private final int maxCachedValueLength;
 
     public Attribute(String name, List<Pattern> allowedRegexps, List<String> allowedValues, String onInvalidStr, String description) {
         this.name = name;
@@ -58,29 +62,97 @@ public Attribute(String name, List<Pattern> allowedRegexps, List<String> allowed
             allowedValuesLower.add( allowedValue.toLowerCase());
         }
 
-        this.allowedValuesLower = allowedValuesLower;
+        this.valueMatcher = new ValueMatcher(allowedValuesLower, allowedRegexps);
         this.onInvalid = onInvalidStr;
         this.description = description;
+        this.verdictCache = null;
+        this.maxCachedValueLength = 0;
     }
 
-    public boolean matchesAllowedExpression(String value){
-        String input = value.toLowerCase();
-        for (Pattern pattern : allowedRegExps) {
-            if (pattern != null && pattern.matcher(input).matches()) {
-                return true;
-            }
+    private Attribute(Attribute other, BoundedCache<String, Boolean> verdictCache, int maxCachedValueLength) {
+        this.name = other.name;
+        this.allowedRegExps = other.allowedRegExps;
+        this.allowedValues = other.allowedValues;
+        this.valueMatcher = other.valueMatcher;
+        this.onInvalid = other.onInvalid;
+        this.description = other.description;
+        this.verdictCache = verdictCache;
+        this.maxCachedValueLength = maxCachedValueLength;
+    }
+
+    /**
+     * Returns a copy of this attribute that remembers whether recently checked
+     * values were allowed. Only values up to <code>maxValueLength</code>
+     * characters are cached, so attacker supplied values can't fill the cache
+     * with large strings.
+     *
+     * @param maxSize        The maximum number of cached values.
+     * @param maxValueLength The maximum length of a cached value.
+     * @return The new attribute.
+     */
+    public Attribute withVerdictCache(int maxSize, int maxValueLength) {
+        return new Attribute(this, new BoundedCache<String, Boolean>(maxSize), maxValueLength);
+    }
+
+    /**
+     * @return The verdict cache of this attribute, or null if it has none.
+     */
+    public BoundedCache<String, Boolean> getVerdictCache() {
+        return verdictCache;
+    }
+
+    /**
+     * Checks a value against both the allowed literals and the allowed regular
+     * expressions, lowercasing it only once.
+     *
+     * @param value The attribute value, in any case.
+     * @return True if the value is allowed.
+     */
+    public boolean isAllowed(String value) {
+        if (verdictCache == null || value.length() > maxCachedValueLength) {
+            return valueMatcher.matches(value.toLowerCase());
         }
-        return false;
+        Boolean verdict = verdictCache.get(value);
+        if (verdict == null) {
+            verdict = valueMatcher.matches(value.toLowerCase());
+            verdictCache.put(value, verdict);
+        }
+        return verdict;
+    }
+
+    public boolean matchesAllowedExpression(String value){
+        return valueMatcher.matchesPattern(value.toLowerCase());
     }
 
     public boolean containsAllowedValue(String valueInLowerCase){
-        return allowedValuesLower.contains(valueInLowerCase);
+        return valueMatcher.matchesLiteral(valueInLowerCase);
     }
 
 	public String getName() {
 		return name;
 	}
 
+    /**
+     * @return The description of this attribute from the policy, or null.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return The allowed literal values, as written in the policy.
+     */
+    public List<String> getAllowedValues() {
+        return allowedValues;
+    }
+
+    /**
+     * @return The allowed regular expressions.
+     */
+    public List<Pattern> getAllowedRegExps() {
+        return Collections.unmodifiableList(Arrays.asList(allowedRegExps));
+    }
+
     /**
 	 * 
 	 * @return The <code>onInvalid</code> value a tag could have, from the list of "filterTag", "removeTag" and "removeAttribute" 
@@ -90,9 +162,48 @@ public String getOnInvalid() {
 	}
 
 
+    /**
+     * @return A copy of this attribute with the given <code>onInvalid</code>
+     *         and description where they are not empty, or this attribute if
+     *         that changes nothing.
+     */
     public Attribute mutate(String onInvalid, String description)  {
-        return new Attribute(name, Arrays.asList(allowedRegExps), allowedValues, onInvalid != null && onInvalid.length() != 0 ? onInvalid : this.onInvalid,
-                description != null && description.length() != 0 ? description : this.description);
+        String newOnInvalid = onInvalid != null && onInvalid.length() != 0 ? onInvalid : this.onInvalid;
+        String newDescription = description != null && description.length() != 0 ? description : this.description;
+        if (equal(newOnInvalid, this.onInvalid) && equal(newDescription, this.description)) {
+            return this;
+        }
+        return new Attribute(name, Arrays.asList(allowedRegExps), allowedValues, newOnInvalid, newDescription);
+    }
+
+    /**
+     * Attributes are equal when they have the same name, literals, regular
+     * expressions, <code>onInvalid</code> and description, and share their
+     * verdict cache if they have one.
+     */
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Attribute)) {
+            return false;
+        }
+        Attribute other = (Attribute) o;
+        return name.equals(other.name)
+                && equal(onInvalid, other.onInvalid)
+                && equal(description, other.description)
+                && allowedValues.equals(other.allowedValues)
+                && ValueMatcher.samePatterns(Arrays.asList(allowedRegExps), Arrays.asList(other.allowedRegExps))
+                && verdictCache == other.verdictCache;
+    }
+
+    public int hashCode() {
+        return 31 * (31 * name.hashCode() + allowedValues.hashCode())
+                + ValueMatcher.hashPatterns(Arrays.asList(allowedRegExps));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     public String matcherRegEx(boolean hasNext){
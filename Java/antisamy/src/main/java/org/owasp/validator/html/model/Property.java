@@ -49,32 +49,46 @@ public class Property {
 
 	private final List<String> shorthandRefs;
 
+	private final ValueMatcher valueMatcher;
+
     public Property(String name, List<Pattern> allowedRegexp3, List<String> allowedValue, List<String> shortHandRefs, String description, String onInvalidStr) {
         this.name = name;
         this.allowedRegExp  = Collections.unmodifiableList(allowedRegexp3);
         this.allowedValues = Collections.unmodifiableList(allowedValue);
         this.shorthandRefs = Collections.unmodifiableList(shortHandRefs);
+        this.valueMatcher = new ValueMatcher(allowedValue, allowedRegexp3);
+    }
+
+    /**
+     * Checks a value against the allowed literals and regular expressions of
+     * this property. Shorthand references are not followed.
+     *
+     * @param valueInLowerCase The lowercased value.
+     * @return True if the value is allowed.
+     */
+    public boolean isAllowedValue(String valueInLowerCase) {
+        return valueMatcher.matches(valueInLowerCase);
     }
 
     /**
 	 * Return a <code>List</code> of allowed regular expressions
 	 * @return A <code>List</code> of allowed regular expressions.
 	 */
-	public List getAllowedRegExp() {
+	public List<Pattern> getAllowedRegExp() {
 		return allowedRegExp;
 	}
 
     /**
 	 * @return A <code>List</code> of allowed literal values.
 	 */
-	public List getAllowedValues() {
+	public List<String> getAllowedValues() {
 		return allowedValues;
 	}
 
     /**
 	 * @return A <code>List</code> of allowed shorthand references.
 	 */
-	public List getShorthandRefs() {
+	public List<String> getShorthandRefs() {
 		return shorthandRefs;
 	}
 
@@ -86,4 +100,26 @@ public String getName() {
 		return name;
 	}
 
+    /**
+     * Properties are equal when they have the same name, literals, regular
+     * expressions and shorthand references.
+     */
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Property)) {
+            return false;
+        }
+        Property other = (Property) o;
+        return name.equals(other.name)
+                && allowedValues.equals(other.allowedValues)
+                && shorthandRefs.equals(other.shorthandRefs)
+                && ValueMatcher.samePatterns(allowedRegExp, other.allowedRegExp);
+    }
+
+    public int hashCode() {
+        return 31 * (31 * name.hashCode() + allowedValues.hashCode()) + ValueMatcher.hashPatterns(allowedRegExp);
+    }
+
 }
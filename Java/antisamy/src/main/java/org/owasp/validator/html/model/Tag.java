@@ -151,4 +151,11 @@ public String getName() {
     public Attribute getAttributeByName(String name) {
         return allowedAttributes.get(name);
     }
+
+    /**
+     * @return The allowed attributes of this tag, keyed by their lowercase name.
+     */
+    public Map<String, Attribute> getAllowedAttributes() {
+        return allowedAttributes;
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.owasp.validator.html.util.PatternRegistry;
+
+/**
+ * Matches a value against the literals and regular expressions allowed by an
+ * <code>Attribute</code> or <code>Property</code>.
+ * <p/>
+ * The regular expressions are combined into a single alternation, so a value
+ * is checked in one pass over one automaton instead of once per expression.
+ * The alternation is only built and compiled on the first check, as most
+ * attributes of a policy are never checked by a given application, and
+ * identical alternations are shared through the <code>PatternRegistry</code>.
+ * The <code>Matcher</code> is reused per thread, so checking a value doesn't
+ * allocate. Expressions that cannot be combined safely (those with compile
+ * flags, inline flags, quoting or back references) are kept and tried
+ * separately.
+ */
+public final class ValueMatcher {
+
+    private static final Pattern NOT_COMBINABLE = Pattern.compile("\\\\[1-9]|\\\\Q|\\(\\?[idmsux-]");
+
+    private final Set<String> literals;
+    private final Pattern[] patterns;
+    private volatile Compiled compiled;
+
+    /**
+     * @param literals The allowed literal values, compared exactly.
+     * @param patterns The allowed regular expressions, which have to match the
+     *                 whole value. Null elements are ignored.
+     */
+    public ValueMatcher(Collection<String> literals, Collection<Pattern> patterns) {
+        this.literals = new HashSet<String>(literals);
+        List<Pattern> nonNull = new ArrayList<Pattern>(patterns.size());
+        for (Pattern pattern : patterns) {
+            if (pattern != null) {
+                nonNull.add(pattern);
+            }
+        }
+        this.patterns = nonNull.toArray(new Pattern[nonNull.size()]);
+    }
+
+    /**
+     * @param value The value to check.
+     * @return True if the value equals one of the allowed literals or matches
+     *         one of the allowed regular expressions.
+     */
+    public boolean matches(String value) {
+        return matchesLiteral(value) || matchesPattern(value);
+    }
+
+    /**
+     * @param value The value to check.
+     * @return True if the value equals one of the allowed literals.
+     */
+    public boolean matchesLiteral(String value) {
+        return literals.contains(value);
+    }
+
+    /**
+     * @param value The value to check.
+     * @return True if the whole value matches one of the allowed regular expressions.
+     */
+    public boolean matchesPattern(String value) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        Compiled c = compiled;
+        if (c == null) {
+            // racing threads may both compile, which is harmless
+            c = new Compiled(patterns);
+            compiled = c;
+        }
+
+        if (c.combined != null) {
+            Matcher m = c.matcher.get();
+            boolean matches = m.reset(value).matches();
+            // don't hold on to the value until the next check on this thread
+            m.reset("");
+            if (matches) {
+                return true;
+            }
+        }
+        for (Pattern pattern : c.separate) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if both lists hold the same expressions with the same
+     *         flags, in the same order.
+     */
+    static boolean samePatterns(List<Pattern> a, List<Pattern> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            Pattern p = a.get(i);
+            Pattern q = b.get(i);
+            if (p != q && (p.flags() != q.flags() || !p.pattern().equals(q.pattern()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hashPatterns(List<Pattern> patterns) {
+        int hash = 1;
+        for (Pattern pattern : patterns) {
+            hash = 31 * hash + pattern.pattern().hashCode() + pattern.flags();
+        }
+        return hash;
+    }
+
+    private static final class Compiled {
+        final Pattern combined;
+        final Pattern[] separate;
+        final ThreadLocal<Matcher> matcher = new ThreadLocal<Matcher>() {
+            protected Matcher initialValue() {
+                return combined.matcher("");
+            }
+        };
+
+        Compiled(Pattern[] patterns) {
+            StringBuilder alternation = new StringBuilder();
+            List<Pattern> notCombined = new ArrayList<Pattern>();
+            for (Pattern pattern : patterns) {
+                if (pattern.flags() != 0 || NOT_COMBINABLE.matcher(pattern.pattern()).find()) {
+                    notCombined.add(pattern);
+                } else {
+                    if (alternation.length() > 0) {
+                        alternation.append('|');
+                    }
+                    alternation.append("(?:").append(pattern.pattern()).append(')');
+                }
+            }
+
+            Pattern combined = null;
+            if (alternation.length() > 0) {
+                try {
+                    combined = PatternRegistry.compile(alternation.toString());
+                } catch (PatternSyntaxException e) {
+                    // fall back to trying each expression on its own
+                    notCombined = Arrays.asList(patterns);
+                }
+            }
+            this.combined = combined;
+            this.separate = notCombined.toArray(new Pattern[notCombined.size()]);
+        }
+    }
+}
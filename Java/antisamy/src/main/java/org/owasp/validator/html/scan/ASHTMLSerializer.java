@@ -5,6 +5,7 @@
 import org.apache.xml.serialize.OutputFormat;
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -20,7 +21,7 @@ public ASHTMLSerializer(Writer w, OutputFormat format, InternalPolicy policy) {
 	}
 	
 	protected String getEntityRef(int charToPrint) {
-		if(encodeAllPossibleEntities || Constants.big5CharsToEncode.indexOf(charToPrint) != -1)
+		if(encodeAllPossibleEntities || HTMLEntityEncoder.isMarkupSignificant(charToPrint))
 			return super.getEntityRef(charToPrint);
 		return null;
 	}
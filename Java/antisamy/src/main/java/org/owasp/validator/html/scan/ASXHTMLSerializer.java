@@ -3,8 +3,8 @@
 import org.apache.xml.serialize.ElementState;
 import org.apache.xml.serialize.OutputFormat;
 import org.owasp.validator.html.InternalPolicy;
-import org.owasp.validator.html.Policy;
-import org.owasp.validator.html.TagMatcher;
+import org.owasp.validator.html.DecisionTable;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -18,18 +18,16 @@
 public class ASXHTMLSerializer extends org.apache.xml.serialize.XHTMLSerializer {
 
 	private boolean encodeAllPossibleEntities;
-	private final TagMatcher allowedEmptyTags;
-	private final TagMatcher requireClosingTags;
+	private final DecisionTable decisionTable;
 	
 	public ASXHTMLSerializer(Writer w, OutputFormat format, InternalPolicy policy) {
 		super(w, format);
-		this.allowedEmptyTags = policy.getAllowedEmptyTags();
-		this.requireClosingTags = policy.getRequiresClosingTags();
+		this.decisionTable = policy.getDecisionTable();
 		this.encodeAllPossibleEntities = policy.isEntityEncodeIntlCharacters();
 	}
 	
 	protected String getEntityRef(int charToPrint) {
-		if(encodeAllPossibleEntities || Constants.big5CharsToEncode.indexOf(charToPrint) != -1)
+		if(encodeAllPossibleEntities || HTMLEntityEncoder.isMarkupSignificant(charToPrint))
 			return super.getEntityRef(charToPrint);
 		return null;
 	}
@@ -74,10 +72,10 @@ public void endElementIO(String namespaceURI, String localName,
 	}
 	
 	private boolean requiresClosingTag(String tagName) {
-        return requireClosingTags.matches(tagName);
+        return decisionTable.isRequiresClosingTag(tagName);
 	}
 
 	private boolean isAllowedEmptyTag(String tagName) {
-        return "head".equals(tagName) || allowedEmptyTags.matches( tagName);
+        return "head".equals(tagName) || decisionTable.isAllowedEmptyTag(tagName);
 	}
 }
@@ -29,12 +29,13 @@
 
 import org.apache.xml.serialize.OutputFormat;
 import org.owasp.validator.html.*;
+import org.owasp.validator.html.util.ErrorMessageList;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 
 public abstract class AbstractAntiSamyScanner {
 
 	protected final InternalPolicy policy;
-	protected final List<String> errorMessages = new ArrayList<String>();
+	protected final ErrorMessageList errorMessages;
 
 	protected static final ResourceBundle messages = getResourceBundle();
 	protected final Locale locale = Locale.getDefault();
@@ -42,6 +43,26 @@ public abstract class AbstractAntiSamyScanner {
 	protected boolean isNofollowAnchors = false;
 	protected boolean isValidateParamAsEmbed = false;
 
+	protected ScanMetrics metrics = null;
+
+	protected ResultStore resultStore = null;
+
+	/**
+	 * Keeps the results of full scans, so identical input isn't parsed again.
+	 * Only consulted for input that passed the size check and that the
+	 * pre-scan couldn't handle.
+	 */
+	public interface ResultStore {
+
+		/**
+		 * @param html The normalized input.
+		 * @return The stored results for the input, or null.
+		 */
+		CleanResults get(String html);
+
+		void put(String html, CleanResults results);
+	}
+
 	public abstract CleanResults scan(String html) throws ScanException;
 
 	/** @noinspection UnusedDeclaration TODO: Investigate */
@@ -49,10 +70,107 @@ public abstract class AbstractAntiSamyScanner {
 
 	public AbstractAntiSamyScanner(Policy policy) {
 		this.policy = (InternalPolicy) policy;
+		this.errorMessages = new ErrorMessageList(messages, !this.policy.isOmitErrorMessages());
 	}
 
 	public AbstractAntiSamyScanner() throws PolicyException {
 		policy = (InternalPolicy) Policy.getInstance();
+		errorMessages = new ErrorMessageList(messages, !policy.isOmitErrorMessages());
+	}
+
+	/**
+	 * Makes the following scans record their timings and counters into
+	 * <code>metrics</code>.
+	 *
+	 * @param metrics The metrics to fill in, or null to record nothing.
+	 */
+	public void setMetrics(ScanMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Makes the following scans look up and store their results in
+	 * <code>store</code>.
+	 *
+	 * @param store The store to use, or null to scan every input.
+	 */
+	public void setResultStore(ResultStore store) {
+		this.resultStore = store;
+	}
+
+	/**
+	 * @return The stored results for normalized input, or null.
+	 */
+	protected CleanResults storedResults(String html) {
+		if (resultStore == null) {
+			return null;
+		}
+		CleanResults stored = resultStore.get(html);
+		if (stored != null && metrics != null) {
+			metrics.setOutputLength(stored.getCleanHTML().length());
+		}
+		return stored;
+	}
+
+	protected CleanResults storeResults(String html, CleanResults results) {
+		if (resultStore != null) {
+			resultStore.put(html, results);
+		}
+		return results;
+	}
+
+	/**
+	 * @return The start time of a phase, if metrics are recorded.
+	 */
+	protected long startPhase() {
+		return metrics != null ? System.nanoTime() : 0;
+	}
+
+	protected void endPhase(ScanMetrics.Phase phase, long start) {
+		if (metrics != null) {
+			metrics.addTime(phase, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Ends a phase during which CSS was scanned, leaving out the time of the
+	 * CSS scans, which is recorded apart.
+	 *
+	 * @param cssTimeBefore The CSS time of the metrics when the phase started.
+	 */
+	protected void endPhase(ScanMetrics.Phase phase, long start, long cssTimeBefore) {
+		if (metrics != null) {
+			long cssTime = metrics.getTime(ScanMetrics.Phase.CSS) - cssTimeBefore;
+			metrics.addTime(phase, System.nanoTime() - start - cssTime);
+		}
+	}
+
+	protected long getCssTime() {
+		return metrics != null ? metrics.getTime(ScanMetrics.Phase.CSS) : 0;
+	}
+
+	protected void elementScanned() {
+		if (metrics != null) {
+			metrics.elementScanned();
+		}
+	}
+
+	protected void elementFiltered() {
+		if (metrics != null) {
+			metrics.elementFiltered();
+		}
+	}
+
+	protected void elementRemoved() {
+		if (metrics != null) {
+			metrics.elementRemoved();
+		}
+	}
+
+	protected void attributeRejected() {
+		if (metrics != null) {
+			metrics.attributeRejected();
+		}
 	}
 
     private static ResourceBundle getResourceBundle() {
@@ -64,7 +182,39 @@ private static ResourceBundle getResourceBundle() {
     }
 
     protected void addError(String errorKey, Object[] objs) {
-		errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, objs));
+		errorMessages.add(errorKey, objs);
+	}
+
+	/**
+	 * Builds the message for a scan-aborting error. Rendered eagerly since it
+	 * becomes the exception message, even when error collection is off.
+	 */
+	protected String getMessage(String errorKey, Object[] objs) {
+		return ErrorMessageUtil.getMessage(messages, errorKey, objs);
+	}
+
+	/**
+	 * The pre-parse stage both engines start with: rejects null and oversized
+	 * input, then strips characters that are not valid in XML in one pass.
+	 */
+	NormalizedInput normalize(String html) throws ScanException {
+		if (html == null) {
+			throw new ScanException(new NullPointerException("Null input"));
+		}
+
+		int maxInputSize = policy.getMaxInputSize();
+
+		if (html.length() > maxInputSize) {
+			throw new ScanException(getMessage(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {html.length(), maxInputSize}));
+		}
+
+		long start = startPhase();
+		NormalizedInput input = NormalizedInput.of(html);
+		if (metrics != null) {
+			endPhase(ScanMetrics.Phase.NORMALIZE, start);
+			metrics.setInputLength(html.length());
+		}
+		return input;
 	}
 	
 	
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanListener;
+import org.owasp.validator.html.ScanMetrics;
+
+/**
+ * Scans a batch of inputs with the SAX engine, spread over an
+ * <code>ExecutorService</code>. Identical inputs are scanned only once, and
+ * the results are returned in input order.
+ * <p/>
+ * The distinct inputs are split into a few chunks per processor, and each
+ * chunk is scanned on one worker, so a worker keeps reusing the parser,
+ * transformer and filter it takes from the scanner's pool instead of handing
+ * them back and forth for every item. The calling thread scans chunks too,
+ * which makes it safe to call from a task of the same bounded executor.
+ */
+public class AntiSamyBatchScanner {
+
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    private final Policy policy;
+    private final ExecutorService executor;
+    private final ScanListener listener;
+
+    public AntiSamyBatchScanner(Policy policy, ExecutorService executor) {
+        this(policy, executor, null);
+    }
+
+    /**
+     * @param listener The listener to report every distinct scan to, on the
+     *                 thread that scanned it, or null.
+     */
+    public AntiSamyBatchScanner(Policy policy, ExecutorService executor, ScanListener listener) {
+        this.policy = policy;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * @param inputs The untrusted HTML to scan.
+     * @return One <code>CleanResults</code> per input, in input order.
+     *         Identical inputs share the same <code>CleanResults</code>.
+     * @throws ScanException If any input fails to scan; the first failure in
+     *         input order is reported.
+     */
+    public List<CleanResults> scanAll(List<String> inputs) throws ScanException {
+
+        Map<String, Integer> distinctIndex = new HashMap<String, Integer>();
+        List<String> distinct = new ArrayList<String>();
+        int[] resultIndex = new int[inputs.size()];
+        for (int i = 0; i < resultIndex.length; i++) {
+            String input = inputs.get(i);
+            Integer index = distinctIndex.get(input);
+            if (index == null) {
+                index = distinct.size();
+                distinctIndex.put(input, index);
+                distinct.add(input);
+            }
+            resultIndex[i] = index;
+        }
+
+        CleanResults[] results = new CleanResults[distinct.size()];
+        int chunks = Math.min(distinct.size(), Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR);
+        if (chunks <= 1) {
+            scanChunk(distinct, 0, distinct.size(), results);
+        } else {
+            Batch batch = new Batch(distinct, chunks, results);
+            List<Future<?>> helpers = new ArrayList<Future<?>>(chunks - 1);
+            try {
+                for (int i = 1; i < chunks; i++) {
+                    helpers.add(executor.submit(batch));
+                }
+            } catch (RejectedExecutionException e) {
+                // the executor is saturated or shut down, scan the rest here
+            }
+            // The calling thread scans chunks as well, and only waits for the
+            // ones other threads already started. Helpers still queued, for
+            // instance behind the calling thread in the same executor, find
+            // nothing left to do.
+            batch.call();
+            try {
+                batch.finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(helpers, true);
+                throw new ScanException(e);
+            }
+            cancel(helpers, false);
+            batch.rethrowFailure();
+        }
+
+        CleanResults[] ordered = new CleanResults[resultIndex.length];
+        for (int i = 0; i < ordered.length; i++) {
+            ordered[i] = results[resultIndex[i]];
+        }
+        return Arrays.asList(ordered);
+    }
+
+    private void scanChunk(List<String> inputs, int from, int to, CleanResults[] results) throws ScanException {
+        for (int i = from; i < to; i++) {
+            // the scanner itself is cheap, its parser and transformer are pooled
+            AntiSamySAXScanner scanner = new AntiSamySAXScanner(policy);
+            if (listener == null) {
+                results[i] = scanner.scan(inputs.get(i));
+            } else {
+                long start = System.nanoTime();
+                ScanMetrics metrics = new ScanMetrics(AntiSamy.SAX);
+                scanner.setMetrics(metrics);
+                results[i] = scanner.scan(inputs.get(i));
+                metrics.setTotalTime(System.nanoTime() - start);
+                metrics.setScanPath(results[i].getScanPath());
+                listener.scanCompleted(metrics);
+            }
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures, boolean interrupt) {
+        for (Future<?> future : futures) {
+            future.cancel(interrupt);
+        }
+    }
+
+    /**
+     * The chunks of one batch, claimed in order by the helpers and the
+     * calling thread alike, so each chunk is scanned exactly once.
+     */
+    private class Batch implements Callable<Void> {
+        private final List<String> inputs;
+        private final int chunks;
+        private final CleanResults[] results;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final Throwable[] failures;
+        private volatile boolean failed;
+        final CountDownLatch finished;
+
+        Batch(List<String> inputs, int chunks, CleanResults[] results) {
+            this.inputs = inputs;
+            this.chunks = chunks;
+            this.results = results;
+            this.failures = new Throwable[chunks];
+            this.finished = new CountDownLatch(chunks);
+        }
+
+        public Void call() {
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                try {
+                    if (!failed) {
+                        int from = (int) ((long) inputs.size() * chunk / chunks);
+                        int to = (int) ((long) inputs.size() * (chunk + 1) / chunks);
+                        scanChunk(inputs, from, to, results);
+                    }
+                } catch (Throwable t) {
+                    failures[chunk] = t;
+                    failed = true;
+                } finally {
+                    finished.countDown();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Throws the failure of the first chunk that failed, once all chunks
+         * finished.
+         */
+        void rethrowFailure() throws ScanException {
+            for (Throwable failure : failures) {
+                if (failure instanceof ScanException) {
+                    throw (ScanException) failure;
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure instanceof Error) {
+                    throw (Error) failure;
+                } else if (failure != null) {
+                    throw new ScanException((Exception) failure);
+                }
+            }
+        }
+    }
+}
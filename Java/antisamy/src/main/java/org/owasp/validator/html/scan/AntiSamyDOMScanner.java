@@ -29,16 +29,21 @@
 import org.owasp.validator.css.CssScanner;
 import org.owasp.validator.css.ExternalCssScanner;
 import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.CleanResults.ScanPath;
+import org.owasp.validator.html.DecisionTable;
+import org.owasp.validator.html.DecisionTable.Action;
+import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanMetrics;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
+import org.owasp.validator.html.util.ObjectPool;
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
@@ -47,8 +52,6 @@
 import java.io.StringWriter;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -61,35 +64,66 @@
  */
 public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
-    private Document document = new DocumentImpl();
-    private DocumentFragment dom = document.createDocumentFragment();
+    private DocumentFragment dom;
+    private CachedItem cachedItem;
     private CleanResults results = null;
+    private DecisionTable decisionTable;
+    private boolean preScan = true;
     private static final int maxDepth = 250;
-    private static final Pattern invalidXmlCharacters =
-            Pattern.compile("[\\u0000-\\u001F\\uD800-\\uDFFF\\uFFFE-\\uFFFF&&[^\\u0009\\u000A\\u000D]]");
     private static final Pattern conditionalDirectives =
             Pattern.compile("<?!?\\[\\s*(?:end)?if[^]]*\\]>?");
 
-    private static final Queue<CachedItem> cachedItems = new ConcurrentLinkedQueue<CachedItem>();
+    private static final ObjectPool<CachedItem> cachedItems =
+            new ObjectPool<CachedItem>(Constants.DEFAULT_POOL_MAX_IDLE, Constants.DEFAULT_POOL_IDLE_TIMEOUT) {
+                protected CachedItem create() {
+                    return new CachedItem();
+                }
+            };
 
     static class CachedItem {
         private final DOMFragmentParser parser;
-        private final Matcher invalidXmlCharMatcher = invalidXmlCharacters.matcher("");
-
+        private CssScanner cssScanner;
+        private InternalPolicy cssScannerPolicy;
 
-        CachedItem() throws SAXNotSupportedException, SAXNotRecognizedException {
-            this.parser = getDomParser();
+        CachedItem() {
+            try {
+                this.parser = getDomParser();
+            } catch (SAXNotRecognizedException e) {
+                throw new RuntimeException(e);
+            } catch (SAXNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         DOMFragmentParser getDomFragmentParser()  {
             return parser;
         }
+
+        /**
+         * @return The CSS scanner for the style elements and attributes of a
+         *         scan, kept for the following scans with the same policy.
+         */
+        CssScanner getCssScanner(InternalPolicy policy) {
+            if (cssScanner == null || cssScannerPolicy != policy) {
+                cssScanner = policy.isEmbedStyleSheets() ? new ExternalCssScanner(policy, messages) : new CssScanner(policy, messages);
+                cssScannerPolicy = policy;
+            }
+            return cssScanner;
+        }
     }
 
     public AntiSamyDOMScanner(Policy policy) {
         super(policy);
     }
 
+    /**
+     * @return The pool of parsers shared by all DOM scans, for configuration
+     *         and monitoring.
+     */
+    public static ObjectPool<?> getPool() {
+        return cachedItems;
+    }
+
     /** @noinspection UnusedDeclaration Todo Investigate */
     public AntiSamyDOMScanner() throws PolicyException {
         super();
@@ -108,37 +142,48 @@ public AntiSamyDOMScanner() throws PolicyException {
      */
     public CleanResults scan(String html) throws ScanException {
 
-        if (html == null) {
-            throw new ScanException(new NullPointerException("Null input"));
-        }
-
         errorMessages.clear();
-        int maxInputSize = policy.getMaxInputSize();
 
-        if (maxInputSize < html.length()) {
-            addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[]{html.length(), maxInputSize});
-            throw new ScanException(errorMessages.get(0));
-        }
+        /*
+         * We have to remove any invalid XML characters to prevent NekoHTML
+         * from breaking when it gets passed encodings like %21.
+         */
+        NormalizedInput input = normalize(html);
+        html = input.getHtml();
 
         isNofollowAnchors = policy.isNofollowAnchors();
         isValidateParamAsEmbed = policy.isValidateParamAsEmbed();
+        decisionTable = policy.getDecisionTable();
 
         long startOfScan = System.currentTimeMillis();
 
-        try {
-
-            CachedItem cachedItem;
-            cachedItem = cachedItems.poll();
-            if (cachedItem == null){
-                cachedItem = new CachedItem();
+        long start = startPhase();
+        ScanPath path = preScan ? PreScanner.classify(input, policy) : null;
+        endPhase(ScanMetrics.Phase.FILTER, start);
+        if (path != null) {
+            if (metrics != null) {
+                metrics.setOutputLength(html.length());
             }
+            final String clean = html;
+            Callable<DocumentFragment> fragment = new Callable<DocumentFragment>() {
+                public DocumentFragment call() throws Exception {
+                    AntiSamyDOMScanner scanner = new AntiSamyDOMScanner(policy);
+                    scanner.preScan = false;
+                    return scanner.scan(clean).getCleanXMLDocumentFragment();
+                }
+            };
+            return new CleanResults(startOfScan, html, fragment, errorMessages, path);
+        }
 
-            /*
-             * We have to replace any invalid XML characters to prevent NekoHTML
-             * from breaking when it gets passed encodings like %21.
-             */
+        CleanResults stored = storedResults(html);
+        if (stored != null) {
+            return stored;
+        }
+
+        boolean reusable = false;
+        try {
 
-            html = stripNonValidXMLCharacters(html, cachedItem.invalidXmlCharMatcher);
+            cachedItem = cachedItems.borrow();
 
             /*
              * First thing we do is call the HTML cleaner ("NekoHTML") on it
@@ -150,13 +195,21 @@ public CleanResults scan(String html) throws ScanException {
 
             DOMFragmentParser parser = cachedItem.getDomFragmentParser();
 
+            // only a full parse needs a document, the pre-scanned paths don't
+            dom = new DocumentImpl().createDocumentFragment();
+
+            start = startPhase();
             try {
                 parser.parse(new InputSource(new StringReader(html)), dom);
             } catch (Exception e) {
                 throw new ScanException(e);
             }
+            endPhase(ScanMetrics.Phase.PARSE, start);
 
+            start = startPhase();
+            long cssTime = getCssTime();
             processChildren(dom, 0);
+            endPhase(ScanMetrics.Phase.FILTER, start, cssTime);
 
             /*
              * Serialize the output and then return the resulting DOM object and
@@ -166,20 +219,36 @@ public CleanResults scan(String html) throws ScanException {
 
             final String trimmedHtml = html;
 
-            StringWriter out = new StringWriter();
+            start = startPhase();
+            String serialized;
+            if (policy.isUseStreamingWriter()) {
+                StringBuilder out = new StringBuilder(html.length());
+                MarkupSerializer serializer = new MarkupSerializer(policy, true);
+                serializer.reset(MarkupSink.to(out));
+                serializeChildren(dom, serializer);
+                serializer.endDocument();
+                serialized = out.toString();
+            } else {
+                StringWriter out = new StringWriter();
 
-            @SuppressWarnings("deprecation")
-            org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+                @SuppressWarnings("deprecation")
+                org.apache.xml.serialize.OutputFormat format = getOutputFormat();
 
-            //noinspection deprecation
-            org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
-            serializer.serialize(dom);
+                //noinspection deprecation
+                org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
+                serializer.serialize(dom);
+                serialized = out.getBuffer().toString();
+            }
 
                     /*
                     * Get the String out of the StringWriter and rip out the XML
                     * declaration if the Policy says we should.
                     */
-            final String trimmed = trim( trimmedHtml, out.getBuffer().toString() );
+            final String trimmed = trim( trimmedHtml, serialized );
+            endPhase(ScanMetrics.Phase.SERIALIZE, start);
+            if (metrics != null) {
+                metrics.setOutputLength(trimmed.length());
+            }
 
             Callable<String> cleanHtml = new Callable<String>() {
                 public String call() throws Exception {
@@ -192,19 +261,53 @@ public String call() throws Exception {
              */
             results = new CleanResults(startOfScan, cleanHtml, dom, errorMessages);
 
-            cachedItems.add( cachedItem);
-            return results;
+            reusable = true;
+            return storeResults(html, results);
 
 
-        } catch (SAXException e) {
-            throw new ScanException(e);
-        }
-        catch ( IOException e ) {
+        } catch ( IOException e ) {
             throw new ScanException(e);
+        } finally {
+            // a parser whose scan failed may be left in any state
+            if (reusable) {
+                cachedItems.release(cachedItem);
+            } else if (cachedItem != null) {
+                cachedItems.discard(cachedItem);
+            }
+            cachedItem = null;
         }
 
     }
 
+    /**
+     * Writes the children of a node of the clean fragment.
+     */
+    private static void serializeChildren(Node parent, MarkupSerializer serializer) throws IOException {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    serializer.startElement(node.getNodeName());
+                    NamedNodeMap attributes = node.getAttributes();
+                    for (int i = 0; i < attributes.getLength(); i++) {
+                        Node attribute = attributes.item(i);
+                        serializer.attribute(attribute.getNodeName(), attribute.getNodeValue());
+                    }
+                    serializeChildren(node, serializer);
+                    serializer.endElement();
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    serializer.characters(node.getNodeValue());
+                    break;
+                case Node.COMMENT_NODE:
+                    serializer.comment(node.getNodeValue());
+                    break;
+                default:
+                    serializeChildren(node, serializer);
+            }
+        }
+    }
+
     static DOMFragmentParser getDomParser()
             throws SAXNotRecognizedException, SAXNotSupportedException {
         DOMFragmentParser parser = new DOMFragmentParser();
@@ -244,9 +347,13 @@ private void recursiveValidateTag(final Node node, int currentStackDepth) throws
         }
 
         boolean isElement = node instanceof Element;
+        if (isElement) {
+            elementScanned();
+        }
         NodeList eleChildNodes = node.getChildNodes();
         if (isElement && eleChildNodes.getLength() == 0) {
             if (removeDisallowedEmpty(node)){
+                elementRemoved();
                 return;
             }
         }
@@ -268,8 +375,9 @@ private void recursiveValidateTag(final Node node, int currentStackDepth) throws
         final Node parentNode = ele.getParentNode();
 
         final String tagName = ele.getNodeName();
-        final String tagNameLowerCase = tagName.toLowerCase();
-        Tag tagRule = policy.getTagByLowercaseName(tagNameLowerCase);
+        int tagId = decisionTable.getTagId(tagName);
+        Tag tagRule = decisionTable.getTag(tagId);
+        Action action = decisionTable.getAction(tagId);
 
         /*
          * If <param> and no policy and isValidateParamAsEmbed and policy in
@@ -277,31 +385,34 @@ private void recursiveValidateTag(final Node node, int currentStackDepth) throws
          * policy to get the tag through to the validator.
          */
         Tag embedTag = policy.getEmbedTag();
-        boolean masqueradingParam = isMasqueradingParam(tagRule, embedTag, tagNameLowerCase);
+        boolean masqueradingParam = isMasqueradingParam(tagRule, embedTag, tagName);
         if (masqueradingParam){
+            tagId = DecisionTable.UNKNOWN;
             tagRule = Constants.BASIC_PARAM_TAG_RULE;
+            action = Action.VALIDATE;
         }
 
-        if ((tagRule == null && policy.isEncodeUnknownTag()) || (tagRule != null && tagRule.isAction( "encode"))) {
+        if ((tagRule == null && policy.isEncodeUnknownTag()) || action == Action.ENCODE) {
             encodeTag(currentStackDepth, ele, tagName, eleChildNodes);
-        } else if (tagRule == null || tagRule.isAction( Policy.ACTION_FILTER)) {
+        } else if (tagRule == null || action == Action.FILTER) {
             actionFilter(currentStackDepth, ele, tagName, tagRule, eleChildNodes);
-        } else if (tagRule.isAction( Policy.ACTION_VALIDATE)) {
-            actionValidate(currentStackDepth, ele, parentNode, tagName, tagNameLowerCase, tagRule, masqueradingParam, embedTag, eleChildNodes);
-        } else if (tagRule.isAction( Policy.ACTION_TRUNCATE)) {
+        } else if (action == Action.VALIDATE) {
+            actionValidate(currentStackDepth, ele, parentNode, tagName, tagId, tagRule, masqueradingParam, embedTag, eleChildNodes);
+        } else if (action == Action.TRUNCATE) {
             actionTruncate(ele, tagName, eleChildNodes);
         } else {
             /*
              * If we reached this that means that the tag's action is "remove",
              * which means to remove the tag (including its contents).
              */
-            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{ErrorMessageUtil.encoded(tagName)});
+            elementRemoved();
             removeNode(ele);
         }
     }
 
-    private boolean isMasqueradingParam(Tag tagRule, Tag embedTag, String tagNameLowerCase){
-        if (tagRule == null && isValidateParamAsEmbed && "param".equals(tagNameLowerCase)) {
+    private boolean isMasqueradingParam(Tag tagRule, Tag embedTag, String tagName){
+        if (tagRule == null && isValidateParamAsEmbed && "param".equalsIgnoreCase(tagName)) {
             if (embedTag != null && embedTag.isAction( Policy.ACTION_VALIDATE)) {
                 return true;
             }
@@ -310,7 +421,8 @@ private boolean isMasqueradingParam(Tag tagRule, Tag embedTag, String tagNameLow
     }
 
     private void encodeTag(int currentStackDepth, Element ele, String tagName, NodeList eleChildNodes) throws ScanException {
-        addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+        addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[]{ErrorMessageUtil.encoded(tagName)});
+        elementFiltered();
         processChildren(eleChildNodes, currentStackDepth);
 
         /*
@@ -325,16 +437,17 @@ private void encodeTag(int currentStackDepth, Element ele, String tagName, NodeL
 
     private void actionFilter(int currentStackDepth, Element ele, String tagName, Tag tag, NodeList eleChildNodes) throws ScanException {
         if (tag == null) {
-            addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[]{ErrorMessageUtil.encoded(tagName)});
         } else {
-            addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[]{ErrorMessageUtil.encoded(tagName)});
         }
+        elementFiltered();
 
         processChildren(eleChildNodes, currentStackDepth);
         promoteChildren(ele);
     }
 
-    private void actionValidate(int currentStackDepth, Element ele, Node parentNode, String tagName, String tagNameLowerCase, Tag tag, boolean masqueradingParam, Tag embedTag, NodeList eleChildNodes) throws ScanException {
+    private void actionValidate(int currentStackDepth, Element ele, Node parentNode, String tagName, int tagId, Tag tag, boolean masqueradingParam, Tag embedTag, NodeList eleChildNodes) throws ScanException {
         /*
     * If doing <param> as <embed>, now is the time to convert it.
     */
@@ -346,6 +459,7 @@ private void actionValidate(int currentStackDepth, Element ele, Node parentNode,
                 ele.setAttribute(nameValue, valueValue);
                 ele.removeAttribute("name");
                 ele.removeAttribute("value");
+                tagId = decisionTable.getTagId("embed");
                 tag = embedTag;
             }
         }
@@ -356,8 +470,11 @@ private void actionValidate(int currentStackDepth, Element ele, Node parentNode,
     * parser.
     */
 
-        if ("style".equals(tagNameLowerCase) && policy.getStyleTag() != null) {
-            if (processStyleTag(ele, parentNode)) return;
+        if ("style".equalsIgnoreCase(tagName) && policy.getStyleTag() != null) {
+            if (processStyleTag(ele, parentNode)) {
+                elementRemoved();
+                return;
+            }
         }
 
         /*
@@ -368,9 +485,9 @@ private void actionValidate(int currentStackDepth, Element ele, Node parentNode,
     * attribute.
     */
 
-        if (processAttributes(ele, tagName, tag, currentStackDepth)) return; // can't process any more if we
+        if (processAttributes(ele, tagName, tagId, tag, currentStackDepth)) return; // can't process any more if we
 
-        if (isNofollowAnchors && "a".equals(tagNameLowerCase)) {
+        if (isNofollowAnchors && "a".equalsIgnoreCase(tagName)) {
             ele.setAttribute("rel", "nofollow");
         }
 
@@ -392,13 +509,7 @@ private boolean processStyleTag(Element ele, Node parentNode) {
         /*
 * Invoke the css parser on this element.
 */
-        CssScanner styleScanner;
-
-        if(policy.isEmbedStyleSheets()) {
-            styleScanner = new ExternalCssScanner(policy, messages);
-        }else{
-            styleScanner = new CssScanner(policy, messages);
-        }
+        CssScanner styleScanner = cachedItem.getCssScanner(policy);
 
         try {
 
@@ -407,7 +518,13 @@ private boolean processStyleTag(Element ele, Node parentNode) {
 
                 String toScan = firstChild.getNodeValue();
 
-                CleanResults cr = styleScanner.scanStyleSheet(toScan, policy.getMaxInputSize());
+                long start = startPhase();
+                CleanResults cr;
+                try {
+                    cr = styleScanner.scanStyleSheet(toScan, policy.getMaxInputSize());
+                } finally {
+                    endPhase(ScanMetrics.Phase.CSS, start);
+                }
 
                 errorMessages.addAll(cr.getErrorMessages());
 
@@ -435,13 +552,13 @@ private boolean processStyleTag(Element ele, Node parentNode) {
 
         } catch (DOMException e) {
 
-            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
+            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{ErrorMessageUtil.encoded(ele.getFirstChild().getNodeValue())});
             parentNode.removeChild(ele);
             return true;
 
         } catch (ScanException e) {
 
-            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
+            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{ErrorMessageUtil.encoded(ele.getFirstChild().getNodeValue())});
             parentNode.removeChild(ele);
             return true;
 
@@ -451,7 +568,7 @@ private boolean processStyleTag(Element ele, Node parentNode) {
              */
         } catch (ParseException e) {
 
-            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
+            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{ErrorMessageUtil.encoded(ele.getFirstChild().getNodeValue())});
             parentNode.removeChild(ele);
             return true;
 
@@ -460,7 +577,7 @@ private boolean processStyleTag(Element ele, Node parentNode) {
              */
         } catch (NumberFormatException e) {
 
-            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
+            addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{ErrorMessageUtil.encoded(ele.getFirstChild().getNodeValue())});
             parentNode.removeChild(ele);
             return true;
         }
@@ -478,7 +595,8 @@ private void actionTruncate(Element ele, String tagName, NodeList eleChildNodes)
 
         while (nnmap.getLength() > 0) {
 
-            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(nnmap.item(0).getNodeName())});
+            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, ErrorMessageUtil.encoded(nnmap.item(0).getNodeName())});
+            attributeRejected();
 
             ele.removeAttribute(nnmap.item(0).getNodeName());
 
@@ -502,7 +620,7 @@ private void actionTruncate(Element ele, String tagName, NodeList eleChildNodes)
         }
     }
 
-    private boolean processAttributes(Element ele, String tagName, Tag tag, int currentStackDepth) throws ScanException {
+    private boolean processAttributes(Element ele, String tagName, int tagId, Tag tag, int currentStackDepth) throws ScanException {
         Node attribute;
 
         NamedNodeMap attributes = ele.getAttributes();
@@ -513,15 +631,19 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
             String name = attribute.getNodeName();
             String value = attribute.getNodeValue();
 
-            Attribute attr = tag.getAttributeByName(name.toLowerCase());
-
             /**
-             * If we there isn't an attribute by that name in our policy
-             * check to see if it's a globally defined attribute. Validate
-             * against that if so.
+             * The decision table merges the tag's attributes over the globally
+             * defined ones. Only the built-in <param> rule isn't part of the
+             * policy, so its attributes are looked up directly.
              */
-            if (attr == null) {
-                attr = policy.getGlobalAttributeByName(name);
+            Attribute attr;
+            if (tagId != DecisionTable.UNKNOWN) {
+                attr = decisionTable.getAttribute(tagId, name);
+            } else {
+                attr = tag.getAttributeByName(name.toLowerCase());
+                if (attr == null) {
+                    attr = decisionTable.getAttribute(DecisionTable.UNKNOWN, name);
+                }
             }
 
             boolean isAttributeValid = false;
@@ -530,16 +652,22 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
              * We have to special case the "style" attribute since it's
              * validated quite differently.
              */
-            if ("style".equals(name.toLowerCase()) && attr != null) {
+            if ("style".equalsIgnoreCase(name) && attr != null) {
 
                 /*
                  * Invoke the CSS parser on this element.
                  */
-                CssScanner styleScanner = new CssScanner(policy, messages);
+                CssScanner styleScanner = cachedItem.getCssScanner(policy);
 
                 try {
 
-                    CleanResults cr = styleScanner.scanInlineStyle(value, tagName, policy.getMaxInputSize());
+                    long start = startPhase();
+                    CleanResults cr;
+                    try {
+                        cr = styleScanner.scanInlineStyle(value, tagName, policy.getMaxInputSize());
+                    } finally {
+                        endPhase(ScanMetrics.Phase.CSS, start);
+                    }
 
                     attribute.setNodeValue(cr.getCleanHTML());
 
@@ -549,14 +677,16 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
 
                 } catch (DOMException e) {
 
-                    addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(ele.getNodeValue())});
+                    addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, ErrorMessageUtil.encoded(ele.getNodeValue())});
+                    attributeRejected();
 
                     ele.removeAttribute(attribute.getNodeName());
                     currentAttributeIndex--;
 
                 } catch (ScanException e) {
 
-                    addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(ele.getNodeValue())});
+                    addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, ErrorMessageUtil.encoded(ele.getNodeValue())});
+                    attributeRejected();
 
                     ele.removeAttribute(attribute.getNodeName());
                     currentAttributeIndex--;
@@ -566,13 +696,7 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
 
                 if (attr != null) {
 
-                    if (attr.containsAllowedValue( value.toLowerCase())) {
-                        isAttributeValid = true;
-                    }
-
-                    if (attr.matchesAllowedExpression(value)){
-                        isAttributeValid = true;
-                    }
+                    isAttributeValid = attr.isAllowed(value);
 
                     if (!isAttributeValid) {
 
@@ -593,7 +717,9 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
                             removeNode(ele);
 
                             addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
-                                    new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                                    new Object[]{tagName, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)});
+                            attributeRejected();
+                            elementRemoved();
                             return true;
 
                         } else if ("filterTag".equals(onInvalidAction)) {
@@ -607,7 +733,9 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
 
                             promoteChildren(ele);
 
-                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, new Object[]{tagName, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)});
+                            attributeRejected();
+                            elementFiltered();
 
                         } else if ("encodeTag".equals(onInvalidAction)) {
 
@@ -620,7 +748,9 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
 
                             encodeAndPromoteChildren(ele);
 
-                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, new Object[]{tagName, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)});
+                            attributeRejected();
+                            elementFiltered();
 
                         } else {
 
@@ -632,7 +762,8 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
 
                             currentAttributeIndex--;
 
-                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[]{tagName, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)});
+                            attributeRejected();
 
                             if ("removeTag".equals(onInvalidAction) || "filterTag".equals(onInvalidAction)) {
                                 return true;
@@ -648,7 +779,8 @@ private boolean processAttributes(Element ele, String tagName, Tag tag, int curr
                      * - remove it (whitelisting!)
                      */
 
-                    addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                    addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)});
+                    attributeRejected();
 
                     ele.removeAttribute(attribute.getNodeName());
 
@@ -684,14 +816,14 @@ private void processChildren(NodeList childNodes, int currentStackDepth ) throws
     }
 
     private void removePI(Node node) {
-        addError(ErrorMessageUtil.ERROR_PI_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getTextContent())});
+        addError(ErrorMessageUtil.ERROR_PI_FOUND, new Object[]{ErrorMessageUtil.encoded(node.getTextContent())});
         removeNode(node);
         node.getParentNode().removeChild(node);
     }
 
     private void stripCData(Node node) {
-        addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getTextContent())});
-        Node text = document.createTextNode(node.getTextContent());
+        addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{ErrorMessageUtil.encoded(node.getTextContent())});
+        Node text = dom.getOwnerDocument().createTextNode(node.getTextContent());
         node.getParentNode().insertBefore(text, node);
         node.getParentNode().removeChild(node);
     }
@@ -716,7 +848,7 @@ private boolean removeDisallowedEmpty(Node node){
             /*
             * Wasn't in the list of allowed elements, so we'll nuke it.
             */
-            addError(ErrorMessageUtil.ERROR_TAG_EMPTY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getNodeName())});
+            addError(ErrorMessageUtil.ERROR_TAG_EMPTY, new Object[]{ErrorMessageUtil.encoded(node.getNodeName())});
             removeNode(node);
             return true;
         }
@@ -735,7 +867,7 @@ private void removeNode(Node node) {
 	}
 
 	private boolean isAllowedEmptyTag(String tagName) {
-        return "head".equals(tagName ) || policy.getAllowedEmptyTags().matches(tagName);
+        return "head".equals(tagName ) || decisionTable.isAllowedEmptyTag(tagName);
 	}
 
     public static void main(String[] args) throws PolicyException {
@@ -767,31 +899,6 @@ private void promoteChildren(Element ele, NodeList eleChildNodes) {
         }
     }
 
-    /**
-     *
-     * This method was borrowed from Mark McLaren, to whom I owe much beer.
-     *
-     * This method ensures that the output has only valid XML unicode characters
-     * as specified by the XML 1.0 standard. For reference, please see <a
-     * href="http://www.w3.org/TR/2000/REC-xml-20001006#NT-Char">the
-     * standard</a>. This method will return an empty String if the input is
-     * null or empty.
-     *
-     *
-     * @param in
-     *            The String whose non-valid characters we want to remove.
-     * @param invalidXmlCharsMatcher  The reusable regex matcher
-     * @return The in String, stripped of non-valid characters.
-     */
-    private String stripNonValidXMLCharacters(String in, Matcher invalidXmlCharsMatcher) {
-
-        if (in == null || ("".equals(in))) {
-            return ""; // vacancy test.
-        }
-        invalidXmlCharsMatcher.reset(in);
-        return invalidXmlCharsMatcher.matches() ? invalidXmlCharsMatcher.replaceAll("") : in;
-    }
-
     // private void debug(String s) { System.out.println(s); }
     /**
      * Transform the element to text, HTML-encode it and promote the children.
@@ -24,52 +24,77 @@
 
 package org.owasp.validator.html.scan;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXSource;
+import java.io.Writer;
 
 import org.apache.xerces.xni.parser.XMLDocumentFilter;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.cyberneko.html.HTMLConfiguration;
 import org.cyberneko.html.parsers.SAXParser;
 import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.CleanResults.ScanPath;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanMetrics;
 import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.ObjectPool;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
 public class AntiSamySAXScanner extends AbstractAntiSamyScanner {
 
-    private static final Queue<CachedItem> cachedItems = new ConcurrentLinkedQueue<CachedItem>();
+    private static final ObjectPool<CachedItem> cachedItems =
+            new ObjectPool<CachedItem>(Constants.DEFAULT_POOL_MAX_IDLE, Constants.DEFAULT_POOL_IDLE_TIMEOUT) {
+                protected CachedItem create() {
+                    return new CachedItem(new MagicSAXFilter(messages));
+                }
+            };
 
-    private static final TransformerFactory sTransformerFactory = TransformerFactory.newInstance();
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
 
+    /**
+     * A filter with the two pipelines that can run it: the SAX parser feeding
+     * a Xerces serializer, and a bare NekoHTML configuration feeding a
+     * {@link StreamingHTMLWriter}. Each is set up on first use.
+     */
     static class CachedItem {
-        private final Transformer transformer;
-        private final SAXParser saxParser;
         private final MagicSAXFilter magicSAXFilter;
+        private SAXParser saxParser;
+        private HTMLConfiguration streamingConfiguration;
+        private StreamingHTMLWriter streamingWriter;
 
-        CachedItem(Transformer transformer, SAXParser saxParser, MagicSAXFilter magicSAXFilter)  {
-            this.transformer = transformer;
-            this.saxParser = saxParser;
+        CachedItem(MagicSAXFilter magicSAXFilter)  {
             this.magicSAXFilter = magicSAXFilter;
-            XMLDocumentFilter[] filters = { magicSAXFilter };
-            try {
-                saxParser.setProperty("http://cyberneko.org/html/properties/filters", filters);
-            } catch (SAXNotRecognizedException e) {
-                throw new RuntimeException(e);
-            } catch (SAXNotSupportedException e) {
-                throw new RuntimeException(e);
+        }
+
+        SAXParser getSaxParser() {
+            if (saxParser == null) {
+                saxParser = getParser();
+                XMLDocumentFilter[] filters = { magicSAXFilter };
+                try {
+                    saxParser.setProperty("http://cyberneko.org/html/properties/filters", filters);
+                } catch (SAXNotRecognizedException e) {
+                    throw new RuntimeException(e);
+                } catch (SAXNotSupportedException e) {
+                    throw new RuntimeException(e);
+                }
             }
+            return saxParser;
+        }
 
+        HTMLConfiguration getStreamingConfiguration() {
+            if (streamingConfiguration == null) {
+                streamingWriter = new StreamingHTMLWriter();
+                streamingConfiguration = getConfiguration();
+                XMLDocumentFilter[] filters = { magicSAXFilter };
+                streamingConfiguration.setProperty("http://cyberneko.org/html/properties/filters", filters);
+                streamingConfiguration.setDocumentHandler(streamingWriter);
+            }
+            return streamingConfiguration;
         }
     }
     public AntiSamySAXScanner(Policy policy) {
@@ -80,77 +105,154 @@ public CleanResults getResults() {
 		return null;
 	}
 
+	/**
+	 * @return The pool of parsers, filters and transformers shared by all SAX
+	 *         scans, for configuration and monitoring.
+	 */
+	public static ObjectPool<?> getPool() {
+		return cachedItems;
+	}
+
 	public CleanResults scan(String html) throws ScanException {
 
-		if (html == null) {
+		NormalizedInput input = normalize(html);
+		html = input.getHtml();
+
+		long startOfScan = System.currentTimeMillis();
+
+		long start = startPhase();
+		ScanPath path = PreScanner.classify(input, policy);
+		endPhase(ScanMetrics.Phase.FILTER, start);
+		if (path != null) {
+			if (metrics != null) {
+				metrics.setOutputLength(html.length());
+			}
+			return new CleanResults(startOfScan, html, null, errorMessages, path);
+		}
+
+		CleanResults stored = storedResults(html);
+		if (stored != null) {
+			return stored;
+		}
+
+		StringWriter out = new StringWriter();
+
+		filter(new StringReader(html), out);
+
+		start = startPhase();
+		String cleanHtml = trim(html, out.getBuffer().toString());
+		endPhase(ScanMetrics.Phase.SERIALIZE, start);
+		if (metrics != null) {
+			metrics.setOutputLength(cleanHtml.length());
+		}
+
+		return storeResults(html, new CleanResults(startOfScan, cleanHtml, null, errorMessages));
+	}
+
+	/**
+	 * Scans HTML read from a <code>Reader</code> and writes the clean output
+	 * directly to a <code>Writer</code>, without holding either the input or
+	 * the output in memory as a whole. The policy's <code>maxInputSize</code>
+	 * is enforced while reading; when it is exceeded the scan is aborted and a
+	 * <code>ScanException</code> is thrown, in which case part of the output
+	 * may already have been written.
+	 *
+	 * @param reader The source of the untrusted HTML.
+	 * @param writer The sink the clean HTML is written to. It is not closed.
+	 * @return A <code>CleanResults</code> object holding the error messages.
+	 *         Its <code>getCleanHTML()</code> returns null, since the clean
+	 *         HTML has been written to <code>writer</code> instead.
+	 * @throws ScanException When the input is too large or cannot be parsed.
+	 */
+	public CleanResults scan(Reader reader, Writer writer) throws ScanException {
+
+		if (reader == null) {
 			throw new ScanException(new NullPointerException("Null input"));
 		}
 
 		int maxInputSize = policy.getMaxInputSize();
+		NormalizingReader in = new NormalizingReader(reader, maxInputSize);
+		TrailingNewlineWriter out = new TrailingNewlineWriter(writer);
+
+		long startOfScan = System.currentTimeMillis();
 
-		if (html.length() > maxInputSize) {
-			addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {html.length(), maxInputSize});
-			throw new ScanException(errorMessages.get(0));
-		}
-		
 		try {
-			
-			StringWriter out = new StringWriter();
+			filter(in, out);
+			out.finish(in.getLastChar() == '\n');
+		} catch (IOException e) {
+			throw new ScanException(e);
+		} catch (ScanException e) {
+			if (in.isLimitExceeded()) {
+				errorMessages.clear();
+				throw new ScanException(getMessage(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {in.getCount(), maxInputSize}));
+			}
+			throw e;
+		}
 
-            CachedItem cachedItem = cachedItems.poll();
-            if (cachedItem == null){
-                cachedItem = new CachedItem(getNewTransformer(), getParser(), new MagicSAXFilter(messages));
-            }
+		if (metrics != null) {
+			metrics.setInputLength((int) in.getCount());
+		}
+		return new CleanResults(startOfScan, (String) null, null, errorMessages);
+	}
+
+	private void filter(Reader reader, Writer out) throws ScanException {
+
+		CachedItem cachedItem = null;
+		boolean reusable = false;
+		try {
 
-            SAXParser parser = cachedItem.saxParser;
-            cachedItem.magicSAXFilter.reset(policy);
+            cachedItem = cachedItems.borrow();
 
-            long startOfScan = System.currentTimeMillis();
+            cachedItem.magicSAXFilter.reset(policy, metrics);
 
-            SAXSource source = new SAXSource(parser, new InputSource(new StringReader(html)));
-			
-            Transformer transformer = cachedItem.transformer;
-            boolean formatOutput = policy.isFormatOutput();
-            boolean useXhtml = policy.isUseXhtml();
-            boolean omitXml = policy.isOmitXmlDeclaration();
+            long start = startPhase();
+            long cssTime = getCssTime();
 
-            transformer.setOutputProperty(OutputKeys.INDENT, formatOutput ? "yes" : "no");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXml ? "yes" : "no");
-            transformer.setOutputProperty(OutputKeys.METHOD, useXhtml ? "xml" : "html");
+            if (policy.isUseStreamingWriter()) {
+                HTMLConfiguration configuration = cachedItem.getStreamingConfiguration();
+                cachedItem.streamingWriter.reset(new MarkupSerializer(policy, false), MarkupSink.to(out));
+                try {
+                    configuration.parse(new XMLInputSource(null, null, null, reader, null));
+                } finally {
+                    cachedItem.streamingWriter.release();
+                }
+            } else {
+                SAXParser parser = cachedItem.getSaxParser();
 
-            //noinspection deprecation
-            org.apache.xml.serialize.OutputFormat format = getOutputFormat();
-            //noinspection deprecation
-            org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
-			transformer.transform(source, new SAXResult(serializer));			
+                //noinspection deprecation
+                org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+                //noinspection deprecation
+                org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
+                parser.setContentHandler(serializer);
+                parser.setProperty(LEXICAL_HANDLER, serializer);
+                try {
+                    parser.parse(new InputSource(reader));
+                } finally {
+                    parser.setContentHandler(null);
+                    parser.setProperty(LEXICAL_HANDLER, null);
+                }
+            }
 
-			String cleanHtml = trim(html, out.getBuffer().toString());
+            // parsing, filtering and serializing are a single pass
+            endPhase(ScanMetrics.Phase.PARSE, start, cssTime);
 
 			errorMessages.clear();
             errorMessages.addAll(cachedItem.magicSAXFilter.getErrorMessages());
-            cachedItems.add( cachedItem);
-			return new CleanResults(startOfScan, cleanHtml, null, errorMessages);
+            reusable = true;
 
 		} catch (Exception e) {
 			throw new ScanException(e);
+		} finally {
+			// a failed parser or writer may be left in any state
+			if (reusable) {
+				cachedItems.release(cachedItem);
+			} else if (cachedItem != null) {
+				cachedItems.discard(cachedItem);
+			}
 		}
 
 	}
 
-     /**
-      * Return a new Transformer instance. This is wrapped in a synchronized method because there is
-      * no guarantee that the TransformerFactory is thread-safe
-      *
-      * @return a new Transformer instance.
-      */
-     private static synchronized Transformer getNewTransformer()  {
-         try {
-             return sTransformerFactory.newTransformer();
-         } catch (TransformerConfigurationException e) {
-             throw new RuntimeException(e);
-         }
-     }
-
     private static SAXParser getParser()  {
         try {
             SAXParser parser = new SAXParser();
@@ -169,4 +271,19 @@ private static SAXParser getParser()  {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * @return A NekoHTML configuration with the same settings as the SAX
+     *         parser, for driving the filter without SAX.
+     */
+    private static HTMLConfiguration getConfiguration() {
+        HTMLConfiguration configuration = new HTMLConfiguration();
+        configuration.setFeature("http://xml.org/sax/features/namespaces", false);
+        configuration.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment", true);
+        configuration.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
+        configuration.setFeature("http://apache.org/xml/features/scanner/notify-char-refs", true);
+        configuration.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs", true);
+        configuration.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+        return configuration;
+    }
 }
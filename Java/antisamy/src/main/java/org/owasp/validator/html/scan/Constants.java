@@ -32,6 +32,8 @@
 public class Constants {
 
     public static final String DEFAULT_ENCODING_ALGORITHM = "UTF-8";
+    public static final int DEFAULT_POOL_MAX_IDLE = 4 * Runtime.getRuntime().availableProcessors();
+    public static final long DEFAULT_POOL_IDLE_TIMEOUT = 5 * 60 * 1000;
     public static final Tag BASIC_PARAM_TAG_RULE;
     public static List<String> defaultAllowedEmptyTags;
     public static List<String> defaultRequiresClosingTags;
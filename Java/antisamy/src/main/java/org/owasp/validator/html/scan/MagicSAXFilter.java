@@ -40,13 +40,15 @@
 import org.owasp.validator.css.CssScanner;
 import org.owasp.validator.css.ExternalCssScanner;
 import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.DecisionTable;
+import org.owasp.validator.html.DecisionTable.Action;
 import org.owasp.validator.html.InternalPolicy;
-import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanMetrics;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.util.ErrorMessageList;
 import org.owasp.validator.html.util.ErrorMessageUtil;
-import org.owasp.validator.html.util.HTMLEntityEncoder;
 
 /**
  * Implementation of an HTML-filter that adheres to an AntiSamy policy. This
@@ -59,11 +61,12 @@ private static enum Ops {
         CSS, FILTER, REMOVE, TRUNCATE, KEEP
     }
 	private final Stack<Ops> operations = new Stack<Ops>();
-	private List<String> errorMessages = new ArrayList<String>();
+	private ErrorMessageList errorMessages;
 	private StringBuffer cssContent = null;
 	private XMLAttributes cssAttributes = null;
 	private CssScanner cssScanner = null;
 	private InternalPolicy policy;
+	private DecisionTable decisionTable;
 	private ResourceBundle messages;
 
 	private boolean isNofollowAnchors;
@@ -73,23 +76,35 @@ private static enum Ops {
     private boolean preserveComments;
     private int maxInputSize;
     private boolean externalCssScanner;
+    private ScanMetrics metrics;
 
     public MagicSAXFilter(ResourceBundle messages) {
 		this.messages = messages;
     }
 
-    public void reset(InternalPolicy instance){
+    /**
+     * Prepares the filter for the next scan.
+     *
+     * @param instance The policy to filter with.
+     * @param metrics  The metrics of the scan to record into, or null.
+     */
+    public void reset(InternalPolicy instance, ScanMetrics metrics){
+        if (policy != instance) {
+            // the CSS scanner is kept for as long as the policy stays the same
+            cssScanner = null;
+        }
         this.policy = instance;
+        this.metrics = metrics;
+        decisionTable = policy.getDecisionTable();
         isNofollowAnchors = policy.isNofollowAnchors();
         isValidateParamAsEmbed = policy.isValidateParamAsEmbed();
         preserveComments = policy.isPreserveComments();
         maxInputSize = policy.getMaxInputSize();
         externalCssScanner = policy.isEmbedStyleSheets();
         operations.clear();
-        errorMessages.clear();
+        errorMessages = new ErrorMessageList(messages, !policy.isOmitErrorMessages());
         cssContent = null;
         cssAttributes = null;
-        cssScanner = null;
         inCdata = false;
 
     }
@@ -107,8 +122,7 @@ public void characters(XMLString text, Augmentations augs) throws XNIException {
 		} else {
 			// pass through all character content.
 			if ( inCdata ) {
-				String encoded = HTMLEntityEncoder.htmlEntityEncode(text.toString());
-                addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{encoded});
+                addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{ErrorMessageUtil.encoded(text.toString())});
 			}
 			super.characters(text, augs);
 		}
@@ -156,7 +170,7 @@ public void endElement(QName element, Augmentations augs) throws XNIException {
 			// now scan the CSS.
 			CssScanner cssScanner = makeCssScanner();
 			try {
-				CleanResults results = cssScanner.scanStyleSheet(cssContent.toString(), maxInputSize);
+				CleanResults results = scanStyleSheet(cssScanner, cssContent.toString());
 				// report all errors found
 				errorMessages.addAll(results.getErrorMessages());
 				/*
@@ -169,6 +183,9 @@ public void endElement(QName element, Augmentations augs) throws XNIException {
                 //noinspection StatementWithEmptyBody
                 if (results.getCleanHTML() == null || results.getCleanHTML().equals("")) {
 					// we do not generate empty style elements
+					if (metrics != null) {
+						metrics.elementRemoved();
+					}
 				} else {
 					// XMLAttributes attributes = new XMLAttributesImpl();
 					// attributes.addAttribute(makeSimpleQname("type"), "CDATA",
@@ -185,8 +202,11 @@ public void endElement(QName element, Augmentations augs) throws XNIException {
 				// if the CSS is unscannable, we report the error, but skip the
 				// style element
 				addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[] {
-					HTMLEntityEncoder.htmlEntityEncode(cssContent.toString())
+					ErrorMessageUtil.encoded(cssContent.toString())
 				});
+				if (metrics != null) {
+					metrics.elementRemoved();
+				}
 			} finally {
 				// reset the string buffer to allow fresh recording of next
 				// style tag
@@ -223,8 +243,9 @@ public void endCDATA(Augmentations augs) throws XNIException {
 
 	public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
 		// see if we have a policy for this tag.
-        String tagNameLowerCase = element.localpart.toLowerCase();
-        Tag tag = policy.getTagByLowercaseName(tagNameLowerCase);
+        int tagId = decisionTable.getTagId(element.localpart);
+        Tag tag = decisionTable.getTag(tagId);
+        Action action = decisionTable.getAction(tagId);
 
 		/*
 		 * Handle the automatic translation of <param> to nested <embed> for IE.
@@ -233,10 +254,12 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 		boolean masqueradingParam = false;
 		String embedName = null;
 		String embedValue = null;
-		if (tag == null && isValidateParamAsEmbed && "param".equals(tagNameLowerCase)) {
-			Tag embedPolicy = policy.getEmbedTag();
-			if (embedPolicy != null && embedPolicy.isAction( Policy.ACTION_VALIDATE)) {
-				tag = embedPolicy;// Constants.BASIC_PARAM_TAG_RULE;
+		if (tag == null && isValidateParamAsEmbed && "param".equalsIgnoreCase(element.localpart)) {
+			int embedId = decisionTable.getTagId("embed");
+			if (decisionTable.getAction(embedId) == Action.VALIDATE) {
+				tagId = embedId;
+				tag = decisionTable.getTag(embedId);// Constants.BASIC_PARAM_TAG_RULE;
+				action = Action.VALIDATE;
 				masqueradingParam = true;
 				// take <param name=x value=y> and turn into
 				// <embed x=y></embed>
@@ -254,20 +277,20 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 			// we are in removal-mode, so remove this tag as well
 			// we also remove all child elements of a style element
 			this.operations.push( Ops.REMOVE);
-		} else if ((tag == null && policy.isEncodeUnknownTag()) || (tag != null && tag.isAction( "encode" ))) {
+		} else if ((tag == null && policy.isEncodeUnknownTag()) || action == Action.ENCODE) {
 			String name = "<" + element.localpart + ">";
 			super.characters( new XMLString( name.toCharArray(), 0, name.length() ), augs );
 			this.operations.push(Ops.FILTER);
 		} else if (tag == null) {
 			addError( ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY,
-                      new Object[]{ HTMLEntityEncoder.htmlEntityEncode( element.localpart ) } );
+                      new Object[]{ ErrorMessageUtil.encoded( element.localpart ) } );
 			this.operations.push(Ops.FILTER);
-		} else if (tag.isAction( "filter")) {
+		} else if (action == Action.FILTER) {
 			addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
+				ErrorMessageUtil.encoded(element.localpart)
 			});
 			this.operations.push(Ops.FILTER);
-		} else if (tag.isAction( "validate")) {
+		} else if (action == Action.VALIDATE) {
 
 			boolean isStyle = "style".endsWith(element.localpart);
 
@@ -283,40 +306,28 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 				for (int i = 0; i < attributes.getLength(); i++) {
 					String name = attributes.getQName(i);
 					String value = attributes.getValue(i);
-					String nameLower = name.toLowerCase();
-					Attribute attribute = tag.getAttributeByName(nameLower);
-					if (attribute == null) {
-						// no policy defined, perhaps it is a global attribute
-						attribute = policy.getGlobalAttributeByName(nameLower);
-					}
+					// the tag's own rule or else a global attribute
+					Attribute attribute = decisionTable.getAttribute(tagId, name);
 					// boolean isAttributeValid = false;
 					if ("style".equalsIgnoreCase(name)) {
 						CssScanner styleScanner = makeCssScanner();
 						try {
-							CleanResults cr = styleScanner.scanInlineStyle(value, element.localpart, maxInputSize);
+							CleanResults cr = scanInlineStyle(styleScanner, value, element.localpart);
 							attributes.setValue(i, cr.getCleanHTML());
-							validattributes.addAttribute(makeSimpleQname(name), "CDATA", cr.getCleanHTML());
+							setAttribute(validattributes, name, cr.getCleanHTML());
 							errorMessages.addAll(cr.getErrorMessages());
 						} catch (ScanException e) {
 							addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[] {
-									element.localpart, HTMLEntityEncoder.htmlEntityEncode(value)
+									element.localpart, ErrorMessageUtil.encoded(value)
 							});
+							attributeRejected();
 						}
 					} else if (attribute != null) {
 						// validate the values against the policy
-						boolean isValid = false;
-                        if (attribute.containsAllowedValue(value.toLowerCase())) {
-                            validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-                            isValid = true;
-                        }
-
-
-                        if (!isValid) {
-                            isValid = attribute.matchesAllowedExpression(value);
-                            if (isValid) {
-                                validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-                            }
-                        }
+						boolean isValid = attribute.isAllowed(value);
+						if (isValid) {
+							setAttribute(validattributes, name, value);
+						}
 
 
                         // if value or regexp matched, attribute is already
@@ -324,25 +335,29 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 						if (!isValid && "removeTag".equals(attribute.getOnInvalid())) {
 							
 							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
+								new Object[] { tag.getName(), ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value) });
 							
+							attributeRejected();
 							removeTag = true;
 							
 						} else if (!isValid && ("filterTag".equals(attribute.getOnInvalid()) || masqueradingParam)) {
 							
 							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, 
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
+								new Object[] { tag.getName(), ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value) });
 							
+							attributeRejected();
 							filterTag = true;
 							
 						} else if (!isValid) {
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
+							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[] { tag.getName(), ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value) });
+							attributeRejected();
 						}
 						
 					} else { // attribute == null
 						addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[] {
-								element.localpart, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)
+								element.localpart, ErrorMessageUtil.encoded(name), ErrorMessageUtil.encoded(value)
 						});
+						attributeRejected();
 						
 						if (masqueradingParam) {
 							filterTag = true;
@@ -357,7 +372,7 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 				} else {
 
 					if (isNofollowAnchors && "a".equals(element.localpart)) {
-						validattributes.addAttribute(makeSimpleQname("rel"), "CDATA", "nofollow");
+						setAttribute(validattributes, "rel", "nofollow");
 					}
 
 					if (masqueradingParam) {
@@ -369,15 +384,18 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 					this.operations.push(Ops.KEEP);
 				}
 			}
-		} else if (tag.isAction( "truncate")) {
+		} else if (action == Action.TRUNCATE) {
 			this.operations.push(Ops.TRUNCATE);
 		} else {
 			// no options left, so the tag will be removed
 			addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
+				ErrorMessageUtil.encoded(element.localpart)
 			});
 			this.operations.push(Ops.REMOVE);
 		}
+		if (metrics != null && Ops.REMOVE != topOp && Ops.CSS != topOp) {
+			countElement(operations.peek(), attributes);
+		}
 		// now we know exactly what to do, let's do it
 		if ( Ops.TRUNCATE.equals( operations.peek() )) {
 			// copy the element, but remove all attributes
@@ -388,12 +406,72 @@ public void startElement(QName element, XMLAttributes attributes, Augmentations
 		}
 	}
 
+	/**
+	 * Adds an attribute, or sets the value of one with the same name added
+	 * earlier, so duplicate attributes come out once: in the place of the
+	 * first, with the value of the last.
+	 */
+	private void setAttribute(XMLAttributes attributes, String name, String value) {
+		int index = attributes.getIndex(name);
+		if (index >= 0) {
+			attributes.setValue(index, value);
+		} else {
+			attributes.addAttribute(makeSimpleQname(name), "CDATA", value);
+		}
+	}
+
 	private QName makeSimpleQname(String name) {
 		return new QName("", name, name, "");
 	}
 
+	/**
+	 * Counts the decision taken for an element outside of removed content.
+	 * The outcome of a style element is only known when its content has been
+	 * scanned.
+	 */
+	private void countElement(Ops op, XMLAttributes attributes) {
+		metrics.elementScanned();
+		if (op == Ops.FILTER) {
+			metrics.elementFiltered();
+		} else if (op == Ops.REMOVE) {
+			metrics.elementRemoved();
+		} else if (op == Ops.TRUNCATE) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				metrics.attributeRejected();
+			}
+		}
+	}
+
+	private void attributeRejected() {
+		if (metrics != null) {
+			metrics.attributeRejected();
+		}
+	}
+
+	private CleanResults scanStyleSheet(CssScanner scanner, String css) throws ScanException {
+		long start = metrics != null ? System.nanoTime() : 0;
+		try {
+			return scanner.scanStyleSheet(css, maxInputSize);
+		} finally {
+			if (metrics != null) {
+				metrics.addTime(ScanMetrics.Phase.CSS, System.nanoTime() - start);
+			}
+		}
+	}
+
+	private CleanResults scanInlineStyle(CssScanner scanner, String css, String tagName) throws ScanException {
+		long start = metrics != null ? System.nanoTime() : 0;
+		try {
+			return scanner.scanInlineStyle(css, tagName, maxInputSize);
+		} finally {
+			if (metrics != null) {
+				metrics.addTime(ScanMetrics.Phase.CSS, System.nanoTime() - start);
+			}
+		}
+	}
+
 	private void addError(String errorKey, Object[] objs) {
-		errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, objs));
+		errorMessages.add(errorKey, objs);
 	}
 
 	public List<String> getErrorMessages() {
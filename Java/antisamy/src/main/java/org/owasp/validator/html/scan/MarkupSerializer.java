@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+
+/**
+ * Writes clean markup for both scan engines, taking the place of the Xerces
+ * serializers behind {@link ASHTMLSerializer} and {@link ASXHTMLSerializer}
+ * and producing the same HTML or XHTML: the same empty and only-opening tags,
+ * attribute quoting, entity references and doctype, and no XML declaration.
+ * With <code>formatOutput</code> on, elements are broken onto indented lines
+ * by the same rules, but text is written as it is rather than re-flowed at a
+ * line width.
+ * <p>
+ * What to do with each tag comes from {@link MarkupTags}, worked out once per
+ * policy, and text is escaped through lookup tables. Instances keep the state
+ * of one document at a time and are not thread-safe.
+ */
+final class MarkupSerializer {
+
+    private static final String HTML_DOCTYPE =
+            "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\" \"http://www.w3.org/TR/html4/strict.dtd\">";
+    private static final String XHTML_DOCTYPE =
+            "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">";
+    private static final int INDENT = 2;
+
+    /**
+     * What to write for each char below the table's length, null to write the
+     * char itself. Markup significant chars become entity references and
+     * control chars character references; so does 0xF7, as with Xerces.
+     */
+    private static final String[] ESCAPES = new String[0x100];
+
+    /**
+     * As {@link #ESCAPES}, but with every char that has an HTML 4 entity
+     * written as one, for <code>entityEncodeIntlChars</code>.
+     */
+    private static final String[] INTL_ESCAPES;
+
+    static {
+        int intlLength = 0;
+        for (int c = 0; c < 0x10000; c++) {
+            if (c >= 0x80 && MarkupTags.entityName(c) != null) {
+                intlLength = c + 1;
+            }
+        }
+        INTL_ESCAPES = new String[Math.max(intlLength, ESCAPES.length)];
+        for (int c = 0; c < INTL_ESCAPES.length; c++) {
+            String escape = null;
+            if (c < 0x80 && HTMLEntityEncoder.isMarkupSignificant(c)) {
+                String entity = MarkupTags.entityName(c);
+                escape = entity != null ? "&" + entity + ";" : null;
+            } else if ((c < ' ' && c != '\n' && c != '\r' && c != '\t') || c == 0xF7) {
+                escape = "&#x" + Integer.toHexString(c) + ";";
+            }
+            if (c < ESCAPES.length) {
+                ESCAPES[c] = escape;
+            }
+            if (c >= 0x80) {
+                String entity = MarkupTags.entityName(c);
+                if (entity != null) {
+                    escape = "&" + entity + ";";
+                }
+            }
+            INTL_ESCAPES[c] = escape;
+        }
+    }
+
+    private static final class ElementState {
+        String name;
+        MarkupTags.Info info;
+        boolean empty;
+        boolean tagOpen;
+        boolean afterElement;
+        boolean afterComment;
+        boolean preserveSpace;
+        boolean inCData;
+    }
+
+    private final MarkupTags tags;
+    private final boolean xhtml;
+    private final boolean indenting;
+    private final boolean preserveSpace;
+    private final boolean omitDoctype;
+    private final boolean fromDom;
+    private final String[] escapes;
+
+    private MarkupSink out;
+    private ElementState[] states = new ElementState[16];
+    private int depth;
+    private boolean started;
+    private boolean lineEmpty;
+    private int pendingSpaces;
+
+    /**
+     * @param fromDom True when writing a DOM rather than parser events, which
+     *                the Xerces serializer treats a little differently: XHTML
+     *                script and style content goes into CDATA sections rather
+     *                than being escaped, and when formatting, whitespace-only
+     *                text is left out.
+     */
+    MarkupSerializer(InternalPolicy policy, boolean fromDom) {
+        this.tags = MarkupTags.of(policy.getDecisionTable());
+        this.xhtml = policy.isUseXhtml();
+        this.indenting = policy.isFormatOutput();
+        this.preserveSpace = policy.isPreserveSpace();
+        this.omitDoctype = policy.isOmitDoctypeDeclaration();
+        this.fromDom = fromDom;
+        this.escapes = policy.isEntityEncodeIntlCharacters() ? INTL_ESCAPES : ESCAPES;
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new ElementState();
+        }
+    }
+
+    /**
+     * Starts the next document, written to <code>out</code>.
+     */
+    void reset(MarkupSink out) {
+        this.out = out;
+        ElementState document = states[0];
+        document.name = null;
+        document.info = null;
+        document.empty = true;
+        document.tagOpen = false;
+        document.afterElement = false;
+        document.afterComment = false;
+        document.preserveSpace = preserveSpace;
+        document.inCData = false;
+        depth = 0;
+        started = false;
+        lineEmpty = true;
+        pendingSpaces = 0;
+    }
+
+    /**
+     * Ends the document and drops the reference to its sink.
+     */
+    void endDocument() throws IOException {
+        out.flush();
+        out = null;
+    }
+
+    /**
+     * Writes a start tag, open for {@link #attribute(String, String)} calls
+     * until the element gets content or ends.
+     */
+    void startElement(String name) throws IOException {
+        if (!started) {
+            started = true;
+            if (!omitDoctype) {
+                write(xhtml ? XHTML_DOCTYPE : HTML_DOCTYPE);
+                newLine();
+            }
+        }
+
+        ElementState parent = states[depth];
+        boolean breakBefore = indenting && !parent.preserveSpace
+                && (parent.empty || parent.afterElement || parent.afterComment);
+        content();
+        if (breakBefore) {
+            breakLine();
+        }
+
+        MarkupTags.Info info = tags.get(name);
+        write('<');
+        write(name);
+
+        ElementState state = push();
+        state.name = name;
+        state.info = info;
+        // no line break in front of the first child of an inline element
+        state.empty = !info.inline;
+        state.tagOpen = true;
+        state.afterElement = false;
+        state.afterComment = false;
+        state.preserveSpace = parent.preserveSpace || info.preserveSpace;
+        state.inCData = false;
+    }
+
+    void attribute(String name, String value) throws IOException {
+        MarkupTags.Info info = states[depth].info;
+        write(' ');
+        if (value == null) {
+            value = "";
+        }
+        if (xhtml) {
+            write(name);
+            write("=\"");
+            writeEscaped(value);
+            write('"');
+        } else {
+            name = name.toLowerCase(Locale.ENGLISH);
+            write(name);
+            if (MarkupTags.isUriAttribute(name)) {
+                // URIs are written as they are, cut at a quote
+                int quote = value.indexOf('"');
+                write("=\"");
+                write(quote >= 0 ? value.substring(0, quote) : value);
+                write('"');
+            } else if (!info.isBooleanAttribute(name)) {
+                write("=\"");
+                writeEscaped(value);
+                write('"');
+            }
+        }
+    }
+
+    void endElement() throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        ElementState state = states[depth];
+        MarkupTags.Info info = state.info;
+        if (xhtml) {
+            if (state.empty && info.selfClosing) {
+                write(" />");
+            } else {
+                closeStartTag(state);
+                if (state.inCData) {
+                    write("]]>");
+                }
+                write("</");
+                write(info.name);
+                write('>');
+            }
+        } else {
+            closeStartTag(state);
+            if (!info.onlyOpening) {
+                if (indenting && !state.preserveSpace && state.afterElement) {
+                    depth--;
+                    breakLine();
+                    depth++;
+                }
+                write("</");
+                write(state.name);
+                write('>');
+            }
+        }
+
+        depth--;
+        ElementState parent = states[depth];
+        if (!info.inline) {
+            parent.afterElement = true;
+        }
+        parent.empty = false;
+        if (depth == 0 && indenting && !parent.preserveSpace) {
+            // top-level elements end their line
+            newLine();
+        }
+    }
+
+    void characters(char[] ch, int offset, int length) throws IOException {
+        if (fromDom && indenting && !states[depth].preserveSpace && isBlank(ch, offset, length)) {
+            return;
+        }
+        ElementState state = content();
+        boolean rawText = state.info != null && state.info.rawText;
+        if (!state.preserveSpace && !rawText) {
+            writeSpaced(ch, offset, length);
+            return;
+        }
+        if (!rawText) {
+            writeEscaped(ch, offset, length);
+        } else if (!xhtml) {
+            writePendingSpaces();
+            out.write(ch, offset, length);
+        } else if (fromDom) {
+            writeCData(state, new String(ch, offset, length));
+        } else {
+            writeEscaped(ch, offset, length);
+        }
+        if (length > 0) {
+            lineEmpty = ch[offset + length - 1] == '\n';
+        }
+    }
+
+    /**
+     * Writes text whose whitespace is not preserved, each whitespace char as
+     * one space. When formatting, spaces are held back until something more
+     * is written on the same line, so that no line ends in them.
+     */
+    private void writeSpaced(char[] ch, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int start = i;
+            while (i < end && !isSpace(ch[i])) {
+                i++;
+            }
+            if (i > start) {
+                writeEscaped(ch, start, i - start);
+            }
+            for (; i < end && isSpace(ch[i]); i++) {
+                if (indenting) {
+                    pendingSpaces++;
+                } else {
+                    out.write(' ');
+                    lineEmpty = false;
+                }
+            }
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isBlank(char[] ch, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (ch[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void characters(String text) throws IOException {
+        char[] chars = text.toCharArray();
+        characters(chars, 0, chars.length);
+    }
+
+    void comment(String text) throws IOException {
+        ElementState state = content();
+        if (indenting && !state.preserveSpace) {
+            breakLine();
+        }
+        int index = text.indexOf("-->");
+        write("<!--");
+        write(index >= 0 ? text.substring(0, index) : text);
+        write("-->");
+        state.afterComment = true;
+    }
+
+    private void writeCData(ElementState state, String text) throws IOException {
+        if (!state.inCData) {
+            write("<![CDATA[");
+            state.inCData = true;
+        }
+        int start = 0;
+        int end;
+        while ((end = text.indexOf("]]>", start)) >= 0) {
+            // a section cannot contain its own end, so it is split there
+            write(text.substring(start, end + 2));
+            write("]]><![CDATA[");
+            start = end + 2;
+        }
+        write(text.substring(start));
+    }
+
+    private void writeEscaped(String value) throws IOException {
+        char[] chars = value.toCharArray();
+        writeEscaped(chars, 0, chars.length);
+    }
+
+    private void writeEscaped(char[] ch, int offset, int length) throws IOException {
+        writePendingSpaces();
+        String[] table = escapes;
+        int limit = table.length;
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = ch[i];
+            if (c < limit && table[c] != null) {
+                out.write(ch, start, i - start);
+                out.write(table[c]);
+                start = i + 1;
+            }
+        }
+        out.write(ch, start, end - start);
+        lineEmpty = false;
+    }
+
+    /**
+     * Closes the current start tag if it is still open, as content is about to
+     * follow it.
+     *
+     * @return The state of the element the content goes into.
+     */
+    private ElementState content() throws IOException {
+        ElementState state = states[depth];
+        closeStartTag(state);
+        state.empty = false;
+        state.afterElement = false;
+        state.afterComment = false;
+        return state;
+    }
+
+    private void closeStartTag(ElementState state) throws IOException {
+        if (state.tagOpen) {
+            write('>');
+            state.tagOpen = false;
+        }
+    }
+
+    private ElementState push() {
+        depth++;
+        if (depth == states.length) {
+            ElementState[] grown = new ElementState[states.length * 2];
+            System.arraycopy(states, 0, grown, 0, states.length);
+            for (int i = states.length; i < grown.length; i++) {
+                grown[i] = new ElementState();
+            }
+            states = grown;
+        }
+        return states[depth];
+    }
+
+    private void breakLine() throws IOException {
+        if (!lineEmpty) {
+            newLine();
+        }
+        pendingSpaces = 0;
+        for (int i = 0; i < depth * INDENT; i++) {
+            out.write(' ');
+        }
+    }
+
+    private void newLine() throws IOException {
+        out.write('\n');
+        lineEmpty = true;
+        pendingSpaces = 0;
+    }
+
+    private void writePendingSpaces() throws IOException {
+        for (; pendingSpaces > 0; pendingSpaces--) {
+            out.write(' ');
+        }
+    }
+
+    private void write(char c) throws IOException {
+        writePendingSpaces();
+        out.write(c);
+        lineEmpty = false;
+    }
+
+    private void write(String s) throws IOException {
+        writePendingSpaces();
+        out.write(s);
+        lineEmpty = false;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Where a {@link MarkupSerializer} writes to. Besides a <code>Writer</code>
+ * the markup can go straight into a <code>StringBuilder</code>, without the
+ * locking of a <code>StringWriter</code>, or be encoded as UTF-8 into an
+ * <code>OutputStream</code>, without a separate encoder.
+ */
+abstract class MarkupSink {
+
+    abstract void write(char c) throws IOException;
+
+    abstract void write(String s) throws IOException;
+
+    abstract void write(char[] buf, int offset, int length) throws IOException;
+
+    void flush() throws IOException {
+    }
+
+    static MarkupSink to(final Writer out) {
+        return new MarkupSink() {
+            void write(char c) throws IOException {
+                out.write(c);
+            }
+
+            void write(String s) throws IOException {
+                out.write(s);
+            }
+
+            void write(char[] buf, int offset, int length) throws IOException {
+                out.write(buf, offset, length);
+            }
+
+            void flush() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    static MarkupSink to(final StringBuilder out) {
+        return new MarkupSink() {
+            void write(char c) {
+                out.append(c);
+            }
+
+            void write(String s) {
+                out.append(s);
+            }
+
+            void write(char[] buf, int offset, int length) {
+                out.append(buf, offset, length);
+            }
+        };
+    }
+
+    /**
+     * @return A sink encoding into <code>out</code> as UTF-8. Lone surrogates
+     *         come out as '?'. Nothing reaches <code>out</code> before
+     *         {@link #flush()}, or before the internal buffer fills up.
+     */
+    static MarkupSink to(OutputStream out) {
+        return new Utf8Sink(out);
+    }
+
+    private static final class Utf8Sink extends MarkupSink {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8192];
+        private int count = 0;
+        private char highSurrogate = 0;
+
+        Utf8Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(char c) throws IOException {
+            if (count > buf.length - 4) {
+                drain();
+            }
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    buf[count++] = (byte) (0xF0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3F));
+                    return;
+                }
+                buf[count++] = '?';
+            }
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        void write(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+        }
+
+        void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                write(chars[i]);
+            }
+        }
+
+        void flush() throws IOException {
+            if (highSurrogate != 0) {
+                // the document ended half way through a pair
+                highSurrogate = 0;
+                write('?');
+            }
+            drain();
+            out.flush();
+        }
+
+        private void drain() throws IOException {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.owasp.validator.html.DecisionTable;
+
+/**
+ * How the {@link MarkupSerializer} writes each tag of a policy, worked out
+ * once per policy from its empty and closing tag lists and the HTML 4 DTD,
+ * whose tag and entity tables are kept here.
+ */
+final class MarkupTags {
+
+    /**
+     * How one tag is written.
+     */
+    static final class Info {
+        final String name;
+        /** XHTML: may be written as <code>&lt;name /&gt;</code> when empty. */
+        final boolean selfClosing;
+        /** HTML: has no end tag, like <code>br</code> or <code>li</code>. */
+        final boolean onlyOpening;
+        /** Keeps its whitespace as it is when formatting, like <code>pre</code>. */
+        final boolean preserveSpace;
+        /** Has script or style content. */
+        final boolean rawText;
+        /** Never breaks a line before its first child, like <code>a</code>. */
+        final boolean inline;
+        private final Set<String> booleanAttributes;
+
+        Info(String name, boolean allowedEmpty, boolean requiresClosing) {
+            this.name = name;
+            String lowercase = name.toLowerCase(Locale.ENGLISH);
+            this.selfClosing = ("head".equals(name) || allowedEmpty) && !requiresClosing;
+            this.onlyOpening = ONLY_OPENING.contains(lowercase);
+            this.preserveSpace = PRESERVE_SPACE.contains(lowercase);
+            this.rawText = "script".equals(name) || "style".equals(name);
+            this.inline = "a".equals(name) || "td".equals(name);
+            Set<String> booleans = BOOLEAN_ATTRIBUTES.get(lowercase);
+            this.booleanAttributes = booleans != null ? booleans : Collections.<String>emptySet();
+        }
+
+        /**
+         * @param attribute A lowercase attribute name.
+         * @return True if HTML writes the attribute as a bare name.
+         */
+        boolean isBooleanAttribute(String attribute) {
+            return booleanAttributes.contains(attribute);
+        }
+    }
+
+    /**
+     * The HTML 4 elements without an end tag, either empty or with an
+     * optional closing tag.
+     */
+    private static final Set<String> ONLY_OPENING = set(
+            "area", "base", "basefont", "br", "col", "dd", "dt", "frame", "hr", "img", "input", "isindex", "li",
+            "link", "meta", "option", "param");
+
+    /**
+     * The HTML 4 elements whose whitespace is kept as it is.
+     */
+    private static final Set<String> PRESERVE_SPACE = set("noscript", "pre", "script", "style", "textarea");
+
+    /**
+     * The attributes written as their bare name in HTML, by tag.
+     */
+    private static final Map<String, Set<String>> BOOLEAN_ATTRIBUTES = new HashMap<String, Set<String>>();
+
+    /**
+     * The attributes holding a URI, written as they are in HTML.
+     */
+    private static final Set<String> URI_ATTRIBUTES = set("href", "src");
+
+    /**
+     * The names of the HTML 4 character entities, indexed by their char.
+     */
+    private static final String[] ENTITY_NAMES = new String[0x2667];
+
+    static {
+        booleanAttributes("area", "href");
+        booleanAttributes("button", "disabled");
+        booleanAttributes("dir", "compact");
+        booleanAttributes("dl", "compact");
+        booleanAttributes("frame", "noresize");
+        booleanAttributes("hr", "noshade");
+        booleanAttributes("image", "ismap");
+        booleanAttributes("input", "defaultchecked", "checked", "readonly", "disabled");
+        booleanAttributes("link", "link");
+        booleanAttributes("menu", "compact");
+        booleanAttributes("object", "declare");
+        booleanAttributes("ol", "compact");
+        booleanAttributes("optgroup", "disabled");
+        booleanAttributes("option", "default-selected", "selected", "disabled");
+        booleanAttributes("script", "defer");
+        booleanAttributes("select", "multiple", "disabled");
+        booleanAttributes("style", "disabled");
+        booleanAttributes("td", "nowrap");
+        booleanAttributes("textarea", "disabled", "readonly");
+        booleanAttributes("th", "nowrap");
+        booleanAttributes("ul", "compact");
+
+        // runs of entities for consecutive chars, from the first one's char
+        entities(0x0022, "quot");
+        entities(0x0026, "amp");
+        entities(0x003C, "lt");
+        entities(0x003E, "gt");
+        entities(0x00A0, "nbsp iexcl cent pound curren yen brvbar sect uml copy ordf laquo not");
+        entities(0x00AD, "shy reg macr deg plusmn sup2 sup3 acute micro para middot cedil sup1");
+        entities(0x00BA, "ordm raquo frac14 frac12 frac34 iquest Agrave Aacute Acirc Atilde Auml");
+        entities(0x00C5, "Aring AElig Ccedil Egrave Eacute Ecirc Euml Igrave Iacute Icirc Iuml");
+        entities(0x00D0, "ETH Ntilde Ograve Oacute Ocirc Otilde Ouml times Oslash Ugrave Uacute");
+        entities(0x00DB, "Ucirc Uuml Yacute THORN szlig agrave aacute acirc atilde auml aring");
+        entities(0x00E6, "aelig ccedil egrave eacute ecirc euml igrave iacute icirc iuml eth");
+        entities(0x00F1, "ntilde ograve oacute ocirc otilde ouml divide oslash ugrave uacute");
+        entities(0x00FB, "ucirc uuml yacute thorn yuml");
+        entities(0x0152, "OElig oelig");
+        entities(0x0178, "Yuml");
+        entities(0x0192, "fnof");
+        entities(0x02C6, "circ");
+        entities(0x02DC, "tilde");
+        entities(0x0391, "Alpha Beta Gamma Delta Epsilon Zeta Eta Theta Iota Kappa Lambda Mu Nu");
+        entities(0x039E, "Xi Omicron Pi Rho");
+        entities(0x03A3, "Sigma Tau Upsilon Phi Chi Psi Omega");
+        entities(0x03B1, "alpha beta gamma delta epsilon zeta eta theta iota kappa lambda mu nu");
+        entities(0x03BE, "xi omicron pi rho sigmaf sigma tau upsilon phi chi psi omega");
+        entities(0x03D1, "thetasym upsih");
+        entities(0x03D6, "piv");
+        entities(0x2002, "ensp emsp");
+        entities(0x2009, "thinsp");
+        entities(0x200C, "zwnj zwj lrm rlm");
+        entities(0x2013, "ndash mdash");
+        entities(0x2018, "lsquo rsquo sbquo");
+        entities(0x201C, "ldquo rdquo bdquo");
+        entities(0x2020, "dagger Dagger bull");
+        entities(0x2026, "hellip");
+        entities(0x2030, "permil");
+        entities(0x2032, "prime Prime");
+        entities(0x2039, "lsaquo rsaquo");
+        entities(0x203E, "oline");
+        entities(0x2044, "frasl");
+        entities(0x20AC, "euro");
+        entities(0x2111, "image");
+        entities(0x2118, "weierp");
+        entities(0x211C, "real");
+        entities(0x2122, "trade");
+        entities(0x2135, "alefsym");
+        entities(0x2190, "larr uarr rarr darr harr");
+        entities(0x21B5, "crarr");
+        entities(0x21D0, "lArr uArr rArr dArr hArr");
+        entities(0x2200, "forall");
+        entities(0x2202, "part exist");
+        entities(0x2205, "empty");
+        entities(0x2207, "nabla isin notin");
+        entities(0x220B, "ni");
+        entities(0x220F, "prod");
+        entities(0x2211, "sum minus");
+        entities(0x2217, "lowast");
+        entities(0x221A, "radic");
+        entities(0x221D, "prop infin");
+        entities(0x2220, "ang");
+        entities(0x2227, "and or cap cup int");
+        entities(0x2234, "there4");
+        entities(0x223C, "sim");
+        entities(0x2245, "cong");
+        entities(0x2248, "asymp");
+        entities(0x2260, "ne equiv");
+        entities(0x2264, "le ge");
+        entities(0x2282, "sub sup nsub");
+        entities(0x2286, "sube supe");
+        entities(0x2295, "oplus");
+        entities(0x2297, "otimes");
+        entities(0x22A5, "perp");
+        entities(0x22C5, "sdot");
+        entities(0x2308, "lceil rceil lfloor rfloor");
+        entities(0x2329, "lang rang");
+        entities(0x25CA, "loz");
+        entities(0x2660, "spades");
+        entities(0x2663, "clubs");
+        entities(0x2665, "hearts diams");
+    }
+
+    private static Set<String> set(String... values) {
+        return Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(values)));
+    }
+
+    private static void booleanAttributes(String tag, String... attributes) {
+        BOOLEAN_ATTRIBUTES.put(tag, set(attributes));
+    }
+
+    private static void entities(int first, String names) {
+        for (String name : names.split(" ")) {
+            ENTITY_NAMES[first++] = name;
+        }
+    }
+
+    /**
+     * @param c A char.
+     * @return The name of the HTML 4 entity for the char, or null if it has
+     *         none.
+     */
+    static String entityName(int c) {
+        return c >= 0 && c < ENTITY_NAMES.length ? ENTITY_NAMES[c] : null;
+    }
+
+    /**
+     * @param attribute A lowercase attribute name.
+     * @return True if the attribute holds a URI.
+     */
+    static boolean isUriAttribute(String attribute) {
+        return URI_ATTRIBUTES.contains(attribute);
+    }
+
+    private static final Map<DecisionTable, MarkupTags> byTable = new WeakHashMap<DecisionTable, MarkupTags>();
+
+    private final Map<String, Info> tags = new HashMap<String, Info>();
+
+    private MarkupTags(DecisionTable table) {
+        for (int tagId = 0; tagId < table.getTagCount(); tagId++) {
+            String name = table.getTagName(tagId);
+            tags.put(name, new Info(name, table.isAllowedEmptyTag(tagId), table.isRequiresClosingTag(tagId)));
+        }
+    }
+
+    /**
+     * @return The tags of the policy the table belongs to, shared by all
+     *         scans with it.
+     */
+    static MarkupTags of(DecisionTable table) {
+        synchronized (byTable) {
+            MarkupTags tags = byTable.get(table);
+            if (tags == null) {
+                tags = new MarkupTags(table);
+                byTable.put(table, tags);
+            }
+            return tags;
+        }
+    }
+
+    /**
+     * @param name A tag name, in any case.
+     * @return How to write the tag. Tags outside the policy get a new
+     *         <code>Info</code> each time.
+     */
+    Info get(String name) {
+        Info info = tags.get(name);
+        if (info == null) {
+            String lowercase = name.toLowerCase();
+            info = tags.get(lowercase);
+            if (info == null) {
+                info = new Info(lowercase, false, false);
+            }
+        }
+        return info;
+    }
+}
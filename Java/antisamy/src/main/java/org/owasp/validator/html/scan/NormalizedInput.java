@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+/**
+ * The input of a scan after the pre-parse stage shared by both engines. One
+ * pass over the characters removes those that are not allowed in XML 1.0 and
+ * collects a few statistics later stages can use to take shortcuts. When
+ * nothing had to be removed, the original string is kept and not copied.
+ * <p>
+ * Valid XML characters are tab, line feed, carriage return, everything from
+ * <code>U+0020</code> up except <code>U+FFFE</code> and <code>U+FFFF</code>,
+ * and supplementary characters written as a proper surrogate pair. Lone
+ * surrogates are removed.
+ */
+final class NormalizedInput {
+
+    /**
+     * The size of the blocks <code>&lt;</code> characters are counted in.
+     */
+    static final int DENSITY_BLOCK_SIZE = 1024;
+
+    private final String html;
+    private final boolean hasMarkup;
+    private final boolean hasEntities;
+    private final int maxMarkupDensity;
+    private final int removedChars;
+
+    private NormalizedInput(String html, boolean hasMarkup, boolean hasEntities, int maxMarkupDensity, int removedChars) {
+        this.html = html;
+        this.hasMarkup = hasMarkup;
+        this.hasEntities = hasEntities;
+        this.maxMarkupDensity = maxMarkupDensity;
+        this.removedChars = removedChars;
+    }
+
+    static NormalizedInput of(String in) {
+        int length = in.length();
+        StringBuilder out = null;
+        boolean hasMarkup = false;
+        boolean hasEntities = false;
+        int maxDensity = 0;
+        int density = 0;
+        int removed = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (i % DENSITY_BLOCK_SIZE == 0) {
+                density = 0;
+            }
+            char c = in.charAt(i);
+            if (c == '<') {
+                hasMarkup = true;
+                if (++density > maxDensity) {
+                    maxDensity = density;
+                }
+            } else if (c == '&') {
+                hasEntities = true;
+            }
+
+            int valid = validLength(in, i, length);
+            if (valid == 0) {
+                if (out == null) {
+                    out = new StringBuilder(length);
+                    out.append(in, 0, i);
+                }
+                removed++;
+            } else {
+                if (out != null) {
+                    out.append(in, i, i + valid);
+                }
+                i += valid - 1;
+            }
+        }
+
+        return new NormalizedInput(out == null ? in : out.toString(), hasMarkup, hasEntities, maxDensity, removed);
+    }
+
+    /**
+     * @return The number of chars making up the valid XML character at
+     *         <code>i</code> (2 for a surrogate pair), or 0 if it is invalid.
+     */
+    private static int validLength(String s, int i, int length) {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1)) ? 2 : 0;
+        }
+        return isValidChar(c) ? 1 : 0;
+    }
+
+    /**
+     * @return True if <code>c</code> is a valid XML character on its own;
+     *         false for all surrogates.
+     */
+    static boolean isValidChar(char c) {
+        if (c >= 0x20 && c < 0xD800) {
+            return true;
+        }
+        if (c < 0x20) {
+            return c == '\t' || c == '\n' || c == '\r';
+        }
+        return c > 0xDFFF && c != 0xFFFE && c != 0xFFFF;
+    }
+
+    /**
+     * @return The input without invalid XML characters; the original string
+     *         if there were none.
+     */
+    String getHtml() {
+        return html;
+    }
+
+    /**
+     * @return True if the input has a <code>&lt;</code> anywhere.
+     */
+    boolean hasMarkup() {
+        return hasMarkup;
+    }
+
+    /**
+     * @return True if the input has a <code>&amp;</code> anywhere.
+     */
+    boolean hasEntities() {
+        return hasEntities;
+    }
+
+    /**
+     * @return The most <code>&lt;</code> characters found in one block of
+     *         {@link #DENSITY_BLOCK_SIZE} characters.
+     */
+    int getMaxMarkupDensity() {
+        return maxMarkupDensity;
+    }
+
+    /**
+     * @return The number of invalid characters removed.
+     */
+    int getRemovedChars() {
+        return removedChars;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The streaming counterpart of {@link NormalizedInput}: a <code>Reader</code>
+ * that drops characters which are not valid in XML and refuses to read past a
+ * fixed limit. This lets the streaming scan enforce the policy's
+ * <code>maxInputSize</code> without first materializing the input as a
+ * <code>String</code>. The limit applies to the characters read from the
+ * underlying reader, before any are dropped.
+ */
+class NormalizingReader extends FilterReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final long limit;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int end = 0;
+    private boolean eof = false;
+    private boolean pendingHighSurrogate = false;
+    private long count = 0;
+    private boolean limitExceeded = false;
+    private int lastChar = -1;
+
+    NormalizingReader(Reader in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        lastChar = buf[pos++];
+        return lastChar;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, end - pos);
+        System.arraycopy(buf, pos, cbuf, off, n);
+        pos += n;
+        lastChar = cbuf[off + n - 1];
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int step = (int) Math.min(n - skipped, end - pos);
+            pos += step;
+            lastChar = buf[pos - 1];
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    public boolean ready() throws IOException {
+        return pos < end || (!eof && in.ready());
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    /**
+     * Makes sure there are valid characters in the buffer, reading and
+     * filtering the next chunk of input if needed. A high surrogate at the end
+     * of a chunk is kept back until the next one shows whether it is paired.
+     *
+     * @return False at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        while (pos >= end) {
+            if (eof) {
+                return false;
+            }
+            int start = pendingHighSurrogate ? 1 : 0;
+            if (pendingHighSurrogate) {
+                buf[0] = buf[end];
+                pendingHighSurrogate = false;
+            }
+            int read = in.read(buf, start, buf.length - start);
+            if (read == -1) {
+                // a high surrogate still pending here is unpaired
+                eof = true;
+                pos = end = 0;
+                return false;
+            }
+            advance(read);
+            filter(start + read);
+        }
+        return true;
+    }
+
+    private void filter(int length) {
+        int w = 0;
+        for (int i = 0; i < length; i++) {
+            char c = buf[i];
+            if (Character.isHighSurrogate(c)) {
+                if (i + 1 == length) {
+                    pendingHighSurrogate = true;
+                    break;
+                }
+                if (Character.isLowSurrogate(buf[i + 1])) {
+                    buf[w++] = c;
+                    buf[w++] = buf[++i];
+                }
+            } else if (NormalizedInput.isValidChar(c)) {
+                buf[w++] = c;
+            }
+        }
+        pos = 0;
+        end = w;
+        if (pendingHighSurrogate) {
+            // parked right after the valid characters, picked up by fill()
+            buf[end] = buf[length - 1];
+        }
+    }
+
+    private void advance(long n) throws IOException {
+        count += n;
+        if (count > limit) {
+            limitExceeded = true;
+            throw new IOException("Input exceeds the maximum size of " + limit + " characters");
+        }
+    }
+
+    /**
+     * @return The number of characters read from the underlying reader so far.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The last character read, or -1 if nothing has been read yet.
+     */
+    int getLastChar() {
+        return lastChar;
+    }
+
+    /**
+     * @return True if reading was aborted because the limit was exceeded.
+     */
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.owasp.validator.html.CleanResults.ScanPath;
+import org.owasp.validator.html.DecisionTable;
+import org.owasp.validator.html.DecisionTable.Action;
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.model.Attribute;
+
+/**
+ * Recognizes input that a full scan would return unchanged, so the scanners
+ * can skip parsing and serialization for it. The checks are deliberately
+ * conservative: anything the parser or the serializer might rewrite (entities,
+ * line breaks, quotes, unusual nesting, attribute order, ...) is left to the
+ * full scan.
+ * <p>
+ * Two kinds of input are recognized:
+ * <ul>
+ * <li>{@link ScanPath#PLAIN_TEXT}: printable ASCII text without markup or any
+ * character the serializer would escape.</li>
+ * <li>{@link ScanPath#VERBATIM}: the same kind of text mixed with a small set
+ * of inline tags, whose attributes the policy accepts as they are. Only used
+ * when <code>formatOutput</code> is off, since the formatting serializer
+ * re-indents nested markup.</li>
+ * </ul>
+ */
+final class PreScanner {
+
+    /**
+     * Tags the HTML parser never moves, closes or wraps when they are nested
+     * in each other (except for <code>a</code>, see below) and which the
+     * scanners do nothing special with.
+     */
+    private static final Set<String> INLINE_TAGS = new HashSet<String>(Arrays.asList(
+            "a", "abbr", "acronym", "b", "big", "cite", "code", "dfn", "em", "i", "kbd",
+            "s", "samp", "small", "span", "strike", "strong", "sub", "sup", "tt", "u", "var"));
+
+    /**
+     * The formatting serializer wraps longer text at its line width (less
+     * indentation), so formatted plain text is only passed through below this.
+     */
+    private static final int FORMATTED_TEXT_LIMIT = 72;
+
+    private static final int MAX_DEPTH = 16;
+
+    private PreScanner() {
+    }
+
+    /**
+     * @return How the input can be handled without a full scan, or
+     *         null if it needs one.
+     */
+    static ScanPath classify(NormalizedInput input, InternalPolicy policy) {
+        if (input.hasEntities()) {
+            // entities are decoded by the parser and re-encoded on output
+            return null;
+        }
+        String html = input.getHtml();
+        if (!input.hasMarkup()) {
+            if (!isPlainText(html, 0, html.length())) {
+                return null;
+            }
+            boolean wrapsText = policy.isFormatOutput() && !policy.isPreserveSpace();
+            if (wrapsText && (html.length() >= FORMATTED_TEXT_LIMIT || endsWithSpace(html))) {
+                return null;
+            }
+            return ScanPath.PLAIN_TEXT;
+        }
+        if (!policy.isOmitDoctypeDeclaration()) {
+            // the serializers write a DOCTYPE before the first element
+            return null;
+        }
+        if (!policy.isFormatOutput() && isCompliantMarkup(html, policy)) {
+            return ScanPath.VERBATIM;
+        }
+        return null;
+    }
+
+    private static boolean isSafeChar(char c) {
+        return c >= 0x20 && c <= 0x7e && c != '<' && c != '>' && c != '&' && c != '"';
+    }
+
+    private static boolean isPlainText(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isSafeChar(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWithSpace(String s) {
+        return s.length() > 0 && s.charAt(s.length() - 1) == ' ';
+    }
+
+    private static boolean isCompliantMarkup(String html, InternalPolicy policy) {
+        DecisionTable table = policy.getDecisionTable();
+        int[] open = new int[MAX_DEPTH];
+        boolean[] hasContent = new boolean[MAX_DEPTH];
+        int depth = 0;
+        boolean inAnchor = false;
+        int length = html.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c != '<') {
+                if (!isSafeChar(c)) {
+                    return false;
+                }
+                if (depth > 0) {
+                    hasContent[depth - 1] = true;
+                }
+                i++;
+                continue;
+            }
+
+            boolean closing = i + 1 < length && html.charAt(i + 1) == '/';
+            int nameStart = closing ? i + 2 : i + 1;
+            int nameEnd = scanName(html, nameStart);
+            if (nameEnd == nameStart) {
+                return false;
+            }
+            String name = html.substring(nameStart, nameEnd);
+            int tagId = table.getTagId(name);
+
+            if (closing) {
+                if (nameEnd >= length || html.charAt(nameEnd) != '>'
+                        || depth == 0 || open[depth - 1] != tagId || !hasContent[depth - 1]) {
+                    return false;
+                }
+                depth--;
+                if ("a".equals(name)) {
+                    inAnchor = false;
+                }
+                i = nameEnd + 1;
+                continue;
+            }
+
+            if (!INLINE_TAGS.contains(name) || tagId == DecisionTable.UNKNOWN
+                    || table.getAction(tagId) != Action.VALIDATE) {
+                return false;
+            }
+            if ("a".equals(name)) {
+                // nested anchors are closed by the parser, and nofollow adds an attribute
+                if (inAnchor || policy.isNofollowAnchors()) {
+                    return false;
+                }
+                inAnchor = true;
+            }
+
+            i = scanAttributes(html, nameEnd, tagId, table);
+            if (i < 0) {
+                return false;
+            }
+
+            if (depth > 0) {
+                hasContent[depth - 1] = true;
+            }
+            if (depth == MAX_DEPTH) {
+                return false;
+            }
+            open[depth] = tagId;
+            hasContent[depth] = false;
+            depth++;
+        }
+        return depth == 0;
+    }
+
+    /**
+     * Checks the attributes of a start tag, which must be written as
+     * <code> name="value"</code> in ascending name order (the DOM serializer
+     * sorts them) and be accepted by the policy as they are.
+     *
+     * @return The index after the closing <code>&gt;</code>, or -1.
+     */
+    private static int scanAttributes(String html, int i, int tagId, DecisionTable table) {
+        int length = html.length();
+        String previous = null;
+        while (i < length && html.charAt(i) == ' ') {
+            int nameStart = i + 1;
+            int nameEnd = scanName(html, nameStart);
+            if (nameEnd == nameStart || nameEnd + 1 >= length
+                    || html.charAt(nameEnd) != '=' || html.charAt(nameEnd + 1) != '"') {
+                return -1;
+            }
+            String name = html.substring(nameStart, nameEnd);
+            if (previous != null && previous.compareTo(name) >= 0) {
+                return -1;
+            }
+            int valueStart = nameEnd + 2;
+            int valueEnd = html.indexOf('"', valueStart);
+            if (valueEnd < 0 || !isPlainText(html, valueStart, valueEnd)) {
+                return -1;
+            }
+            Attribute attribute = table.getAttribute(tagId, name);
+            if ("style".equals(name) || attribute == null
+                    || !attribute.isAllowed(html.substring(valueStart, valueEnd))) {
+                return -1;
+            }
+            previous = name;
+            i = valueEnd + 1;
+        }
+        if (i >= length || html.charAt(i) != '>') {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * @return The index after the lowercase tag or attribute name at <code>i</code>.
+     */
+    private static int scanName(String html, int start) {
+        int length = html.length();
+        int i = start;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (i > start && c >= '0' && c <= '9'))) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+}
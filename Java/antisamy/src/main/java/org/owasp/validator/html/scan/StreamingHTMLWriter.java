@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+
+import org.apache.xerces.xni.Augmentations;
+import org.apache.xerces.xni.QName;
+import org.apache.xerces.xni.XMLAttributes;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.XMLString;
+import org.apache.xerces.xni.XNIException;
+import org.cyberneko.html.filters.DefaultFilter;
+
+/**
+ * Writes the event stream coming out of {@link MagicSAXFilter} straight to a
+ * {@link MarkupSerializer}, without the SAX and serializer layers in between.
+ * It is the last handler of the NekoHTML pipeline when the
+ * <code>useStreamingWriter</code> directive is on.
+ */
+class StreamingHTMLWriter extends DefaultFilter {
+
+    private MarkupSerializer serializer;
+
+    /**
+     * Prepares the writer for the next document.
+     */
+    void reset(MarkupSerializer serializer, MarkupSink out) {
+        this.serializer = serializer;
+        serializer.reset(out);
+    }
+
+    /**
+     * Drops the reference to the last serializer, so a pooled writer does not
+     * keep it and its target reachable.
+     */
+    void release() {
+        serializer = null;
+    }
+
+    public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
+        try {
+            serializer.startElement(element.rawname);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                serializer.attribute(attributes.getQName(i), attributes.getValue(i));
+            }
+        } catch (IOException e) {
+            throw new XNIException(e);
+        }
+    }
+
+    public void emptyElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
+        startElement(element, attributes, augs);
+        endElement(element, augs);
+    }
+
+    public void endElement(QName element, Augmentations augs) throws XNIException {
+        try {
+            serializer.endElement();
+        } catch (IOException e) {
+            throw new XNIException(e);
+        }
+    }
+
+    public void characters(XMLString text, Augmentations augs) throws XNIException {
+        try {
+            serializer.characters(text.ch, text.offset, text.length);
+        } catch (IOException e) {
+            throw new XNIException(e);
+        }
+    }
+
+    public void ignorableWhitespace(XMLString text, Augmentations augs) throws XNIException {
+        characters(text, augs);
+    }
+
+    public void comment(XMLString text, Augmentations augs) throws XNIException {
+        try {
+            serializer.comment(text.toString());
+        } catch (IOException e) {
+            throw new XNIException(e);
+        }
+    }
+
+    public void endDocument(Augmentations augs) throws XNIException {
+        try {
+            serializer.endDocument();
+        } catch (IOException e) {
+            throw new XNIException(e);
+        }
+    }
+
+    // the rest of the stream carries nothing that is written out
+
+    public void startCDATA(Augmentations augs) throws XNIException {
+    }
+
+    public void endCDATA(Augmentations augs) throws XNIException {
+    }
+
+    public void processingInstruction(String target, XMLString data, Augmentations augs) throws XNIException {
+    }
+
+    public void doctypeDecl(String root, String publicId, String systemId, Augmentations augs) throws XNIException {
+    }
+
+    public void startGeneralEntity(String name, XMLResourceIdentifier id, String encoding, Augmentations augs) throws XNIException {
+    }
+
+    public void endGeneralEntity(String name, Augmentations augs) throws XNIException {
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A <code>Writer</code> that holds back any trailing line breaks until it is
+ * known whether more output follows. This gives streamed output the same
+ * trailing newline handling that <code>AbstractAntiSamyScanner.trim()</code>
+ * applies to <code>String</code> results.
+ */
+class TrailingNewlineWriter extends FilterWriter {
+
+    private final StringBuilder pending = new StringBuilder();
+
+    TrailingNewlineWriter(Writer out) {
+        super(out);
+    }
+
+    public void write(int c) throws IOException {
+        if (c == '\n' || c == '\r') {
+            pending.append((char) c);
+        } else {
+            flushPending();
+            out.write(c);
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int trailing = end;
+        while (trailing > off && (cbuf[trailing - 1] == '\n' || cbuf[trailing - 1] == '\r')) {
+            trailing--;
+        }
+        if (trailing > off) {
+            flushPending();
+            out.write(cbuf, off, trailing - off);
+        }
+        pending.append(cbuf, trailing, end - trailing);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        write(str.toCharArray(), off, len);
+    }
+
+    public void flush() throws IOException {
+        // pending line breaks are only released by more output or finish()
+        out.flush();
+    }
+
+    /**
+     * Writes out the held back line breaks, dropping the final one unless the
+     * original input ended with a newline as well.
+     *
+     * @param inputEndedWithNewline Whether the scanned input ended with '\n'.
+     */
+    void finish(boolean inputEndedWithNewline) throws IOException {
+        int length = pending.length();
+        if (!inputEndedWithNewline && length > 0 && pending.charAt(length - 1) == '\n') {
+            length--;
+            if (length > 0 && pending.charAt(length - 1) == '\r') {
+                length--;
+            }
+        }
+        out.write(pending.toString(), 0, length);
+        pending.setLength(0);
+        out.flush();
+    }
+
+    private void flushPending() throws IOException {
+        if (pending.length() > 0) {
+            out.write(pending.toString());
+            pending.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ResourceBundle;
+
+/**
+ * A list of scan error messages that records each error as its message key and
+ * arguments, and only formats the localized text when an element is read.
+ * Most callers only look at the clean HTML, so the resource bundle lookup,
+ * <code>MessageFormat</code> and entity encoding are skipped for them entirely.
+ * <p>
+ * A disabled list silently drops everything added to it; this backs the
+ * <code>omitErrorMessages</code> policy directive.
+ * <p>
+ * Not thread safe; each scan owns its own list.
+ */
+public class ErrorMessageList extends AbstractList<String> {
+
+	private final ResourceBundle messages;
+	private final boolean enabled;
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public ErrorMessageList(ResourceBundle messages) {
+		this(messages, true);
+	}
+
+	public ErrorMessageList(ResourceBundle messages, boolean enabled) {
+		this.messages = messages;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Copies the errors of <code>other</code>, without rendering them.
+	 */
+	public ErrorMessageList(ErrorMessageList other) {
+		this(other.messages, other.enabled);
+		entries.addAll(other.entries);
+	}
+
+	/**
+	 * Copies the errors of <code>other</code> from <code>fromIndex</code> on,
+	 * without rendering them.
+	 */
+	public ErrorMessageList(ErrorMessageList other, int fromIndex) {
+		this(other.messages, other.enabled);
+		entries.addAll(other.entries.subList(fromIndex, other.entries.size()));
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Records an error without rendering it.
+	 * @param errorKey One of the <code>ErrorMessageUtil.ERROR_*</code> keys.
+	 * @param arguments The message arguments; use {@link ErrorMessageUtil#encoded(String)}
+	 *                  for values that must be entity-encoded.
+	 */
+	public void add(String errorKey, Object[] arguments) {
+		if (enabled) {
+			entries.add(new Entry(messages, errorKey, arguments, null));
+		}
+	}
+
+	/**
+	 * @return The message key of the error at <code>index</code>, or null if the
+	 *         error was added as an already rendered message.
+	 */
+	public String getErrorKey(int index) {
+		return entries.get(index).errorKey;
+	}
+
+	/**
+	 * @return The raw (not encoded) arguments of the error at <code>index</code>.
+	 */
+	public Object[] getArguments(int index) {
+		Object[] arguments = entries.get(index).arguments;
+		if (arguments == null) {
+			return new Object[0];
+		}
+		Object[] raw = new Object[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			raw[i] = ErrorMessageUtil.unwrap(arguments[i]);
+		}
+		return raw;
+	}
+
+	public String get(int index) {
+		return entries.get(index).render();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean add(String message) {
+		if (!enabled) {
+			return false;
+		}
+		return entries.add(new Entry(null, null, null, message));
+	}
+
+	public void add(int index, String message) {
+		if (enabled) {
+			entries.add(index, new Entry(null, null, null, message));
+		}
+	}
+
+	public String remove(int index) {
+		return entries.remove(index).render();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Drops a range of errors without rendering them, backing
+	 * <code>subList(fromIndex, toIndex).clear()</code>.
+	 */
+	protected void removeRange(int fromIndex, int toIndex) {
+		entries.subList(fromIndex, toIndex).clear();
+		modCount++;
+	}
+
+	/**
+	 * Copies the errors of another <code>ErrorMessageList</code> without rendering them.
+	 */
+	public boolean addAll(Collection<? extends String> c) {
+		if (!enabled) {
+			return false;
+		}
+		if (c instanceof ErrorMessageList) {
+			return entries.addAll(((ErrorMessageList) c).entries);
+		}
+		return super.addAll(c);
+	}
+
+	private static final class Entry {
+		private final ResourceBundle messages;
+		private final String errorKey;
+		private final Object[] arguments;
+		private String rendered;
+
+		Entry(ResourceBundle messages, String errorKey, Object[] arguments, String rendered) {
+			this.messages = messages;
+			this.errorKey = errorKey;
+			this.arguments = arguments;
+			this.rendered = rendered;
+		}
+
+		String render() {
+			if (rendered == null) {
+				rendered = ErrorMessageUtil.getMessage(messages, errorKey, arguments);
+			}
+			return rendered;
+		}
+	}
+}
@@ -79,5 +79,35 @@ private ErrorMessageUtil() {}
 	public static String getMessage(ResourceBundle messages, String msgKey, Object[] arguments) {	
 		return MessageFormat.format( messages.getString(msgKey), arguments );
 	}
+
+	/**
+	 * Wraps a message argument so that it is only HTML entity-encoded when the
+	 * message is actually rendered.
+	 * @param value The raw argument value, which may be null.
+	 * @return An argument whose <code>toString()</code> is the encoded value, or null.
+	 */
+	public static Object encoded(String value) {
+		return value == null ? null : new EncodedArgument(value);
+	}
+
+	/**
+	 * Returns the raw value behind an argument created by {@link #encoded(String)},
+	 * or the argument itself if it was not wrapped.
+	 */
+	public static Object unwrap(Object argument) {
+		return argument instanceof EncodedArgument ? ((EncodedArgument) argument).value : argument;
+	}
+
+	private static final class EncodedArgument {
+		private final String value;
+
+		EncodedArgument(String value) {
+			this.value = value;
+		}
+
+		public String toString() {
+			return HTMLEntityEncoder.htmlEntityEncode(value);
+		}
+	}
 	
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.html.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds a SHA-256 digest over a sequence of strings. Every string is
+ * prefixed with its length, so different sequences can't run together into
+ * the same bytes.
+ */
+public final class Fingerprint {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest = newDigest();
+
+    public Fingerprint add(String value) {
+        if (value == null) {
+            update(-1);
+        } else {
+            byte[] bytes = utf8(value);
+            update(bytes.length);
+            digest.update(bytes);
+        }
+        return this;
+    }
+
+    public Fingerprint add(byte[] bytes) {
+        update(bytes.length);
+        digest.update(bytes);
+        return this;
+    }
+
+    /**
+     * Adds the strings in their natural order, so the result doesn't depend
+     * on the iteration order of the collection.
+     */
+    public Fingerprint addSorted(Collection<String> values) {
+        List<String> sorted = new ArrayList<String>(values);
+        Collections.sort(sorted);
+        update(sorted.size());
+        for (String value : sorted) {
+            add(value);
+        }
+        return this;
+    }
+
+    public byte[] toBytes() {
+        return digest.digest();
+    }
+
+    public String toHex() {
+        return hex(toBytes());
+    }
+
+    /**
+     * @return The hex encoded SHA-256 digest of the UTF-16 code units of
+     *         <code>content</code>, which keeps apart strings that only
+     *         differ in unpaired surrogates.
+     */
+    public static String of(String content) {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int n = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            buffer[n++] = (byte) (c >>> 8);
+            buffer[n++] = (byte) c;
+            if (n == buffer.length) {
+                digest.update(buffer, 0, n);
+                n = 0;
+            }
+        }
+        digest.update(buffer, 0, n);
+        return hex(digest.digest());
+    }
+
+    public static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private void update(int length) {
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is provided by all standard JREs
+            throw new IllegalStateException(e);
+        }
+    }
+}
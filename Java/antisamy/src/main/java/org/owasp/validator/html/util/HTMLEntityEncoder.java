@@ -21,45 +21,156 @@
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package org.owasp.validator.html.util;
 
+import java.io.IOException;
+
+/**
+ * HTML entity encoding for text that ends up in error messages and the like.
+ * Letters, digits and whitespace are kept, <code>&amp;</code>,
+ * <code>&lt;</code> and <code>&gt;</code> become named entities, other
+ * printable ASCII becomes a numeric entity and anything else is dropped.
+ * <p>
+ * The replacement for every ASCII character is computed once, and input that
+ * needs no encoding is returned as it is, without copying.
+ */
 public class HTMLEntityEncoder {
-	
+
+	/**
+	 * What to write for each ASCII character: null to keep it, an empty
+	 * string to drop it, or its entity.
+	 */
+	private static final String[] ASCII_REPLACEMENTS = new String[128];
+
+	/**
+	 * The characters the serializers always write as entities, whatever the
+	 * <code>entityEncodeIntlChars</code> directive says.
+	 */
+	private static final boolean[] MARKUP_SIGNIFICANT = new boolean[128];
+
+	private static final String DROP = "";
+
+	static {
+		for (char ch = 0; ch < 128; ch++) {
+			if (ch == '&') {
+				ASCII_REPLACEMENTS[ch] = "&amp;";
+			} else if (ch == '<') {
+				ASCII_REPLACEMENTS[ch] = "&lt;";
+			} else if (ch == '>') {
+				ASCII_REPLACEMENTS[ch] = "&gt;";
+			} else if (Character.isWhitespace(ch) || Character.isLetterOrDigit(ch)) {
+				ASCII_REPLACEMENTS[ch] = null;
+			} else if (ch >= 32 && ch <= 126) {
+				ASCII_REPLACEMENTS[ch] = "&#" + (int) ch + ";";
+			} else {
+				ASCII_REPLACEMENTS[ch] = DROP;
+			}
+		}
+		for (char ch : "<>\"'&".toCharArray()) {
+			MARKUP_SIGNIFICANT[ch] = true;
+		}
+	}
+
+	/**
+	 * @return What to write for <code>ch</code>: null to keep it, an empty
+	 *         string to drop it, or its entity.
+	 */
+	private static String replacement(char ch) {
+		if (ch < 128) {
+			return ASCII_REPLACEMENTS[ch];
+		}
+		return Character.isWhitespace(ch) || Character.isLetterOrDigit(ch) ? null : DROP;
+	}
+
 	/**
 	 * A helper method for HTML entity-encoding a String value.
 	 * @param value A String containing HTML control characters.
-	 * @return An HTML-encoded String.
+	 * @return An HTML-encoded String, or <code>value</code> itself if nothing
+	 *         needed encoding.
 	 */
 	public static String htmlEntityEncode(String value) {
 		
-		StringBuffer buff = new StringBuffer();
-		
 		if ( value == null ) {
 			return null;
 		}
-		
-		for(int i=0;i<value.length();i++) {
-			
-			char ch = value.charAt(i);
-			
-			if ( ch == '&' ) {
-				buff.append("&amp;");
-			} else if ( ch == '<') {
-				buff.append("&lt;");
-			} else if ( ch == '>') {
-				buff.append("&gt;");
-			} else if ( Character.isWhitespace(ch ) ) {
-				buff.append(ch);
-			} else if ( Character.isLetterOrDigit(ch) ) {
-				buff.append(ch);
-			} else if ( (int)ch >= 32 && (int)ch <= 126 ) {
-				buff.append( "&#" + (int)ch + ";" );			
-			}
-			
+
+		int length = value.length();
+		int i = 0;
+		while (i < length && replacement(value.charAt(i)) == null) {
+			i++;
 		}
-		
+		if (i == length) {
+			return value;
+		}
+
+		StringBuilder buff = new StringBuilder(length + 16);
+		buff.append(value, 0, i);
+		encode(value, i, length, buff);
 		return buff.toString();
-		
+	}
+
+	/**
+	 * Entity-encodes <code>value</code> onto <code>out</code>.
+	 * @param value The text to encode; nothing is written if it is null.
+	 * @param out Where the encoded text goes.
+	 * @throws IOException If <code>out</code> throws one.
+	 */
+	public static void htmlEntityEncode(CharSequence value, Appendable out) throws IOException {
+		if (value != null) {
+			encode(value, 0, value.length(), out);
+		}
+	}
+
+	/**
+	 * Entity-encodes <code>length</code> characters of <code>chars</code>,
+	 * starting at <code>offset</code>, onto <code>out</code>.
+	 * @throws IOException If <code>out</code> throws one.
+	 */
+	public static void htmlEntityEncode(char[] chars, int offset, int length, Appendable out) throws IOException {
+		int end = offset + length;
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			String replacement = replacement(chars[i]);
+			if (replacement != null) {
+				for (int j = start; j < i; j++) {
+					out.append(chars[j]);
+				}
+				out.append(replacement);
+				start = i + 1;
+			}
+		}
+		for (int j = start; j < end; j++) {
+			out.append(chars[j]);
+		}
+	}
+
+	/**
+	 * @return True for the characters that must always be written as an
+	 *         entity in HTML output: <code>&lt; &gt; &quot; ' &amp;</code>.
+	 */
+	public static boolean isMarkupSignificant(int ch) {
+		return ch >= 0 && ch < 128 && MARKUP_SIGNIFICANT[ch];
+	}
+
+	private static void encode(CharSequence value, int from, int to, Appendable out) throws IOException {
+		int start = from;
+		for (int i = from; i < to; i++) {
+			String replacement = replacement(value.charAt(i));
+			if (replacement != null) {
+				out.append(value, start, i);
+				out.append(replacement);
+				start = i + 1;
+			}
+		}
+		out.append(value, start, to);
+	}
+
+	private static void encode(String value, int from, int to, StringBuilder out) {
+		try {
+			encode((CharSequence) value, from, to, out);
+		} catch (IOException e) {
+			// a StringBuilder doesn't throw
+			throw new IllegalStateException(e);
+		}
 	}
 }
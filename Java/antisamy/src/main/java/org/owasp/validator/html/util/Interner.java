@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Hands out one canonical instance for each set of equal values, like
+ * <code>String.intern()</code> for other immutable types, so equal rules
+ * loaded by different policies share one object. The canonical instances are
+ * held weakly and dropped once nothing else refers to them. Thread safe.
+ *
+ * @param <T> An immutable type with value based <code>equals()</code> and
+ *            <code>hashCode()</code>.
+ */
+public final class Interner<T> {
+
+    private final WeakHashMap<T, WeakReference<T>> instances = new WeakHashMap<T, WeakReference<T>>();
+
+    /**
+     * @return The canonical instance equal to <code>value</code>, which
+     *         becomes the canonical one if there is none yet.
+     */
+    public synchronized T intern(T value) {
+        WeakReference<T> reference = instances.get(value);
+        T canonical = reference != null ? reference.get() : null;
+        if (canonical != null) {
+            return canonical;
+        }
+        instances.remove(value);
+        instances.put(value, new WeakReference<T>(value));
+        return value;
+    }
+
+    /**
+     * @return The number of canonical instances still alive.
+     */
+    public synchronized int size() {
+        return instances.size();
+    }
+}
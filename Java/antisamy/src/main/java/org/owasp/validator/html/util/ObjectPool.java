@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A bounded pool of expensive, reusable objects such as parsers and
+ * transformers.
+ * <p/>
+ * Borrowing never blocks: if no idle object is available a new one is
+ * created. At most <code>maxIdle</code> objects are kept for reuse, objects
+ * returned to a full pool are discarded, and objects that have been idle for
+ * longer than the idle timeout are evicted. Eviction happens as a side effect
+ * of borrowing and releasing, so the pool needs no background thread.
+ * <p/>
+ * With thread affinity enabled, each thread keeps the last object it released
+ * and gets it back on its next borrow without touching the shared pool.
+ * Objects parked on a thread count against <code>maxIdle</code> and are
+ * evicted after the idle timeout like the others; those left behind by
+ * threads that ended are discarded.
+ * <p/>
+ * An object whose use failed should be handed to <code>discard()</code>
+ * instead of <code>release()</code>, since it may be left in an unknown state.
+ */
+public abstract class ObjectPool<T> {
+
+    private static class Idle<T> {
+        final T item;
+        final long since;
+
+        Idle(T item, long since) {
+            this.item = item;
+            this.since = since;
+        }
+    }
+
+    /**
+     * The object parked on a thread. Only the owning thread parks an object,
+     * it is taken back by the owner or evicted by any thread.
+     */
+    private static class Parked<T> extends AtomicReference<Idle<T>> {
+        final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+
+    /** The longest time between checks of the objects parked on threads. */
+    private static final long PARKED_SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /* most recently released first, guarded by itself */
+    private final LinkedList<Idle<T>> idle = new LinkedList<Idle<T>>();
+    private final ThreadLocal<Parked<T>> parked = new ThreadLocal<Parked<T>>();
+    private final ConcurrentHashMap<Parked<T>, Boolean> parkedSlots = new ConcurrentHashMap<Parked<T>, Boolean>();
+    /* guarded by idle */
+    private long lastParkedSweep = System.nanoTime();
+
+    private volatile int maxIdle;
+    private volatile long idleTimeoutNanos;
+    private volatile boolean threadAffinity;
+
+    private final AtomicInteger borrowed = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param maxIdle           The maximum number of idle objects kept for reuse.
+     * @param idleTimeoutMillis How long an object may stay idle before it is evicted.
+     */
+    protected ObjectPool(int maxIdle, long idleTimeoutMillis) {
+        setMaxIdle(maxIdle);
+        setIdleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new object for the pool. Failures should be reported as
+     * unchecked exceptions.
+     *
+     * @return The new object.
+     */
+    protected abstract T create();
+
+    /**
+     * @return An idle object, or a new one if none is available.
+     */
+    public T borrow() {
+        T item = null;
+        if (threadAffinity) {
+            item = unpark();
+        }
+        if (item == null) {
+            synchronized (idle) {
+                evictExpired(System.nanoTime());
+                if (!idle.isEmpty()) {
+                    item = idle.removeFirst().item;
+                    idleCount.decrementAndGet();
+                }
+            }
+        }
+        if (item == null) {
+            item = create();
+            created.incrementAndGet();
+        }
+        borrowed.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * Returns a borrowed object to the pool after successful use.
+     *
+     * @param item The object, as returned by <code>borrow()</code>.
+     */
+    public void release(T item) {
+        borrowed.decrementAndGet();
+        if (threadAffinity && park(item)) {
+            return;
+        }
+        if (!offer(item)) {
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return True if the object was parked on the current thread, which
+     *         happens if no other object is parked on it and the pool isn't
+     *         full.
+     */
+    private boolean park(T item) {
+        Parked<T> slot = parked.get();
+        if (slot == null) {
+            slot = new Parked<T>();
+            parked.set(slot);
+            parkedSlots.put(slot, Boolean.TRUE);
+        }
+        if (slot.get() != null || !reserveIdle()) {
+            return false;
+        }
+        slot.set(new Idle<T>(item, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * @return The object parked on the current thread, or null if there is
+     *         none or it was idle too long.
+     */
+    private T unpark() {
+        Parked<T> slot = parked.get();
+        Idle<T> entry = slot != null ? slot.getAndSet(null) : null;
+        if (entry == null) {
+            return null;
+        }
+        idleCount.decrementAndGet();
+        if (System.nanoTime() - entry.since > idleTimeoutNanos) {
+            discarded.incrementAndGet();
+            return null;
+        }
+        return entry.item;
+    }
+
+    /**
+     * Drops a borrowed object instead of returning it, for instance because
+     * its use failed.
+     *
+     * @param item The object, as returned by <code>borrow()</code>.
+     */
+    public void discard(T item) {
+        borrowed.decrementAndGet();
+        discarded.incrementAndGet();
+    }
+
+    /**
+     * Creates objects until the pool holds <code>count</code> idle objects,
+     * or is full.
+     *
+     * @param count The number of idle objects wanted.
+     */
+    public void warmUp(int count) {
+        while (idleCount.get() < Math.min(count, maxIdle)) {
+            T item = create();
+            created.incrementAndGet();
+            if (!offer(item)) {
+                discarded.incrementAndGet();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Discards all idle objects in the shared pool. Objects parked on threads
+     * are kept.
+     */
+    public void clear() {
+        synchronized (idle) {
+            discarded.addAndGet(idle.size());
+            idleCount.addAndGet(-idle.size());
+            idle.clear();
+        }
+    }
+
+    private boolean offer(T item) {
+        long now = System.nanoTime();
+        synchronized (idle) {
+            evictExpired(now);
+            if (reserveIdle()) {
+                idle.addFirst(new Idle<T>(item, now));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts one more idle object, unless the pool, parked objects included,
+     * already holds <code>maxIdle</code>.
+     */
+    private boolean reserveIdle() {
+        while (true) {
+            int count = idleCount.get();
+            if (count >= maxIdle) {
+                return false;
+            }
+            if (idleCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void evictExpired(long now) {
+        while (!idle.isEmpty() && now - idle.getLast().since > idleTimeoutNanos) {
+            idle.removeLast();
+            idleCount.decrementAndGet();
+            discarded.incrementAndGet();
+        }
+        if (now - lastParkedSweep >= Math.min(idleTimeoutNanos, PARKED_SWEEP_NANOS)) {
+            lastParkedSweep = now;
+            evictParked(now);
+        }
+    }
+
+    /**
+     * Evicts the objects parked on threads for too long, and forgets the
+     * threads that ended.
+     */
+    private void evictParked(long now) {
+        for (Iterator<Parked<T>> slots = parkedSlots.keySet().iterator(); slots.hasNext();) {
+            Parked<T> slot = slots.next();
+            Idle<T> entry = slot.get();
+            boolean ended = !slot.isOwnerAlive();
+            if (entry != null && (ended || now - entry.since > idleTimeoutNanos) && slot.compareAndSet(entry, null)) {
+                idleCount.decrementAndGet();
+                discarded.incrementAndGet();
+            }
+            if (ended) {
+                slots.remove();
+            }
+        }
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative: " + maxIdle);
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * @return The number of objects currently borrowed.
+     */
+    public int getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return The number of objects currently idle, including those parked on
+     *         threads.
+     */
+    public int getIdle() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return The number of objects created since the pool was created.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return The number of objects discarded since the pool was created,
+     *         because they failed, the pool was full or they were idle too long.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.util;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles each distinct regular expression once for all the policies of the
+ * JVM. The same URL, color and length expressions show up for many tags, in
+ * every included file and in every policy loaded, and they are all backed by
+ * the one <code>Pattern</code> this registry hands out.
+ * <p>
+ * Patterns are held weakly: once no policy uses an expression any more it is
+ * dropped, and compiled again if a policy needs it later. The registry is
+ * thread safe.
+ */
+public final class PatternRegistry {
+
+    /**
+     * Keyed by the source string held by the pattern itself, so an entry
+     * lives exactly as long as its pattern.
+     */
+    private static final Map<Integer, WeakHashMap<String, WeakReference<Pattern>>> PATTERNS =
+            new HashMap<Integer, WeakHashMap<String, WeakReference<Pattern>>>();
+
+    private static long compiled;
+    private static long shared;
+
+    private PatternRegistry() {
+    }
+
+    public static Pattern compile(String regex) {
+        return compile(regex, 0);
+    }
+
+    /**
+     * @return The registered pattern for <code>regex</code> and
+     *         <code>flags</code>, compiled now if there is none yet.
+     */
+    public static Pattern compile(String regex, int flags) {
+        synchronized (PATTERNS) {
+            WeakHashMap<String, WeakReference<Pattern>> patterns = PATTERNS.get(flags);
+            if (patterns == null) {
+                patterns = new WeakHashMap<String, WeakReference<Pattern>>();
+                PATTERNS.put(flags, patterns);
+            }
+            WeakReference<Pattern> reference = patterns.get(regex);
+            Pattern pattern = reference != null ? reference.get() : null;
+            if (pattern != null) {
+                shared++;
+                return pattern;
+            }
+
+            pattern = Pattern.compile(regex, flags);
+            // replace the entry, a put would keep the key of the dead pattern
+            patterns.remove(regex);
+            patterns.put(pattern.pattern(), new WeakReference<Pattern>(pattern));
+            compiled++;
+            return pattern;
+        }
+    }
+
+    /**
+     * @return The number of patterns compiled by the registry so far.
+     */
+    public static long getCompiled() {
+        synchronized (PATTERNS) {
+            return compiled;
+        }
+    }
+
+    /**
+     * @return The number of times an already compiled pattern was handed out.
+     */
+    public static long getShared() {
+        synchronized (PATTERNS) {
+            return shared;
+        }
+    }
+}
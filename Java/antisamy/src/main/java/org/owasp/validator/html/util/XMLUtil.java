@@ -27,21 +27,8 @@
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class XMLUtil {
 
-    private static final Pattern encgt = Pattern.compile("&gt;");
-    private static final Pattern enclt = Pattern.compile("&lt;");
-    private static final Pattern encQuot = Pattern.compile("&quot;");
-    private static final Pattern encAmp = Pattern.compile("&amp;");
-
-    private static final Pattern gt = Pattern.compile(">");
-    private static final Pattern lt = Pattern.compile("<");
-    private static final Pattern quot = Pattern.compile("\"");
-    private static final Pattern amp = Pattern.compile("&");
-
     /**
 	 * Helper function for quickly retrieving an attribute from a given
 	 * element. 
@@ -148,7 +135,9 @@ public static boolean getBooleanValue(Element ele, String tagName, boolean defau
 
 
     /**
-     * Helper function for decode XML entities.
+     * Helper function for decode XML entities. Only a value that is exactly
+     * one of <code>&amp;gt;</code>, <code>&amp;lt;</code>, <code>&amp;quot;</code>
+     * or <code>&amp;amp;</code> is decoded; anything else is returned as it is.
      *
      * @param str The XML-encoded String to decode.
      * @return An XML-decoded String.
@@ -159,47 +148,40 @@ public static String decode(String str) {
             return null;
         }
 
-        Matcher gtmatcher = encgt.matcher(str);
-        if (gtmatcher.matches()) {
-            str = gtmatcher.replaceAll(">");
-        }
-        Matcher ltmatcher = enclt.matcher(str);
-        if (ltmatcher.matches()) {
-            str = ltmatcher.replaceAll("<");
-        }
-        Matcher quotMatcher = encQuot.matcher(str);
-        if (quotMatcher.matches()) {
-            str = quotMatcher.replaceAll("\"");
-        }
-        Matcher ampMatcher = encAmp.matcher(str);
-        if (ampMatcher.matches()) {
-            str = ampMatcher.replaceAll("&");
+        if ("&gt;".equals(str)) {
+            return ">";
+        } else if ("&lt;".equals(str)) {
+            return "<";
+        } else if ("&quot;".equals(str)) {
+            return "\"";
+        } else if ("&amp;".equals(str)) {
+            return "&";
         }
 
         return str;
     }
 
+    /**
+     * The counterpart of <code>decode()</code>: only a value that is exactly
+     * one of <code>&gt; &lt; " &amp;</code> is encoded.
+     */
     public static String encode(String str) {
 
         if (str == null) {
             return null;
         }
 
-        Matcher gtMatcher = gt.matcher(str);
-        if (gtMatcher.matches()) {
-            str = gtMatcher.replaceAll("&gt;");
-        }
-        Matcher ltMatcher = lt.matcher(str);
-        if (ltMatcher.matches()) {
-            str = ltMatcher.replaceAll("&lt;");
-        }
-        Matcher quotMatcher = quot.matcher(str);
-        if (quotMatcher.matches()) {
-            str = quotMatcher.replaceAll("&quot;");
-        }
-        Matcher ampMatcher = amp.matcher(str);
-        if (ampMatcher.matches()) {
-            str = ampMatcher.replaceAll("&amp;");
+        if (str.length() == 1) {
+            switch (str.charAt(0)) {
+                case '>':
+                    return "&gt;";
+                case '<':
+                    return "&lt;";
+                case '"':
+                    return "&quot;";
+                case '&':
+                    return "&amp;";
+            }
         }
 
         return str;
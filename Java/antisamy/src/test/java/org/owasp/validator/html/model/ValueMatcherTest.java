@@ -0,0 +1,39 @@
+package org.owasp.validator.html.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueMatcherTest {
+
+    @Test
+    public void testCombinedExpressionsMatchWholeValue() throws Exception {
+        ValueMatcher matcher = new ValueMatcher(Arrays.asList("auto"),
+                Arrays.asList(Pattern.compile("[0-9]+px"), Pattern.compile("#[0-9a-f]{3}"), null));
+        assertTrue(matcher.matches("auto"));
+        assertTrue(matcher.matches("12px"));
+        assertTrue(matcher.matches("#fff"));
+        assertFalse(matcher.matches("12px#fff"));
+        assertFalse(matcher.matches("#ffff"));
+        assertFalse(matcher.matchesPattern("auto"));
+        assertFalse(matcher.matchesLiteral("12px"));
+    }
+
+    @Test
+    public void testExpressionsThatCannotBeCombined() throws Exception {
+        ValueMatcher matcher = new ValueMatcher(Collections.<String>emptyList(),
+                Arrays.asList(Pattern.compile("(a)\\1"), Pattern.compile("(?i)b"), Pattern.compile("c", Pattern.CASE_INSENSITIVE),
+                        Pattern.compile("d")));
+        assertTrue(matcher.matches("aa"));
+        assertTrue(matcher.matches("B"));
+        assertTrue(matcher.matches("C"));
+        assertTrue(matcher.matches("d"));
+        assertFalse(matcher.matches("D"));
+        assertFalse(matcher.matches("ab"));
+    }
+}
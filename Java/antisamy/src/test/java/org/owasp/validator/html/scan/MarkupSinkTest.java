@@ -0,0 +1,55 @@
+package org.owasp.validator.html.scan;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarkupSinkTest {
+
+    @Test
+    public void testUtf8SinkMatchesStringEncoding() throws IOException {
+        String text = "a\u00e9\u20ac\uD83D\uDE00<b>";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarkupSink sink = MarkupSink.to(bytes);
+        sink.write(text.substring(0, 4));
+        sink.write(text.charAt(4));
+        sink.write(text.toCharArray(), 5, text.length() - 5);
+        sink.flush();
+        assertEquals(text, new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testUtf8SinkReplacesLoneSurrogates() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarkupSink sink = MarkupSink.to(bytes);
+        sink.write("a\uDE00b\uD83Dc\uD83D");
+        sink.flush();
+        assertEquals("a?b?c?", new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testUtf8SinkDrainsLargeOutput() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("\u00e9\u20ac");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarkupSink sink = MarkupSink.to(bytes);
+        sink.write(text.toString());
+        sink.flush();
+        assertEquals(text.toString(), new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testStringBuilderSink() throws IOException {
+        StringBuilder out = new StringBuilder();
+        MarkupSink sink = MarkupSink.to(out);
+        sink.write('<');
+        sink.write("b>x".toCharArray(), 0, 2);
+        sink.write("</b>");
+        assertEquals("<b></b>", out.toString());
+    }
+}
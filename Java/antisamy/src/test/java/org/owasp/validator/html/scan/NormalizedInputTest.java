@@ -0,0 +1,87 @@
+package org.owasp.validator.html.scan;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NormalizedInputTest {
+
+    @Test
+    public void testCleanInputIsNotCopied() {
+        String html = "<b>caf\u00e9 \uD83D\uDE00</b>\t\r\n";
+        NormalizedInput input = NormalizedInput.of(html);
+        assertSame(html, input.getHtml());
+        assertEquals(0, input.getRemovedChars());
+        assertTrue(input.hasMarkup());
+        assertFalse(input.hasEntities());
+    }
+
+    @Test
+    public void testInvalidCharactersAreRemoved() {
+        NormalizedInput input = NormalizedInput.of("a\u0000b\u001Fc\uFFFEd\uFFFFe\uD800f\uDC00g\uD83D");
+        assertEquals("abcdefg", input.getHtml());
+        assertEquals(7, input.getRemovedChars());
+        assertFalse(input.hasMarkup());
+    }
+
+    @Test
+    public void testStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NormalizedInput.DENSITY_BLOCK_SIZE; i++) {
+            sb.append(i % 4 == 0 ? '<' : 'x');
+        }
+        sb.append("<<<&amp;");
+        NormalizedInput input = NormalizedInput.of(sb.toString());
+        assertEquals(NormalizedInput.DENSITY_BLOCK_SIZE / 4, input.getMaxMarkupDensity());
+        assertTrue(input.hasEntities());
+    }
+
+    @Test
+    public void testReaderMatchesStringNormalization() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("ab\u0001\uD83D\uDE00\uDC00\uFFFF");
+        }
+        String raw = sb.toString();
+        // read in odd chunk sizes so surrogate pairs straddle the buffer
+        Reader in = new NormalizingReader(new ChunkedReader(raw, 8191), raw.length());
+        StringBuilder out = new StringBuilder();
+        char[] buf = new char[777];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            out.append(buf, 0, n);
+        }
+        assertEquals(NormalizedInput.of(raw).getHtml(), out.toString());
+    }
+
+    @Test
+    public void testReaderLimitCountsRawCharacters() throws IOException {
+        NormalizingReader in = new NormalizingReader(new StringReader("\u0000\u0000\u0000abc"), 5);
+        try {
+            while (in.read() != -1) {
+            }
+        } catch (IOException expected) {
+        }
+        assertTrue(in.isLimitExceeded());
+    }
+
+    private static class ChunkedReader extends StringReader {
+        private final int chunk;
+
+        ChunkedReader(String s, int chunk) {
+            super(s);
+            this.chunk = chunk;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, chunk));
+        }
+    }
+}
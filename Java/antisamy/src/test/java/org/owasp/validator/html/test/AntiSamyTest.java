@@ -28,13 +28,42 @@
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.owasp.validator.css.CssScanner;
+import org.owasp.validator.css.ExternalCssScanner;
+import org.owasp.validator.css.HttpStylesheetFetcher;
+import org.owasp.validator.css.InlineStyleCache;
+import org.owasp.validator.css.StylesheetCache;
 import org.owasp.validator.html.*;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.util.BoundedCache;
+import org.owasp.validator.html.util.Fingerprint;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -1257,4 +1286,640 @@ public void testAnotherXSS() throws ScanException, PolicyException {
     }
 
 
+    @Test
+    public void streamingScan() throws ScanException, PolicyException {
+        String test = "<b>bold</b><script>alert(1)</script><a href=\"http://www.owasp.org\" onclick=\"x()\">link</a>";
+        CleanResults expected = as.scan(test, policy, AntiSamy.SAX);
+
+        StringWriter out = new StringWriter();
+        CleanResults results = as.scan(new StringReader(test), out, policy);
+
+        assertEquals(expected.getCleanHTML(), out.toString());
+        assertEquals(expected.getErrorMessages(), results.getErrorMessages());
+        assertNull(results.getCleanHTML());
+    }
+
+    @Test
+    public void streamingScanEnforcesMaxInputSize() throws ScanException, PolicyException {
+        Policy small = policy.cloneWithDirective("maxInputSize", "10");
+        try {
+            as.scan(new StringReader("<b>more than ten characters</b>"), new StringWriter(), small);
+            fail("Input larger than maxInputSize should have been rejected");
+        } catch (ScanException expected) {
+            // expected
+        }
+
+        StringWriter out = new StringWriter();
+        as.scan(new StringReader("<b>ok</b>"), out, small);
+        assertEquals("<b>ok</b>", out.toString());
+    }
+
+    @Test
+    public void attributeVerdictCache() throws ScanException, PolicyException {
+        TestPolicy cached = policy.cloneWithDirective(Policy.ATTRIBUTE_VERDICT_CACHE_SIZE, "10")
+                .cloneWithDirective(Policy.ATTRIBUTE_VERDICT_CACHE_MAX_VALUE_LENGTH, "30");
+        String test = "<p align=\"center\">a</p><p align=\"center\">b</p><p align=\"bogus\">c</p>"
+                + "<a href=\"http://www.owasp.org/a/very/long/path/that/is/never/cached\">d</a>";
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(as.scan(test, policy, AntiSamy.SAX).getCleanHTML(), as.scan(test, cached, AntiSamy.SAX).getCleanHTML());
+            assertEquals(as.scan(test, policy, AntiSamy.DOM).getCleanHTML(), as.scan(test, cached, AntiSamy.DOM).getCleanHTML());
+        }
+
+        DecisionTable table = cached.getDecisionTable();
+        // three short values, two of them distinct, in each of four scans
+        assertEquals(2, table.getVerdictCacheMisses());
+        assertEquals(10, table.getVerdictCacheHits());
+        assertNull(policy.getDecisionTable().getAttribute(DecisionTable.UNKNOWN, "align"));
+    }
+
+    @Test
+    public void scanAllKeepsOrderAndScansDuplicatesOnce() throws ScanException, PolicyException {
+        List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            inputs.add("<b>item " + i + "</b><script>alert(" + i + ")</script>");
+            inputs.add("<i>same</i><blink>x</blink>");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            AntiSamy antiSamy = new AntiSamy();
+            antiSamy.setExecutorService(executor);
+            List<CleanResults> results = antiSamy.scanAll(inputs, policy);
+
+            assertEquals(inputs.size(), results.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                CleanResults expected = as.scan(inputs.get(i), policy, AntiSamy.SAX);
+                assertEquals(expected.getCleanHTML(), results.get(i).getCleanHTML());
+                assertEquals(expected.getErrorMessages(), results.get(i).getErrorMessages());
+            }
+            assertSame(results.get(1), results.get(99));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(Collections.<CleanResults>emptyList(), as.scanAll(Collections.<String>emptyList(), policy));
+    }
+
+    @Test
+    public void scanAllFromATaskOfItsOwnExecutor() throws Exception {
+        final List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            inputs.add("<b>item " + i + "</b><script>alert(" + i + ")</script>");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            final AntiSamy antiSamy = new AntiSamy();
+            antiSamy.setExecutorService(executor);
+            Future<List<CleanResults>> nested = executor.submit(new Callable<List<CleanResults>>() {
+                public List<CleanResults> call() throws Exception {
+                    return antiSamy.scanAll(inputs, policy);
+                }
+            });
+            List<CleanResults> results = nested.get(30, TimeUnit.SECONDS);
+            assertEquals(inputs.size(), results.size());
+            assertEquals("<b>item 19</b>", results.get(19).getCleanHTML());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = ScanException.class)
+    public void scanAllReportsFailures() throws ScanException, PolicyException {
+        as.scanAll(Arrays.asList("<b>fine</b>", null, "<i>fine</i>"), policy);
+    }
+
+    @Test
+    public void errorMessagesAreRenderedLazilyAndCanBeOmitted() throws ScanException, PolicyException {
+        String dirty = "<div style=\"color: expression(alert(1))\" onclick=\"x&y\"><script>a</script><b>ok</b></div>";
+
+        CleanResults crd = as.scan(dirty, policy, AntiSamy.DOM);
+        CleanResults crs = as.scan(dirty, policy, AntiSamy.SAX);
+        assertTrue(crd.getErrorMessages().size() > 0);
+        assertEquals(new HashSet<String>(crd.getErrorMessages()), new HashSet<String>(crs.getErrorMessages()));
+        for (String message : crd.getErrorMessages()) {
+            assertFalse(message.contains("x&y"));
+        }
+
+        Policy quiet = policy.cloneWithDirective(Policy.OMIT_ERROR_MESSAGES, "true");
+        CleanResults qd = as.scan(dirty, quiet, AntiSamy.DOM);
+        CleanResults qs = as.scan(dirty, quiet, AntiSamy.SAX);
+        assertEquals(crd.getCleanHTML(), qd.getCleanHTML());
+        assertEquals(crs.getCleanHTML(), qs.getCleanHTML());
+        assertEquals(0, qd.getNumberOfErrors());
+        assertEquals(0, qs.getNumberOfErrors());
+
+        try {
+            as.scan(dirty, quiet.cloneWithDirective("maxInputSize", "10"), AntiSamy.DOM);
+            fail();
+        } catch (ScanException e) {
+            assertTrue(e.getMessage().length() > 0);
+        }
+    }
+
+    @Test
+    public void preScannedOutputMatchesTheFullScan() throws Exception {
+        String[] policies = {"/antisamy.xml", "/antisamy-tinymce.xml", "/antisamy-ebay.xml",
+                "/antisamy-myspace.xml", "/antisamy-slashdot.xml", "/antisamy-anythinggoes.xml"};
+        String[] inputs = {"<b>hello</b>", "text <i>x</i> more", "<span title=\"t\">s<b>x</b></span>", "just text"};
+        for (String name : policies) {
+            Policy loaded = Policy.getInstance(getClass().getResource(name)).cloneWithDirective(Policy.FORMAT_OUTPUT, "false");
+            for (String omitDoctype : new String[] {"true", "false"}) {
+                Policy p = loaded.cloneWithDirective(Policy.OMIT_DOCTYPE_DECLARATION, omitDoctype);
+                for (String input : inputs) {
+                    // the streaming scan never takes the pre-scanned paths
+                    StringWriter full = new StringWriter();
+                    as.scan(new StringReader(input), full, p);
+                    for (int scanType : new int[] {AntiSamy.DOM, AntiSamy.SAX}) {
+                        CleanResults cr = as.scan(input, p, scanType);
+                        if (cr.getScanPath() != CleanResults.ScanPath.FULL) {
+                            assertEquals(name + " " + omitDoctype + " " + input, full.toString(), cr.getCleanHTML());
+                        }
+                    }
+                }
+            }
+        }
+
+        Policy withDoctype = Policy.getInstance(getClass().getResource("/antisamy-tinymce.xml"))
+                .cloneWithDirective(Policy.FORMAT_OUTPUT, "false")
+                .cloneWithDirective(Policy.OMIT_DOCTYPE_DECLARATION, "false");
+        CleanResults cr = as.scan("<b>hello</b>", withDoctype, AntiSamy.SAX);
+        assertEquals(CleanResults.ScanPath.FULL, cr.getScanPath());
+        assertTrue(cr.getCleanHTML().startsWith("<!DOCTYPE"));
+    }
+
+    @Test
+    public void preScanSkipsParsingForCleanInput() throws ScanException, PolicyException {
+        Policy unformatted = policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "false").cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "false");
+
+        for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+            CleanResults cr = as.scan("just some text, nothing else!", policy, scanType);
+            assertEquals(CleanResults.ScanPath.PLAIN_TEXT, cr.getScanPath());
+            assertEquals("just some text, nothing else!", cr.getCleanHTML());
+            assertEquals(0, cr.getNumberOfErrors());
+
+            String markup = "<b>bold</b> and <span class=\"c\" title=\"t\">s<i>x</i></span> <a href=\"http://www.owasp.org/\">l</a>";
+            cr = as.scan(markup, unformatted, scanType);
+            assertEquals(CleanResults.ScanPath.VERBATIM, cr.getScanPath());
+            assertEquals(markup, cr.getCleanHTML());
+
+            // anything the full scan would change still goes through it
+            String[] full = {"a > b", "a\nb", "x &amp; y", "<b>bold</b> and <i>it</i>",
+                    "<span title=\"t\" class=\"c\">s</span>", "<b></b>", "<a href=\"http://www.owasp.org/\">l</a>",
+                    "<b>x</i>", "<B>x</B>", "<p>x</p>", "<b onclick=\"x\">x</b>", "<a href=\"javascript:x\">l</a>"};
+            for (String input : full) {
+                Policy p = input.startsWith("<b>bold</b>") || input.startsWith("<a href=\"http") ? policy : unformatted;
+                assertEquals(input, CleanResults.ScanPath.FULL, as.scan(input, p, scanType).getScanPath());
+            }
+        }
+
+        CleanResults dom = as.scan("<b>x</b>", unformatted, AntiSamy.DOM);
+        assertEquals(CleanResults.ScanPath.VERBATIM, dom.getScanPath());
+        assertEquals("b", dom.getCleanXMLDocumentFragment().getFirstChild().getNodeName());
+    }
+
+    @Test
+    public void resultCacheServesRepeatedScans() throws ScanException, PolicyException {
+        ScanResultCache cache = new ScanResultCache(2, 10000);
+        AntiSamy cached = new AntiSamy();
+        cached.setResultCache(cache);
+        String dirty = "<div onclick=\"x\"><script>alert(1)</script><b>ok</b></div>";
+
+        CleanResults first = cached.scan(dirty, policy, AntiSamy.SAX);
+        CleanResults second = cached.scan(dirty, policy, AntiSamy.SAX);
+        assertEquals(CleanResults.ScanPath.FULL, first.getScanPath());
+        assertEquals(CleanResults.ScanPath.CACHED, second.getScanPath());
+        assertEquals(first.getCleanHTML(), second.getCleanHTML());
+        assertEquals(first.getErrorMessages(), second.getErrorMessages());
+        second.getErrorMessages().clear();
+        assertEquals(first.getNumberOfErrors(), cached.scan(dirty, policy, AntiSamy.SAX).getNumberOfErrors());
+
+        // other policies and engines don't share entries
+        CleanResults dom = cached.scan(dirty, policy, AntiSamy.DOM);
+        assertEquals(CleanResults.ScanPath.FULL, dom.getScanPath());
+        dom = cached.scan(dirty, policy, AntiSamy.DOM);
+        assertEquals(CleanResults.ScanPath.CACHED, dom.getScanPath());
+        assertNotNull(dom.getCleanXMLDocumentFragment());
+        assertEquals(CleanResults.ScanPath.FULL, cached.scan(dirty, policy.cloneWithDirective(Policy.USE_XHTML, "false"), AntiSamy.SAX).getScanPath());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0.0001);
+
+        // plain text isn't worth caching, nor looking up, and neither is
+        // input over the size limit; results over the weight limit don't fit
+        cached.scan("plain text", policy, AntiSamy.SAX);
+        assertEquals(2, cache.size());
+        try {
+            cached.scan(dirty, policy.cloneWithDirective("maxInputSize", "10"), AntiSamy.SAX);
+            fail("Input over the size limit was scanned");
+        } catch (ScanException expected) {
+            // not counted as a miss
+        }
+        assertEquals(3, cache.getMisses());
+        ScanResultCache tiny = new ScanResultCache(10, 5);
+        cached.setResultCache(tiny);
+        cached.scan(dirty, policy, AntiSamy.SAX);
+        assertEquals(0, tiny.size());
+
+        // strings that only differ in unpaired surrogates get their own keys
+        assertFalse(Fingerprint.of("<b>\uD800</b>").equals(Fingerprint.of("<b>\uDC00</b>")));
+    }
+
+    @Test
+    public void invalidXmlCharactersAreStrippedByBothEngines() throws ScanException, PolicyException {
+        String dirty = "<b>a\u0000b\u0008c\uFFFFd</b>";
+        assertEquals("<b>abcd</b>", as.scan(dirty, policy, AntiSamy.DOM).getCleanHTML());
+        assertEquals("<b>abcd</b>", as.scan(dirty, policy, AntiSamy.SAX).getCleanHTML());
+
+        StringWriter out = new StringWriter();
+        as.scan(new StringReader(dirty), out, policy);
+        assertEquals("<b>abcd</b>", out.toString());
+    }
+
+    @Test
+    public void streamingWriterMatchesSerializer() throws ScanException, PolicyException {
+        String[] inputs = {
+                "<p>a &amp; b &quot; \u00e4 \u00f7 &nbsp;x &gt; </p><br><hr/><img src=\"a.gif?a=1&amp;b=2\">",
+                "<style>a > b { color: red; }</style><div><span>x</span><div>y</div></div>",
+                "<ul><li>a<li>b</ul><table><tr><td><a href=\"x\">y</a></td><td>z</td></tr></table>",
+                "<![CDATA[<b>x</b>]]><input type=checkbox checked><b></b><i/>",
+                "<a href=\"blah\" rel=\"nofollow\" rel=\"nofollow\">link</a><p title=\"x\" align=\"left\" title=\"y\">a</p>",
+                "  lead <p>a  b\n\tc <b>x</b> d </p>\n<div>\n  <p>x</p>\n</div>\n<pre>  a\n  <b>b</b>\n</pre> trail  ",
+                "<!-- c --><p>x<!-- d --></p>t<b>x</b>"
+        };
+        Policy[] policies = {
+                policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "false"),
+                policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "false").cloneWithDirective(Policy.USE_XHTML, "false"),
+                policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "false").cloneWithDirective(Policy.OMIT_DOCTYPE_DECLARATION, "false"),
+                policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "false").cloneWithDirective(Policy.ENTITY_ENCODE_INTL_CHARS, "true"),
+                policy,
+                policy.cloneWithDirective(Policy.USE_XHTML, "false"),
+                policy.cloneWithDirective(Policy.PRESERVE_COMMENTS, "true")
+        };
+        for (Policy p : policies) {
+            Policy streaming = p.cloneWithDirective(Policy.USE_STREAMING_WRITER, "true");
+            for (String input : inputs) {
+                for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                    CleanResults expected = as.scan(input, p, scanType);
+                    CleanResults actual = as.scan(input, streaming, scanType);
+                    assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+                    assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sanitizerMatchesAntiSamy() throws Exception {
+        final Sanitizer sanitizer = new Sanitizer(policy);
+        assertSame(policy, sanitizer.getPolicy());
+
+        final String[] inputs = {
+                "<b>bold</b><script>alert(1)</script>",
+                "plain text",
+                "<div style=\"color: red; foo: bar\"><![CDATA[x]]>y</div>",
+                "<p>a &amp; b</p>"
+        };
+        for (String input : inputs) {
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                CleanResults expected = as.scan(input, policy, scanType);
+                CleanResults actual = sanitizer.sanitize(input, scanType);
+                assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+                assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+            }
+        }
+
+        // one instance shared by several threads at once
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final String input = inputs[i % inputs.length];
+                final int scanType = i % 2 == 0 ? AntiSamy.DOM : AntiSamy.SAX;
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return sanitizer.sanitize(input, scanType).getCleanHTML();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                int scanType = i % 2 == 0 ? AntiSamy.DOM : AntiSamy.SAX;
+                assertEquals(as.scan(inputs[i % inputs.length], policy, scanType).getCleanHTML(), futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        StringWriter out = new StringWriter();
+        sanitizer.sanitize(new StringReader(inputs[0]), out);
+        assertEquals(as.scan(inputs[0], policy, AntiSamy.SAX).getCleanHTML(), out.toString());
+    }
+
+    @Test(expected = PolicyException.class)
+    public void sanitizerRequiresPolicy() throws PolicyException {
+        new Sanitizer(null);
+    }
+
+    @Test
+    public void cssScannerCanBeReused() throws ScanException {
+        CssScanner scanner = new CssScanner((InternalPolicy) policy, ResourceBundle.getBundle("AntiSamy", Locale.getDefault()));
+
+        CleanResults sheet = scanner.scanStyleSheet("p { color: red; foo: bar; ", 1000);
+        CleanResults first = scanner.scanInlineStyle("color: blue; foo: bar", "span", 1000);
+        CleanResults second = scanner.scanInlineStyle("color: red", "span", 1000);
+
+        assertEquals("p {\n\tcolor: red;\n}\n", sheet.getCleanHTML());
+        assertEquals("color: blue;", first.getCleanHTML());
+        assertEquals(1, first.getErrorMessages().size());
+        assertEquals("color: red;", second.getCleanHTML());
+        assertEquals(0, second.getErrorMessages().size());
+        // the first results are not affected by the scans after them
+        assertEquals(1, sheet.getErrorMessages().size());
+        assertEquals("color: blue;", first.getCleanHTML());
+    }
+
+    @Test
+    public void inlineStyleCache() throws ScanException, PolicyException {
+        TestPolicy cached = policy.cloneWithDirective(Policy.INLINE_STYLE_CACHE_SIZE, "10")
+                .cloneWithDirective(Policy.INLINE_STYLE_CACHE_MAX_LENGTH, "30");
+        String test = "<span style=\"color: red; foo: bar\">a</span><span style=\"color: red; foo: bar\">b</span>"
+                + "<div style=\"color: red; foo: bar\">c</div>"
+                + "<p style=\"color: blue; font-weight: bold; foo: bar\">d</p>";
+
+        for (int i = 0; i < 2; i++) {
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                CleanResults expected = as.scan(test, policy, scanType);
+                CleanResults actual = as.scan(test, cached, scanType);
+                assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+                assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+            }
+        }
+
+        InlineStyleCache cache = cached.getInlineStyleCache();
+        // three short styles, two of them distinct by tag, in each of four scans
+        assertEquals(2, cache.getMisses());
+        assertEquals(10, cache.getHits());
+        assertEquals(2, cache.size());
+        assertNull(policy.getInlineStyleCache());
+    }
+
+    @Test
+    public void selectorVerdictCache() throws ScanException, PolicyException {
+        TestPolicy cached = policy.cloneWithDirective(Policy.SELECTOR_VERDICT_CACHE_SIZE, "10")
+                .cloneWithDirective(Policy.SELECTOR_VERDICT_CACHE_MAX_LENGTH, "20");
+        String test = "<style>p { color: red; } p { color: blue; } .x, #y { color: red; } a:hover { color: red; }"
+                + " p .a-very-long-class-name { color: red; } * + * { color: red; }</style><p>x</p>";
+
+        for (int i = 0; i < 2; i++) {
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                CleanResults expected = as.scan(test, policy, scanType);
+                CleanResults actual = as.scan(test, cached, scanType);
+                assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+                assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+            }
+        }
+
+        BoundedCache<String, Boolean> cache = cached.getSelectorVerdictCache();
+        // six short selectors, five of them distinct, in each of four scans
+        assertEquals(5, cache.getMisses());
+        assertEquals(19, cache.getHits());
+        assertNull(policy.getSelectorVerdictCache());
+    }
+
+    @Test
+    public void importedStylesheetsAreFetchedInParallelAndCached() throws Exception {
+        StylesheetServer server = new StylesheetServer(100);
+        StylesheetCache previous = ExternalCssScanner.getStylesheetCache();
+        StylesheetCache cache = new StylesheetCache(10, 10000, 60000);
+        ExternalCssScanner.setStylesheetCache(cache);
+        try {
+            server.put("/a.css", "@import url(" + server.url("/c.css") + ");\np { color: #ff0000; }");
+            server.put("/b.css", "h1 { font-weight: bold; }");
+            server.put("/c.css", "h2 { font-style: italic; }");
+            TestPolicy embedding = policy.cloneWithDirective(Policy.EMBED_STYLESHEETS, "true")
+                    .cloneWithDirective("maxStyleSheetImports", "4");
+            String test = "<style>@import '" + server.url("/a.css") + "';\n@import '" + server.url("/b.css")
+                    + "';\n@import '" + server.url("/missing.css") + "';\n</style><p>x</p>";
+
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                CleanResults first = as.scan(test, embedding, scanType);
+                String clean = first.getCleanHTML();
+                assertTrue(clean, clean.indexOf("color: #ff0000") < clean.indexOf("font-weight: bold"));
+                assertTrue(clean, clean.indexOf("font-weight: bold") < clean.indexOf("font-style: italic"));
+                assertEquals(first.getErrorMessages().toString(), 1, first.getErrorMessages().size());
+
+                int requests = server.getRequests();
+                CleanResults second = as.scan(test, embedding, scanType);
+                assertEquals(clean, second.getCleanHTML());
+                assertEquals(first.getErrorMessages(), second.getErrorMessages());
+                // only the failed import is fetched again
+                assertEquals(requests + 1, server.getRequests());
+            }
+            assertEquals(3, cache.size());
+            assertTrue(server.getMaxActive() > 1);
+
+            // nested imports count against the budget
+            cache.clear();
+            CleanResults limited = as.scan(test, embedding.cloneWithDirective("maxStyleSheetImports", "3"), AntiSamy.DOM);
+            assertFalse(limited.getCleanHTML().contains("italic"));
+            assertEquals(2, limited.getErrorMessages().size());
+        } finally {
+            ExternalCssScanner.setStylesheetCache(previous);
+            server.close();
+        }
+    }
+
+    @Test
+    public void moreImportsFromOneHostThanPooledConnections() throws Exception {
+        StylesheetServer server = new StylesheetServer(200);
+        StylesheetCache previous = ExternalCssScanner.getStylesheetCache();
+        ExternalCssScanner.setStylesheetCache(null);
+        try {
+            int imports = 3 * HttpStylesheetFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+            StringBuilder test = new StringBuilder("<style>");
+            for (int i = 0; i < imports; i++) {
+                server.put("/" + i + ".css", "h" + (i % 6 + 1) + " { font-weight: bold; }");
+                test.append("@import '").append(server.url("/" + i + ".css")).append("';\n");
+            }
+            test.append("</style><p>x</p>");
+            TestPolicy embedding = policy.cloneWithDirective(Policy.EMBED_STYLESHEETS, "true")
+                    .cloneWithDirective("maxStyleSheetImports", String.valueOf(imports))
+                    .cloneWithDirective(Policy.CONNECTION_TIMEOUT, "1000");
+
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                CleanResults results = as.scan(test.toString(), embedding, scanType);
+                assertEquals(results.getErrorMessages().toString(), 0, results.getErrorMessages().size());
+            }
+        } finally {
+            ExternalCssScanner.setStylesheetCache(previous);
+            server.close();
+        }
+    }
+
+    /**
+     * Serves stylesheets over HTTP/1.0 from the loopback interface, one
+     * thread per request, answering each after a delay.
+     */
+    private static class StylesheetServer implements Runnable {
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        private final Map<String, String> stylesheets = new ConcurrentHashMap<String, String>();
+        private final long delay;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+
+        StylesheetServer(long delay) throws IOException {
+            this.delay = delay;
+            Thread thread = new Thread(this, "StylesheetServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(String path, String css) {
+            stylesheets.put(path, css);
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + path;
+        }
+
+        int getRequests() {
+            return requests.get();
+        }
+
+        int getMaxActive() {
+            return maxActive.get();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket connection = socket.accept();
+                    new Thread(new Runnable() {
+                        public void run() {
+                            serve(connection);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket connection) {
+            int now = active.incrementAndGet();
+            try {
+                requests.incrementAndGet();
+                synchronized (maxActive) {
+                    maxActive.set(Math.max(maxActive.get(), now));
+                }
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+                String path = in.readLine().split(" ")[1];
+                while (in.readLine().length() > 0) {
+                    // skip the request headers
+                }
+                Thread.sleep(delay);
+
+                String css = stylesheets.get(path);
+                byte[] body = (css != null ? css : "").getBytes("UTF-8");
+                String head = (css != null ? "HTTP/1.0 200 OK" : "HTTP/1.0 404 Not Found")
+                        + "\r\nContent-Type: text/css; charset=UTF-8\r\nContent-Length: " + body.length
+                        + "\r\nConnection: close\r\n\r\n";
+                OutputStream out = connection.getOutputStream();
+                out.write(head.getBytes("ISO-8859-1"));
+                out.write(body);
+                out.flush();
+            } catch (Exception e) {
+                // the client gave up
+            } finally {
+                active.decrementAndGet();
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scanListenerReceivesPhaseTimingsAndCounters() throws ScanException, PolicyException {
+        final List<ScanMetrics> scans = new ArrayList<ScanMetrics>();
+        AntiSamy listened = new AntiSamy();
+        listened.setScanListener(new ScanListener() {
+            public void scanCompleted(ScanMetrics metrics) {
+                scans.add(metrics);
+            }
+        });
+        String dirty = "<div style=\"color: red\" onclick=\"x\"><script>alert(1)</script><b>ok</b><foo>bar</foo></div>";
+
+        for (int scanType : new int[] {AntiSamy.DOM, AntiSamy.SAX}) {
+            scans.clear();
+            CleanResults results = listened.scan(dirty, policy, scanType);
+            assertEquals(1, scans.size());
+            ScanMetrics metrics = scans.get(0);
+            assertEquals(scanType, metrics.getScanType());
+            assertEquals(CleanResults.ScanPath.FULL, metrics.getScanPath());
+            assertEquals(dirty.length(), metrics.getInputLength());
+            assertEquals(results.getCleanHTML().length(), metrics.getOutputLength());
+            assertEquals(2, metrics.getElementsKept());
+            assertEquals(1, metrics.getElementsFiltered());
+            assertEquals(1, metrics.getElementsRemoved());
+            assertEquals(1, metrics.getAttributesRejected());
+
+            long phases = 0;
+            for (ScanMetrics.Phase phase : ScanMetrics.Phase.values()) {
+                assertTrue(metrics.getTime(phase) >= 0);
+                phases += metrics.getTime(phase);
+            }
+            assertTrue(metrics.getTime(ScanMetrics.Phase.PARSE) > 0);
+            assertTrue(metrics.getTime(ScanMetrics.Phase.CSS) > 0);
+            assertTrue(phases <= metrics.getTotalTime());
+        }
+
+        scans.clear();
+        listened.scan(new StringReader(dirty), new StringWriter(), policy);
+        assertEquals(dirty.length(), scans.get(0).getInputLength());
+        assertEquals(-1, scans.get(0).getOutputLength());
+
+        listened.setResultCache(new ScanResultCache(10, 10000));
+        listened.scan(dirty, policy, AntiSamy.SAX);
+        listened.scan(dirty, policy, AntiSamy.SAX);
+        assertEquals(CleanResults.ScanPath.CACHED, scans.get(scans.size() - 1).getScanPath());
+
+        HistogramScanListener histograms = new HistogramScanListener();
+        listened.setScanListener(histograms);
+        listened.setResultCache(null);
+        listened.scanAll(Arrays.asList(dirty, "<b>x</b>", "plain"), policy);
+        assertEquals(3, histograms.getScans());
+        assertEquals(3, histograms.getElementsKept());
+        assertTrue(histograms.getTotalHistogram().getPercentile(99) >= histograms.getHistogram(ScanMetrics.Phase.PARSE).getPercentile(99));
+        assertTrue(histograms.toString().contains("p99"));
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinTheBucketPrecision() {
+        HistogramScanListener.Histogram histogram = new HistogramScanListener.Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000500, histogram.getMean(), 1);
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            double expected = percentile * 1000000;
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual, actual >= expected && actual <= expected * 1.07);
+        }
+        assertEquals(histogram.getMax(), histogram.getPercentile(100));
+        histogram.clear();
+        assertEquals(0, histogram.getPercentile(50));
+    }
 }
@@ -2,12 +2,25 @@
 
 
 import junit.framework.TestCase;
+import org.owasp.validator.html.DecisionTable;
+import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.PolicyRegistry;
+import org.owasp.validator.html.PolicySnapshot;
 import org.owasp.validator.html.TagMatcher;
 import org.owasp.validator.html.scan.Constants;
+import org.owasp.validator.html.util.PatternRegistry;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
 
 
 /**
@@ -86,4 +99,270 @@ public void testGetAllowedEmptyTags_NoSection() throws PolicyException {
 
         assertTrue(policy.getAllowedEmptyTags().size() == Constants.defaultAllowedEmptyTags.size());
     }
+
+    public void testDecisionTable() throws PolicyException {
+        InternalPolicy internalPolicy = (InternalPolicy) Policy.getInstance(getClass().getResource("/antisamy.xml"));
+        DecisionTable table = internalPolicy.getDecisionTable();
+
+        int a = table.getTagId("a");
+        assertEquals(a, table.getTagId("A"));
+        assertEquals(DecisionTable.Action.VALIDATE, table.getAction(a));
+        assertEquals(DecisionTable.Action.REMOVE, table.getAction(table.getTagId("script")));
+        assertEquals(DecisionTable.UNKNOWN, table.getTagId("blink"));
+        assertNull(table.getAction(DecisionTable.UNKNOWN));
+
+        // tag specific and global attributes are merged, in any case
+        assertSame(internalPolicy.getTagByLowercaseName("a").getAttributeByName("href"), table.getAttribute(a, "HREF"));
+        assertSame(internalPolicy.getGlobalAttributeByName("id"), table.getAttribute(a, "id"));
+        assertSame(internalPolicy.getGlobalAttributeByName("id"), table.getAttribute(DecisionTable.UNKNOWN, "Id"));
+        assertNull(table.getAttribute(DecisionTable.UNKNOWN, "href"));
+        assertNull(table.getAttribute(a, "onclick"));
+
+        assertEquals(internalPolicy.getAllowedEmptyTags().matches("br"), table.isAllowedEmptyTag("BR"));
+        assertFalse(table.isAllowedEmptyTag("blink"));
+        assertEquals(internalPolicy.getRequiresClosingTags().matches("iframe"), table.isRequiresClosingTag("iframe"));
+    }
+    public void testFingerprint() throws PolicyException {
+        Policy first = Policy.getInstance(getClass().getResource("/antisamy.xml"));
+        Policy second = Policy.getInstance(getClass().getResource("/antisamy.xml"));
+        assertEquals(64, first.getFingerprint().length());
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+
+        Policy changed = first.cloneWithDirective(Policy.USE_XHTML, "false");
+        assertFalse(first.getFingerprint().equals(changed.getFingerprint()));
+        assertEquals(first.getFingerprint(), changed.cloneWithDirective(Policy.USE_XHTML, "true").getFingerprint());
+
+        Policy other = Policy.getInstance(getClass().getResource("/antisamy-slashdot.xml"));
+        assertFalse(first.getFingerprint().equals(other.getFingerprint()));
+    }
+
+    public void testPropertyValueMatchers() throws PolicyException {
+        String cssRules = "<css-rules>\n" +
+                          "<property name=\"Border\">\n" +
+                          "    <literal-list><literal value=\"none\"/></literal-list>\n" +
+                          "    <shorthand-list><shorthand name=\"border-width\"/><shorthand name=\"missing\"/></shorthand-list>\n" +
+                          "</property>\n" +
+                          "<property name=\"border-width\">\n" +
+                          "    <regexp-list><regexp name=\"length\" value=\"\\d+px\"/></regexp-list>\n" +
+                          "    <shorthand-list><shorthand name=\"border\"/></shorthand-list>\n" +
+                          "</property>\n" +
+                          "<property name=\"color\">\n" +
+                          "    <literal-list><literal value=\"red\"/></literal-list>\n" +
+                          "</property>\n" +
+                          "</css-rules>\n";
+        String policyFile = HEADER + DIRECTIVES + COMMON_REGEXPS + COMMON_ATTRIBUTES + GLOBAL_TAG_ATTRIBUTES + TAG_RULES +
+                            cssRules + FOOTER;
+        InternalPolicy internalPolicy = (InternalPolicy) Policy.getInstance(new ByteArrayInputStream(policyFile.getBytes()));
+
+        // shorthands are followed in both directions of the cycle
+        assertTrue(internalPolicy.getPropertyValueMatcher("border").matches("none"));
+        assertTrue(internalPolicy.getPropertyValueMatcher("BORDER").matches("2px"));
+        assertTrue(internalPolicy.getPropertyValueMatcher("border-width").matches("none"));
+        assertFalse(internalPolicy.getPropertyValueMatcher("border").matches("red"));
+        assertFalse(internalPolicy.getPropertyValueMatcher("color").matches("none"));
+        assertNull(internalPolicy.getPropertyValueMatcher("missing"));
+
+        Policy clone = internalPolicy.cloneWithDirective(Policy.USE_XHTML, "true");
+        assertSame(internalPolicy.getPropertyValueMatcher("border"), ((InternalPolicy) clone).getPropertyValueMatcher("border"));
+    }
+
+    public void testSnapshot() throws Exception {
+        for (String name : new String[]{"/antisamy.xml", "/antisamy-anythinggoes.xml", "/antisamy-ebay.xml",
+                "/antisamy-myspace.xml", "/antisamy-slashdot.xml", "/antisamy-tinymce.xml"}) {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            Policy compiled = PolicySnapshot.compile(getClass().getResource(name), snapshot);
+            Policy loaded = PolicySnapshot.load(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertEquals(name, compiled.getFingerprint(), loaded.getFingerprint());
+            assertTrue(loaded instanceof InternalPolicy);
+        }
+
+        try {
+            PolicySnapshot.load(new ByteArrayInputStream("<anti-samy-rules/>".getBytes()));
+            fail("Should not load XML as a snapshot");
+        } catch (PolicyException expected) {
+        }
+    }
+
+    public void testSnapshotDetectsChangedPolicyFiles() throws Exception {
+        File directory = File.createTempFile("snapshot", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        File base = new File(directory, "base.xml");
+        File main = new File(directory, "main.xml");
+        File snapshot = new File(directory, "main.snapshot");
+        try {
+            String content = new String(read(getClass().getResourceAsStream("/antisamy.xml")), "ISO-8859-1");
+            write(base, content);
+            write(main, "<anti-samy-rules><include href=\"base.xml\"/></anti-samy-rules>");
+            URL url = main.toURI().toURL();
+
+            Policy first = PolicySnapshot.getInstance(url, snapshot);
+            assertTrue(snapshot.isFile());
+            assertEquals(Policy.getInstance(url).getFingerprint(), first.getFingerprint());
+            byte[] compiled = read(new FileInputStream(snapshot));
+            assertEquals(first.getFingerprint(), PolicySnapshot.getInstance(url, snapshot).getFingerprint());
+
+            // a change to the included file makes the snapshot stale
+            write(base, content.replace("</directives>", "<directive name=\"inlineStyleCacheSize\" value=\"5\"/></directives>"));
+            try {
+                PolicySnapshot.load(new ByteArrayInputStream(compiled));
+                fail("Should not load a stale snapshot");
+            } catch (PolicyException expected) {
+            }
+            Policy changed = PolicySnapshot.getInstance(url, snapshot);
+            assertEquals("5", changed.getDirective(Policy.INLINE_STYLE_CACHE_SIZE));
+            assertEquals(changed.getFingerprint(), PolicySnapshot.load(new FileInputStream(snapshot)).getFingerprint());
+        } finally {
+            snapshot.delete();
+            main.delete();
+            base.delete();
+            directory.delete();
+        }
+    }
+
+    public void testRulesAreSharedBetweenPolicies() throws PolicyException {
+        Policy first = Policy.getInstance(getClass().getResource("/antisamy.xml"));
+        long compiled = PatternRegistry.getCompiled();
+        Policy second = Policy.getInstance(getClass().getResource("/antisamy.xml"));
+
+        assertEquals(compiled, PatternRegistry.getCompiled());
+        assertSame(first.getTagByLowercaseName("a").getAttributeByName("href"),
+                second.getTagByLowercaseName("a").getAttributeByName("href"));
+        assertSame(first.getGlobalAttributeByName("id"), second.getGlobalAttributeByName("id"));
+        assertSame(first.getPropertyByName("color"), second.getPropertyByName("color"));
+        assertSame(first.getCommonRegularExpressions("offsiteURL").getPattern(),
+                second.getCommonRegularExpressions("offsiteURL").getPattern());
+
+        // a common attribute referenced by name is not copied
+        assertSame(first.getTagByLowercaseName("p").getAttributeByName("align"),
+                first.getTagByLowercaseName("div").getAttributeByName("align"));
+    }
+
+    public void testVariantsShareCompiledStructure() throws PolicyException {
+        InternalPolicy policy = (InternalPolicy) Policy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective(Policy.INLINE_STYLE_CACHE_SIZE, "16")
+                .cloneWithDirective(Policy.SELECTOR_VERDICT_CACHE_SIZE, "16");
+
+        InternalPolicy nofollow = (InternalPolicy) policy.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true");
+        assertTrue(nofollow.isNofollowAnchors());
+        assertSame(policy.getDecisionTable(), nofollow.getDecisionTable());
+        assertSame(policy.getInlineStyleCache(), nofollow.getInlineStyleCache());
+        assertSame(policy.getSelectorVerdictCache(), nofollow.getSelectorVerdictCache());
+        assertSame(policy.getPropertyValueMatcher("color"), nofollow.getPropertyValueMatcher("color"));
+
+        // equal directive sets give the same instance, however they were made
+        assertSame(nofollow, policy.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true"));
+        assertSame(nofollow, nofollow.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true"));
+        InternalPolicy larger = (InternalPolicy) nofollow.cloneWithDirective("maxInputSize", "200000");
+        assertEquals(200000, larger.getMaxInputSize());
+        assertSame(larger, policy.cloneWithDirective("maxInputSize", "200000")
+                .cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true"));
+        assertSame(policy, nofollow.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, policy.getDirective(Policy.ANCHORS_NOFOLLOW)));
+
+        // directives that change the cached results get their own caches
+        InternalPolicy verbose = (InternalPolicy) policy.cloneWithDirective(Policy.OMIT_ERROR_MESSAGES, "true");
+        assertNotSame(policy.getInlineStyleCache(), verbose.getInlineStyleCache());
+        assertSame(policy.getDecisionTable(), verbose.getDecisionTable());
+        InternalPolicy verdicts = (InternalPolicy) policy.cloneWithDirective(Policy.ATTRIBUTE_VERDICT_CACHE_SIZE, "16");
+        assertNotSame(policy.getDecisionTable(), verdicts.getDecisionTable());
+    }
+
+    public void testPolicyRegistryReloadsChangedFiles() throws Exception {
+        File file = File.createTempFile("policy", ".xml");
+        String content = new String(read(getClass().getResourceAsStream("/antisamy.xml")), "ISO-8859-1");
+        PolicyRegistry registry = new PolicyRegistry(20);
+        try {
+            write(file, content);
+            Policy first = registry.getPolicy(file);
+            assertSame(first, registry.getPolicy(file.toURI().toURL()));
+            assertEquals(Policy.getInstance(file).getFingerprint(), first.getFingerprint());
+
+            write(file, content.replace("</directives>", "<directive name=\"inlineStyleCacheSize\" value=\"5\"/></directives>"));
+            // make the change visible on file systems with coarse timestamps
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getPolicy(file) == first && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Policy reloaded = registry.getPolicy(file);
+            assertNotSame(first, reloaded);
+            assertEquals("5", reloaded.getDirective(Policy.INLINE_STYLE_CACHE_SIZE));
+            assertEquals(1, registry.getReloads());
+
+            // a broken file keeps the last good policy
+            write(file, "<anti-samy-rules>");
+            assertTrue(file.setLastModified(file.lastModified() + 4000));
+            Thread.sleep(200);
+            assertSame(reloaded, registry.getPolicy(file));
+            assertEquals(1, registry.getReloads());
+        } finally {
+            registry.shutdown();
+            file.delete();
+        }
+
+        File checked = File.createTempFile("policy", ".xml");
+        PolicyRegistry eager = new PolicyRegistry(0);
+        try {
+            write(checked, content);
+            Policy first = eager.getPolicy(checked);
+            write(checked, content.replace("</directives>", "<directive name=\"inlineStyleCacheSize\" value=\"7\"/></directives>"));
+            assertTrue(checked.setLastModified(checked.lastModified() + 2000));
+            assertEquals("7", eager.getPolicy(checked).getDirective(Policy.INLINE_STYLE_CACHE_SIZE));
+            assertNotSame(first, eager.getPolicy(checked));
+        } finally {
+            checked.delete();
+        }
+    }
+
+    public void testPolicyRegistrySurvivesInvalidRegexps() throws Exception {
+        File file = File.createTempFile("policy", ".xml");
+        String content = new String(read(getClass().getResourceAsStream("/antisamy.xml")), "ISO-8859-1");
+        PolicyRegistry registry = new PolicyRegistry(20);
+        try {
+            write(file, content);
+            Policy first = registry.getPolicy(file);
+
+            // a pattern that doesn't compile fails outside the XML parsing
+            write(file, content.replace("</common-regexps>", "<regexp name=\"broken\" value=\"[a-\"/></common-regexps>"));
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            Thread.sleep(200);
+            assertSame(first, registry.getPolicy(file));
+            assertEquals(0, registry.getReloads());
+
+            // the next good edit is still picked up
+            write(file, content.replace("</directives>", "<directive name=\"inlineStyleCacheSize\" value=\"5\"/></directives>"));
+            assertTrue(file.setLastModified(file.lastModified() + 4000));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getPolicy(file) == first && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("5", registry.getPolicy(file).getDirective(Policy.INLINE_STYLE_CACHE_SIZE));
+            assertEquals(1, registry.getReloads());
+        } finally {
+            registry.shutdown();
+            file.delete();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package org.owasp.validator.html.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HTMLEntityEncoderTest {
+
+    /**
+     * The original, char by char implementation the table must agree with.
+     */
+    private static String reference(String value) {
+        StringBuffer buff = new StringBuffer();
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '&') {
+                buff.append("&amp;");
+            } else if (ch == '<') {
+                buff.append("&lt;");
+            } else if (ch == '>') {
+                buff.append("&gt;");
+            } else if (Character.isWhitespace(ch)) {
+                buff.append(ch);
+            } else if (Character.isLetterOrDigit(ch)) {
+                buff.append(ch);
+            } else if ((int) ch >= 32 && (int) ch <= 126) {
+                buff.append("&#" + (int) ch + ";");
+            }
+        }
+        return buff.toString();
+    }
+
+    @Test
+    public void testMatchesReferenceForEveryChar() throws Exception {
+        for (char ch = 0; ch < 0x3000; ch++) {
+            String value = "a" + ch + "b";
+            assertEquals(reference(value), HTMLEntityEncoder.htmlEntityEncode(value));
+        }
+        String mixed = "<script>alert('x & y');</script>é€\t\u0001 done";
+        assertEquals(reference(mixed), HTMLEntityEncoder.htmlEntityEncode(mixed));
+    }
+
+    @Test
+    public void testCleanInputIsNotCopied() {
+        String clean = "nothing to encode here 123 été\n";
+        assertSame(clean, HTMLEntityEncoder.htmlEntityEncode(clean));
+        assertNull(HTMLEntityEncoder.htmlEntityEncode(null));
+    }
+
+    @Test
+    public void testSinks() throws Exception {
+        String value = "a<b>\"c\" & d";
+        StringBuilder out = new StringBuilder("x");
+        HTMLEntityEncoder.htmlEntityEncode(value, out);
+        assertEquals("x" + reference(value), out.toString());
+
+        out.setLength(0);
+        char[] chars = ("--" + value + "--").toCharArray();
+        HTMLEntityEncoder.htmlEntityEncode(chars, 2, value.length(), out);
+        assertEquals(reference(value), out.toString());
+    }
+
+    @Test
+    public void testXMLUtilOnlyCodesWholeValues() {
+        assertEquals(">", XMLUtil.decode("&gt;"));
+        assertEquals("&", XMLUtil.decode("&amp;"));
+        assertEquals("a&gt;b", XMLUtil.decode("a&gt;b"));
+        assertEquals("&quot;", XMLUtil.encode("\""));
+        assertEquals("<<", XMLUtil.encode("<<"));
+        assertNull(XMLUtil.encode(null));
+    }
+}
@@ -0,0 +1,152 @@
+package org.owasp.validator.html.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ObjectPoolTest {
+
+    private static class CountingPool extends ObjectPool<Object> {
+        CountingPool(int maxIdle, long idleTimeoutMillis) {
+            super(maxIdle, idleTimeoutMillis);
+        }
+
+        protected Object create() {
+            return new Object();
+        }
+    }
+
+    @Test
+    public void testReuseAndMaxIdle() throws Exception {
+        CountingPool pool = new CountingPool(1, 60000);
+        Object first = pool.borrow();
+        Object second = pool.borrow();
+        assertEquals(2, pool.getBorrowed());
+        assertEquals(2, pool.getCreated());
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.getBorrowed());
+        assertEquals(1, pool.getIdle());
+        assertEquals(1, pool.getDiscarded());
+
+        assertSame(first, pool.borrow());
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    public void testDiscardAndWarmUp() throws Exception {
+        CountingPool pool = new CountingPool(3, 60000);
+        pool.warmUp(5);
+        assertEquals(3, pool.getIdle());
+        assertEquals(3, pool.getCreated());
+
+        Object item = pool.borrow();
+        pool.discard(item);
+        assertEquals(0, pool.getBorrowed());
+        assertEquals(2, pool.getIdle());
+        assertEquals(1, pool.getDiscarded());
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        CountingPool pool = new CountingPool(2, 60000);
+        pool.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+        Object item = pool.borrow();
+        pool.release(item);
+        Thread.sleep(5);
+        assertNotSame(item, pool.borrow());
+        assertEquals(1, pool.getDiscarded());
+    }
+
+    @Test
+    public void testThreadAffinity() throws Exception {
+        final CountingPool pool = new CountingPool(1, 60000);
+        pool.setThreadAffinity(true);
+        Object item = pool.borrow();
+        pool.release(item);
+        assertEquals(1, pool.getIdle());
+
+        final Object[] other = new Object[1];
+        Thread thread = new Thread() {
+            public void run() {
+                other[0] = pool.borrow();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotSame(item, other[0]);
+        assertSame(item, pool.borrow());
+    }
+
+    @Test
+    public void testParkingRespectsMaxIdle() throws Exception {
+        final CountingPool pool = new CountingPool(2, 60000);
+        pool.setThreadAffinity(true);
+        final CountDownLatch released = new CountDownLatch(5);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread[] threads = new Thread[5];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    pool.release(pool.borrow());
+                    released.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // ends the thread
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        released.await();
+        assertEquals(2, pool.getIdle());
+        assertEquals(3, pool.getDiscarded());
+        done.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testParkedObjectsExpire() throws Exception {
+        final CountingPool pool = new CountingPool(2, 60000);
+        pool.setThreadAffinity(true);
+        pool.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+        Object item = pool.borrow();
+        pool.release(item);
+        Thread.sleep(5);
+        assertNotSame(item, pool.borrow());
+        assertEquals(1, pool.getDiscarded());
+
+        // an object parked on another thread is evicted by this one
+        final CountDownLatch parked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                pool.release(pool.borrow());
+                parked.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    // ends the thread
+                }
+            }
+        };
+        thread.start();
+        parked.await();
+        assertEquals(1, pool.getIdle());
+        Thread.sleep(5);
+        pool.borrow();
+        assertEquals(0, pool.getIdle());
+        assertEquals(2, pool.getDiscarded());
+        done.countDown();
+        thread.join();
+    }
+}